@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * {@link MDecoder} decoding the BSON of the sample entities into MObjects,
+ * against the driver's own decoder into BasicDBObjects
+ *
+ * @author judison
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+	@Param({ "10", "100" })
+	public int size;
+
+	private MDecoder decoder;
+	private DefaultDBDecoder driverDecoder;
+	private byte[] flat;
+	private byte[] order;
+	private byte[] series;
+
+	@Setup
+	public void setup() {
+		Mapper mapper = new Mapper(null);
+		decoder = new MDecoder();
+		driverDecoder = new DefaultDBDecoder();
+		flat = Samples.bytes(mapper, Samples.flat(size));
+		order = Samples.bytes(mapper, Samples.order(size, size));
+		series = Samples.bytes(mapper, Samples.series(size));
+	}
+
+	@Benchmark
+	public Object flat() {
+		return decoder.decode(flat, (DBCollection)null);
+	}
+
+	@Benchmark
+	public Object nested() {
+		return decoder.decode(order, (DBCollection)null);
+	}
+
+	@Benchmark
+	public Object lists() {
+		return decoder.decode(series, (DBCollection)null);
+	}
+
+	@Benchmark
+	public Object nestedDriver() {
+		return driverDecoder.decode(order, (DBCollection)null);
+	}
+
+}
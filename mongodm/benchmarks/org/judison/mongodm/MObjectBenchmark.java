@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link MObject} get/put/deepGet, and {@link MList} access, backed by a java List/array or not
+ *
+ * @author judison
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MObjectBenchmark {
+
+	@Param({ "10", "100" })
+	public int size;
+
+	private String[] keys;
+	private MObject obj;
+	private MObject nested;
+	private MList plainList;
+	private MList backedList;
+	private MList backedArray;
+
+	@Setup
+	public void setup() {
+		keys = new String[size];
+		obj = new MObject();
+		for (int i = 0; i < size; i++) {
+			keys[i] = "field" + i;
+			obj.put(keys[i], i);
+		}
+		nested = new MObject("a", new MObject("b", new MObject("c", new MObject("d", 1))));
+
+		Mapper mapper = new Mapper(null);
+		Samples.Series series = Samples.series(size);
+		MObject data = (MObject)mapper.javaToBson(series);
+		backedList = (MList)data.get("tags");
+		backedArray = (MList)data.get("counts");
+		plainList = new MList();
+		for (Object tag: backedList)
+			plainList.add(tag);
+	}
+
+	@Benchmark
+	public MObject put() {
+		MObject o = new MObject();
+		for (String key: keys)
+			o.put(key, key);
+		return o;
+	}
+
+	@Benchmark
+	public void get(Blackhole bh) {
+		for (String key: keys)
+			bh.consume(obj.get(key));
+	}
+
+	@Benchmark
+	public Object deepGet() {
+		return nested.deepGet("a.b.c.d");
+	}
+
+	@Benchmark
+	public void deepPut() {
+		nested.deepPut("a.b.c.e", 2);
+	}
+
+	@Benchmark
+	public void plainListGet(Blackhole bh) {
+		for (int i = 0; i < plainList.size(); i++)
+			bh.consume(plainList.get(i));
+	}
+
+	@Benchmark
+	public void backedListGet(Blackhole bh) {
+		for (int i = 0; i < backedList.size(); i++)
+			bh.consume(backedList.get(i));
+	}
+
+	@Benchmark
+	public void backedArrayGet(Blackhole bh) {
+		for (int i = 0; i < backedArray.size(); i++)
+			bh.consume(backedArray.get(i));
+	}
+
+	@Benchmark
+	public void backedListIterate(Blackhole bh) {
+		for (Object item: backedList)
+			bh.consume(item);
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BasicBSONEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mongodb.DBCollection;
+
+/**
+ * {@link Mapper#javaToBson(Object)} and {@link Mapper#bsonToJava(Class, Object)} of each sample shape.<br>
+ * javaToBson only wraps the object, so it's measured with the encoding that a save does.
+ * bsonToJava consumes the MObject, so it's measured with the decoding that a find does,
+ * see {@link DecoderBenchmark} for the decoding alone.
+ *
+ * @author judison
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+	@Param({ "10", "100" })
+	public int size;
+
+	private Mapper mapper;
+	private MDecoder decoder;
+	private BasicBSONEncoder encoder;
+
+	private Samples.Flat flat;
+	private Samples.Order order;
+	private Samples.Series series;
+	private Samples.Open open;
+
+	private byte[] flatBytes;
+	private byte[] orderBytes;
+	private byte[] seriesBytes;
+	private byte[] openBytes;
+
+	@Setup
+	public void setup() {
+		mapper = new Mapper(null);
+		decoder = new MDecoder();
+		encoder = new BasicBSONEncoder();
+		flat = Samples.flat(size);
+		order = Samples.order(size, size);
+		series = Samples.series(size);
+		open = Samples.open(size);
+		flatBytes = Samples.bytes(mapper, flat);
+		orderBytes = Samples.bytes(mapper, order);
+		seriesBytes = Samples.bytes(mapper, series);
+		openBytes = Samples.bytes(mapper, open);
+	}
+
+	private MObject decode(byte[] bytes) {
+		return (MObject)decoder.decode(bytes, (DBCollection)null);
+	}
+
+	@Benchmark
+	public byte[] flatToBson() {
+		return encoder.encode((MObject)mapper.javaToBson(flat));
+	}
+
+	@Benchmark
+	public byte[] nestedToBson() {
+		return encoder.encode((MObject)mapper.javaToBson(order));
+	}
+
+	@Benchmark
+	public byte[] listsToBson() {
+		return encoder.encode((MObject)mapper.javaToBson(series));
+	}
+
+	@Benchmark
+	public byte[] overflowToBson() {
+		return encoder.encode((MObject)mapper.javaToBson(open));
+	}
+
+	@Benchmark
+	public Object flatToJava() {
+		return mapper.bsonToJava(Samples.Flat.class, decode(flatBytes));
+	}
+
+	@Benchmark
+	public Object nestedToJava() {
+		return mapper.bsonToJava(Samples.Order.class, decode(orderBytes));
+	}
+
+	@Benchmark
+	public Object listsToJava() {
+		return mapper.bsonToJava(Samples.Series.class, decode(seriesBytes));
+	}
+
+	@Benchmark
+	public Object overflowToJava() {
+		return mapper.bsonToJava(Samples.Open.class, decode(openBytes));
+	}
+
+	/**
+	 * Reads every property of a mapped object through its MObject, as a projection or a partial update would
+	 */
+	@Benchmark
+	public void nestedBackedGet(Blackhole bh) {
+		MObject obj = (MObject)mapper.javaToBson(order);
+		for (String key: obj.keySet())
+			bh.consume(obj.get(key));
+	}
+
+}
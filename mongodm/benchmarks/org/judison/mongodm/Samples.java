@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.judison.mongodm.annotations.Embedded;
+import org.judison.mongodm.annotations.Entity;
+import org.judison.mongodm.annotations.Id;
+import org.judison.mongodm.annotations.Overflow;
+import org.judison.mongodm.annotations.Property;
+
+/**
+ * The entities and documents used by the benchmarks, in the shapes mapped most often:
+ * flat, nested @Embedded, list heavy and with @Overflow.
+ *
+ * @author judison
+ */
+public final class Samples {
+
+	private Samples() {}
+
+	@Entity("flat")
+	public static class Flat {
+		@Id
+		private ObjectId id = new ObjectId();
+		private String name;
+		private String email;
+		private int age;
+		private long visits;
+		private double score;
+		private boolean active;
+		private Date created;
+
+		public Flat() {}
+	}
+
+	@Embedded
+	public static class Address {
+		private String street;
+		private String city;
+		private String zip;
+
+		public Address() {}
+	}
+
+	@Embedded
+	public static class Item {
+		private String sku;
+		private int qty;
+		private double price;
+
+		public Item() {}
+	}
+
+	@Entity("orders")
+	public static class Order {
+		@Id
+		private ObjectId id = new ObjectId();
+		private Address billing;
+		private Address shipping;
+		@Property(itemClass = Item.class)
+		private ArrayList<Item> items;
+
+		public Order() {}
+	}
+
+	@Entity("series")
+	public static class Series {
+		@Id
+		private ObjectId id = new ObjectId();
+		@Property(itemClass = String.class)
+		private ArrayList<String> tags;
+		private int[] counts;
+		@Property(itemClass = Double.class)
+		private ArrayList<Double> values;
+
+		public Series() {}
+	}
+
+	@Entity("open")
+	public static class Open {
+		@Id
+		private ObjectId id = new ObjectId();
+		private String name;
+		@Overflow
+		private MObject extra;
+
+		public Open() {}
+	}
+
+	static Flat flat(int i) {
+		Flat flat = new Flat();
+		flat.name = "User " + i;
+		flat.email = "user" + i + "@example.com";
+		flat.age = 20 + i % 50;
+		flat.visits = i * 1000L;
+		flat.score = i * 0.25;
+		flat.active = i % 2 == 0;
+		flat.created = new Date(1420070400000L + i * 60000L);
+		return flat;
+	}
+
+	static Address address(int i) {
+		Address address = new Address();
+		address.street = "Street " + i;
+		address.city = "City " + i % 10;
+		address.zip = String.format("%05d-000", i);
+		return address;
+	}
+
+	static Order order(int i, int items) {
+		Order order = new Order();
+		order.billing = address(i);
+		order.shipping = address(i + 1);
+		order.items = new ArrayList<Item>(items);
+		for (int j = 0; j < items; j++) {
+			Item item = new Item();
+			item.sku = "SKU-" + j;
+			item.qty = 1 + j % 5;
+			item.price = 9.99 + j;
+			order.items.add(item);
+		}
+		return order;
+	}
+
+	static Series series(int size) {
+		Series series = new Series();
+		series.tags = new ArrayList<String>(size);
+		series.counts = new int[size];
+		series.values = new ArrayList<Double>(size);
+		for (int i = 0; i < size; i++) {
+			series.tags.add("tag" + i);
+			series.counts[i] = i;
+			series.values.add(i * 1.5);
+		}
+		return series;
+	}
+
+	static Open open(int extraFields) {
+		Open open = new Open();
+		open.name = "open";
+		open.extra = new MObject();
+		for (int i = 0; i < extraFields; i++)
+			open.extra.put("field" + i, i % 2 == 0 ? (Object)("value " + i) : (Object)i);
+		return open;
+	}
+
+	/**
+	 * A document shape, with keyed documents and a typical update of it, used by the {@link Workload}
+	 */
+	public enum Shape {
+		FLAT(Flat.class), NESTED(Order.class), LISTS(Series.class), OVERFLOW(Open.class);
+
+		private final Class<?> type;
+
+		Shape(Class<?> type) {
+			this.type = type;
+		}
+
+		public Class<?> getType() {
+			return type;
+		}
+
+		Object create(ObjectId id, int i) {
+			switch (this) {
+			case FLAT:
+				Flat flat = flat(i);
+				flat.id = id;
+				return flat;
+			case NESTED:
+				Order order = order(i, 5);
+				order.id = id;
+				return order;
+			case LISTS:
+				Series series = series(20);
+				series.id = id;
+				return series;
+			default:
+				Open open = open(10);
+				open.id = id;
+				return open;
+			}
+		}
+
+		Update update(int i) {
+			switch (this) {
+			case FLAT:
+				return new Update().set("name", "User " + i).inc("visits", 1);
+			case NESTED:
+				return new Update().set("shipping.city", "City " + i % 10).inc("items.0.qty", 1);
+			case LISTS:
+				return new Update().set("tags.0", "tag" + i).inc("counts.0", 1);
+			default:
+				return new Update().set("extra.field" + i % 10, "value " + i);
+			}
+		}
+	}
+
+	/**
+	 * @return the BSON bytes of <b>entity</b>, as the driver would send them
+	 */
+	static byte[] bytes(Mapper mapper, Object entity) {
+		return new BasicBSONEncoder().encode((MObject)mapper.javaToBson(entity));
+	}
+
+}
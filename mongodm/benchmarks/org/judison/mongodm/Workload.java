@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.types.ObjectId;
+import org.judison.mongodm.Samples.Shape;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+/**
+ * A YCSB style load generator: loads <b>recordcount</b> documents of a {@link Shape}, then runs
+ * <b>operationcount</b> reads, updates, inserts and scans over them, from <b>threadcount</b> threads,
+ * optionally throttled to <b>target</b> operations per second.<br>
+ * Reports the throughput, and the latency percentiles of each operation.<br>
+ * <br>
+ * Usage: <code>Workload [-P file] [-p key=value]...</code>, the properties are:
+ * <ul>
+ * <li><b>backend</b>: <code>memory</code> (default) for a {@link MemoryEngine}, or a <code>mongodb://host/db</code> URI</li>
+ * <li><b>memory.dir</b>, <b>memory.sync</b>: makes the MemoryEngine persistent</li>
+ * <li><b>shape</b>: <code>flat</code> (default), <code>nested</code>, <code>lists</code> or <code>overflow</code></li>
+ * <li><b>phase</b>: <code>load</code>, <code>run</code> or <code>both</code> (default)</li>
+ * <li><b>recordcount</b>, <b>operationcount</b>: default 1000</li>
+ * <li><b>readproportion</b> (0.95), <b>updateproportion</b> (0.05), <b>insertproportion</b> (0), <b>scanproportion</b> (0)</li>
+ * <li><b>maxscanlength</b>: default 100, the length of each scan is uniform between 1 and it</li>
+ * <li><b>requestdistribution</b>: <code>zipfian</code> (default), <code>uniform</code> or <code>latest</code></li>
+ * <li><b>threadcount</b>: default 1</li>
+ * <li><b>target</b>: operations per second, default 0 (unlimited)</li>
+ * </ul>
+ * When throttled, latencies are measured from when each operation should have started, so a stall
+ * shows up in all the operations delayed by it (no coordinated omission).
+ *
+ * @author judison
+ */
+public class Workload {
+
+	public enum Operation {
+		READ, UPDATE, INSERT, SCAN
+	}
+
+	public enum Distribution {
+		UNIFORM, ZIPFIAN, LATEST
+	}
+
+	private final Shape shape;
+	private final long recordCount;
+	private final long operationCount;
+	private final double[] proportions = new double[Operation.values().length];
+	private final int maxScanLength;
+	private final Distribution distribution;
+	private final int threadCount;
+	private final double target;
+
+	private final ZipfianGenerator zipfian;
+	// next key to insert, and inserts done by run (keys below recordCount + inserted - threadCount surely exist)
+	private final AtomicLong nextKey = new AtomicLong();
+	private final AtomicLong inserted = new AtomicLong();
+
+	public Workload(Properties props) {
+		shape = Shape.valueOf(props.getProperty("shape", "flat").toUpperCase(Locale.ROOT));
+		recordCount = Long.parseLong(props.getProperty("recordcount", "1000"));
+		operationCount = Long.parseLong(props.getProperty("operationcount", "1000"));
+		proportions[Operation.READ.ordinal()] = Double.parseDouble(props.getProperty("readproportion", "0.95"));
+		proportions[Operation.UPDATE.ordinal()] = Double.parseDouble(props.getProperty("updateproportion", "0.05"));
+		proportions[Operation.INSERT.ordinal()] = Double.parseDouble(props.getProperty("insertproportion", "0"));
+		proportions[Operation.SCAN.ordinal()] = Double.parseDouble(props.getProperty("scanproportion", "0"));
+		maxScanLength = Integer.parseInt(props.getProperty("maxscanlength", "100"));
+		distribution = Distribution.valueOf(props.getProperty("requestdistribution", "zipfian").toUpperCase(Locale.ROOT));
+		threadCount = Integer.parseInt(props.getProperty("threadcount", "1"));
+		target = Double.parseDouble(props.getProperty("target", "0"));
+
+		double total = 0;
+		for (double p: proportions) {
+			if (p < 0)
+				throw new IllegalArgumentException("Negative proportion");
+			total += p;
+		}
+		if (total <= 0)
+			throw new IllegalArgumentException("No operations");
+		for (int i = 0; i < proportions.length; i++)
+			proportions[i] /= total;
+		if (recordCount <= 0 || operationCount < 0 || maxScanLength <= 0 || threadCount <= 0 || target < 0)
+			throw new IllegalArgumentException();
+
+		// sized for the records plus the expected inserts, as YCSB does
+		long expectedInserts = (long)(operationCount * proportions[Operation.INSERT.ordinal()] * 2);
+		zipfian = new ZipfianGenerator(recordCount + expectedInserts);
+		nextKey.set(recordCount);
+	}
+
+	public Shape getShape() {
+		return shape;
+	}
+
+	/**
+	 * @return the <code>_id</code> of the record number <b>n</b>, ordered as the numbers
+	 */
+	public static ObjectId key(long n) {
+		return new ObjectId(ByteBuffer.allocate(12).putInt(0).putLong(n).array());
+	}
+
+	/**
+	 * Removes everything from <b>coll</b>, and inserts the <b>recordcount</b> records
+	 */
+	public Report load(MCollection<Object> coll) throws MException, InterruptedException {
+		coll.remove(new Query());
+		final AtomicLong loadKey = new AtomicLong();
+		return execute(coll, recordCount, new Chooser() {
+
+			@Override
+			public Operation next(Random random) {
+				return Operation.INSERT;
+			}
+
+			@Override
+			public long nextInsert() {
+				return loadKey.getAndIncrement();
+			}
+		});
+	}
+
+	public Report run(MCollection<Object> coll) throws InterruptedException {
+		return execute(coll, operationCount, new Chooser() {
+
+			@Override
+			public Operation next(Random random) {
+				double r = random.nextDouble();
+				for (Operation op: Operation.values()) {
+					r -= proportions[op.ordinal()];
+					if (r < 0)
+						return op;
+				}
+				return Operation.READ;
+			}
+
+			@Override
+			public long nextInsert() {
+				return nextKey.getAndIncrement();
+			}
+		});
+	}
+
+	private interface Chooser {
+		Operation next(Random random);
+
+		long nextInsert();
+	}
+
+	private long nextKey(Random random) {
+		long count = Math.max(recordCount, recordCount + inserted.get() - threadCount);
+		switch (distribution) {
+		case UNIFORM:
+			return (long)(random.nextDouble() * count);
+		case LATEST:
+			return count - 1 - zipfian.next(random) % count;
+		default:
+			return zipfian.scrambled(random, count);
+		}
+	}
+
+	/**
+	 * @return true if it succeeded
+	 */
+	private boolean perform(MCollection<Object> coll, Operation op, Chooser chooser, Random random) throws MException {
+		switch (op) {
+		case READ:
+			return coll.load(key(nextKey(random))) != null;
+		case UPDATE:
+			long n = nextKey(random);
+			return coll.update(new Query("_id", key(n)), shape.update((int)n)) == 1;
+		case INSERT:
+			long k = chooser.nextInsert();
+			coll.save(shape.create(key(k), (int)k));
+			if (k >= recordCount)
+				inserted.incrementAndGet();
+			return true;
+		default:
+			int length = 1 + random.nextInt(maxScanLength);
+			MCursor<Object> cursor = coll.find(new Query("_id >=", key(nextKey(random)))).sort("_id").limit(length);
+			try {
+				while (cursor.hasNext())
+					cursor.next();
+			} finally {
+				cursor.close();
+			}
+			return true;
+		}
+	}
+
+	private Report execute(final MCollection<Object> coll, long operations, final Chooser chooser) throws InterruptedException {
+		final Report[] reports = new Report[threadCount];
+		Thread[] threads = new Thread[threadCount];
+		// per thread interval between operations, 0 if not throttled
+		final long interval = target > 0 ? (long)(threadCount * 1e9 / target) : 0;
+		final long start = System.nanoTime();
+		for (int t = 0; t < threadCount; t++) {
+			final int index = t;
+			final long count = operations / threadCount + (t < operations % threadCount ? 1 : 0);
+			threads[t] = new Thread("mongodm-workload-" + t) {
+
+				@Override
+				public void run() {
+					Random random = ThreadLocalRandom.current();
+					Report report = new Report();
+					// spreads the threads' operations over the interval
+					long intended = start + interval * index / threadCount;
+					for (long i = 0; i < count; i++) {
+						long begin;
+						if (interval > 0) {
+							long now;
+							while ((now = System.nanoTime()) < intended)
+								LockSupport.parkNanos(intended - now);
+							begin = intended;
+							intended += interval;
+						} else
+							begin = System.nanoTime();
+
+						Operation op = chooser.next(random);
+						boolean ok;
+						try {
+							ok = perform(coll, op, chooser, random);
+						} catch (MException e) {
+							ok = false;
+						} catch (RuntimeException e) {
+							ok = false;
+						}
+						report.record(op, System.nanoTime() - begin, ok);
+					}
+					reports[index] = report;
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread: threads)
+			thread.join();
+
+		Report total = new Report();
+		total.runTime = System.nanoTime() - start;
+		for (Report report: reports)
+			total.add(report);
+		return total;
+	}
+
+	/**
+	 * Throughput and latencies of a phase
+	 */
+	public static class Report {
+
+		private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+		private final Map<Operation, Long> errors = new EnumMap<Operation, Long>(Operation.class);
+		private long runTime;
+
+		void record(Operation op, long nanos, boolean ok) {
+			LatencyHistogram histogram = latencies.get(op);
+			if (histogram == null) {
+				histogram = new LatencyHistogram();
+				latencies.put(op, histogram);
+			}
+			histogram.record(nanos);
+			if (!ok)
+				errors.put(op, getErrors(op) + 1);
+		}
+
+		void add(Report other) {
+			for (Map.Entry<Operation, LatencyHistogram> e: other.latencies.entrySet()) {
+				LatencyHistogram histogram = latencies.get(e.getKey());
+				if (histogram == null) {
+					histogram = new LatencyHistogram();
+					latencies.put(e.getKey(), histogram);
+				}
+				histogram.add(e.getValue());
+			}
+			for (Map.Entry<Operation, Long> e: other.errors.entrySet())
+				errors.put(e.getKey(), getErrors(e.getKey()) + e.getValue());
+		}
+
+		public long getOperations() {
+			long ops = 0;
+			for (LatencyHistogram histogram: latencies.values())
+				ops += histogram.getCount();
+			return ops;
+		}
+
+		public double getThroughput() {
+			return runTime == 0 ? 0 : getOperations() * 1e9 / runTime;
+		}
+
+		public long getRunTimeMillis() {
+			return runTime / 1000000;
+		}
+
+		/**
+		 * @return the latencies of <b>op</b>, in nanoseconds, or null if there was none
+		 */
+		public LatencyHistogram getLatencies(Operation op) {
+			return latencies.get(op);
+		}
+
+		public long getErrors(Operation op) {
+			Long count = errors.get(op);
+			return count == null ? 0 : count;
+		}
+
+		/**
+		 * Prints in the YCSB format, latencies in microseconds
+		 */
+		public void print(PrintStream out, String phase) {
+			out.printf(Locale.ROOT, "[%s], RunTime(ms), %d%n", phase, getRunTimeMillis());
+			out.printf(Locale.ROOT, "[%s], Throughput(ops/sec), %.1f%n", phase, getThroughput());
+			for (Map.Entry<Operation, LatencyHistogram> e: latencies.entrySet()) {
+				String op = e.getKey().name();
+				LatencyHistogram h = e.getValue();
+				out.printf(Locale.ROOT, "[%s], Operations, %d%n", op, h.getCount());
+				out.printf(Locale.ROOT, "[%s], AverageLatency(us), %.1f%n", op, h.getMean() / 1000);
+				out.printf(Locale.ROOT, "[%s], MinLatency(us), %.1f%n", op, h.getMin() / 1000.0);
+				out.printf(Locale.ROOT, "[%s], 50thPercentileLatency(us), %.1f%n", op, h.getPercentile(50) / 1000.0);
+				out.printf(Locale.ROOT, "[%s], 95thPercentileLatency(us), %.1f%n", op, h.getPercentile(95) / 1000.0);
+				out.printf(Locale.ROOT, "[%s], 99thPercentileLatency(us), %.1f%n", op, h.getPercentile(99) / 1000.0);
+				out.printf(Locale.ROOT, "[%s], 99.9thPercentileLatency(us), %.1f%n", op, h.getPercentile(99.9) / 1000.0);
+				out.printf(Locale.ROOT, "[%s], MaxLatency(us), %.1f%n", op, h.getMax() / 1000.0);
+				out.printf(Locale.ROOT, "[%s], Errors, %d%n", op, getErrors(e.getKey()));
+			}
+		}
+	}
+
+	//======
+	// Main
+	//======
+
+	public static void main(String[] args) throws Exception {
+		Properties props = new Properties();
+		for (int i = 0; i < args.length; i++)
+			if (args[i].equals("-P") && i + 1 < args.length) {
+				InputStream in = new FileInputStream(args[++i]);
+				try {
+					props.load(in);
+				} finally {
+					in.close();
+				}
+			} else if (args[i].equals("-p") && i + 1 < args.length) {
+				String[] kv = args[++i].split("=", 2);
+				if (kv.length != 2)
+					throw new IllegalArgumentException("Expected key=value: " + args[i]);
+				props.setProperty(kv[0], kv[1]);
+			} else
+				throw new IllegalArgumentException("Usage: Workload [-P file] [-p key=value]...");
+
+		Workload workload = new Workload(props);
+		String backend = props.getProperty("backend", "memory");
+		String phase = props.getProperty("phase", "both");
+
+		MemoryEngine engine = null;
+		MongoClient client = null;
+		MDB mdb;
+		if (backend.equals("memory")) {
+			String dir = props.getProperty("memory.dir");
+			engine = dir == null ? new MemoryEngine() : new MemoryEngine(new File(dir),
+				MemoryEngine.Sync.valueOf(props.getProperty("memory.sync", "group").toUpperCase(Locale.ROOT)));
+			mdb = new MDB(engine);
+		} else {
+			MongoClientURI uri = new MongoClientURI(backend);
+			if (uri.getDatabase() == null)
+				throw new IllegalArgumentException("No database in " + backend);
+			client = new MongoClient(uri);
+			mdb = new MDB(client.getDB(uri.getDatabase()));
+		}
+
+		try {
+			@SuppressWarnings("unchecked")
+			MCollection<Object> coll = (MCollection<Object>)mdb.getCollection(workload.getShape().getType());
+			if (phase.equals("load") || phase.equals("both"))
+				workload.load(coll).print(System.out, "LOAD");
+			if (phase.equals("run") || phase.equals("both"))
+				workload.run(coll).print(System.out, "RUN");
+		} finally {
+			mdb.close();
+			if (engine != null)
+				engine.close();
+			if (client != null)
+				client.close();
+		}
+	}
+
+}
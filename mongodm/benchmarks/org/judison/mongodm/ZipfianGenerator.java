@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.Random;
+
+/**
+ * Zipfian distributed numbers in <code>[0, items)</code>, 0 being the most popular, as in YCSB
+ * (Gray et al, "Quickly Generating Billion-Record Synthetic Databases").<br>
+ * With {@link #scrambled(Random, long)} the popular items are spread over the key space
+ * instead of being clustered at the start.
+ *
+ * @author judison
+ */
+public class ZipfianGenerator {
+
+	public static final double ZIPFIAN_CONSTANT = 0.99;
+
+	private final long items;
+	private final double theta;
+	private final double zeta2;
+	private final double zetan;
+	private final double alpha;
+	private final double eta;
+
+	public ZipfianGenerator(long items) {
+		this(items, ZIPFIAN_CONSTANT);
+	}
+
+	public ZipfianGenerator(long items, double theta) {
+		if (items <= 0 || theta <= 0 || theta >= 1)
+			throw new IllegalArgumentException();
+		this.items = items;
+		this.theta = theta;
+		this.zeta2 = zeta(2, theta);
+		this.zetan = zeta(items, theta);
+		this.alpha = 1.0 / (1.0 - theta);
+		this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+	}
+
+	private static double zeta(long n, double theta) {
+		double sum = 0;
+		for (long i = 0; i < n; i++)
+			sum += 1 / Math.pow(i + 1, theta);
+		return sum;
+	}
+
+	public long getItems() {
+		return items;
+	}
+
+	public long next(Random random) {
+		double u = random.nextDouble();
+		double uz = u * zetan;
+		if (uz < 1.0)
+			return 0;
+		if (uz < 1.0 + Math.pow(0.5, theta))
+			return 1;
+		long ret = (long)(items * Math.pow(eta * u - eta + 1, alpha));
+		return ret >= items ? items - 1 : ret;
+	}
+
+	/**
+	 * @return a zipfian item hashed into <code>[0, count)</code>, so popularity doesn't follow the key order
+	 */
+	public long scrambled(Random random, long count) {
+		return (fnv(next(random)) & Long.MAX_VALUE) % count;
+	}
+
+	/**
+	 * FNV-1a 64 bits hash of the 8 bytes of <b>value</b>
+	 */
+	static long fnv(long value) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < 8; i++) {
+			hash ^= value & 0xFF;
+			hash *= 0x100000001B3L;
+			value >>>= 8;
+		}
+		return hash;
+	}
+
+}
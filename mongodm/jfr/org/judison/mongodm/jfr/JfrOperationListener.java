@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm.jfr;
+
+import java.util.ArrayDeque;
+
+import org.judison.mongodm.MDB;
+import org.judison.mongodm.OperationEvent;
+import org.judison.mongodm.OperationListener;
+import org.judison.mongodm.OperationType;
+
+/**
+ * Emits the operations of a {@link MDB} as Java Flight Recorder events:
+ * <ul>
+ * <li><code>mongodm.Find</code>: load, findOne and the first read of a find</li>
+ * <li><code>mongodm.CursorBatch</code>: the next batches of a cursor</li>
+ * <li><code>mongodm.Save</code>, <code>mongodm.Update</code> (also findAndModify/findAndRemove), <code>mongodm.Remove</code></li>
+ * <li><code>mongodm.Count</code>, <code>mongodm.Aggregate</code>, <code>mongodm.Command</code></li>
+ * <li><code>mongodm.IndexEnsure</code>: index creation, when a collection is first used</li>
+ * <li><code>mongodm.Map</code>: the mapping time of each operation</li>
+ * </ul>
+ * The thresholds are the usual JFR <code>threshold</code> setting, except for CursorBatch and Map, that
+ * use <code>minTime</code>, see <code>mongodm.jfc</code>. All default to 10 ms.<br>
+ * When JFR isn't recording, each operation costs a couple of checks.
+ * Needs Java 11 or later, unlike the rest of mongodm.
+ *
+ * @author judison
+ */
+public class JfrOperationListener implements OperationListener {
+
+	private static final MongodmEvent DISABLED = new FindEvent();
+
+	// operations nest (a page resolving references, etc), so started/finished pair as a stack
+	private final ThreadLocal<ArrayDeque<MongodmEvent>> running = new ThreadLocal<ArrayDeque<MongodmEvent>>() {
+
+		@Override
+		protected ArrayDeque<MongodmEvent> initialValue() {
+			return new ArrayDeque<MongodmEvent>();
+		}
+	};
+
+	/**
+	 * Adds a new JfrOperationListener to <b>mdb</b>
+	 */
+	public static JfrOperationListener register(MDB mdb) {
+		JfrOperationListener listener = new JfrOperationListener();
+		mdb.addListener(listener);
+		return listener;
+	}
+
+	private static MongodmEvent create(OperationType type) {
+		switch (type) {
+		case LOAD:
+		case FIND:
+			return new FindEvent();
+		case NEXT_BATCH:
+			return new CursorBatchEvent();
+		case SAVE:
+			return new SaveEvent();
+		case UPDATE:
+		case FIND_AND_MODIFY:
+			return new UpdateEvent();
+		case REMOVE:
+			return new RemoveEvent();
+		case COUNT:
+			return new CountEvent();
+		case AGGREGATE:
+			return new AggregateEvent();
+		case COMMAND:
+			return new CommandEvent();
+		case ENSURE_INDEX:
+			return new IndexEnsureEvent();
+		default:
+			return DISABLED;
+		}
+	}
+
+	@Override
+	public void operationStarted(OperationEvent event) {
+		MongodmEvent jfr = create(event.getType());
+		if (jfr == DISABLED || !jfr.isEnabled())
+			jfr = DISABLED;
+		else
+			jfr.begin();
+		running.get().push(jfr);
+	}
+
+	@Override
+	public void operationFinished(OperationEvent event) {
+		MongodmEvent jfr = running.get().poll();
+		if (jfr != null && jfr != DISABLED) {
+			jfr.end();
+			if (jfr instanceof CursorBatchEvent)
+				((CursorBatchEvent)jfr).time = event.getNanos();
+			if (jfr.shouldCommit()) {
+				jfr.operation = event.getType().name();
+				jfr.collection = event.getCollection();
+				jfr.entityClass = event.getEntityClass();
+				jfr.query = event.getQueryShape() == null ? null : event.getQueryShape().toString();
+				jfr.documents = event.getDocCount();
+				jfr.bytes = event.getByteCount();
+				jfr.networkTime = event.getNetworkNanos();
+				jfr.decodeTime = event.getDecodeNanos();
+				jfr.mappingTime = event.getMappingNanos();
+				jfr.failed = !event.isOk();
+				jfr.commit();
+			}
+		}
+
+		if (event.getMappingNanos() > 0) {
+			MapEvent map = new MapEvent();
+			if (map.isEnabled()) {
+				map.mappingTime = event.getMappingNanos();
+				if (map.shouldCommit()) {
+					map.operation = event.getType().name();
+					map.collection = event.getCollection();
+					map.entityClass = event.getEntityClass();
+					map.documents = event.getDocCount();
+					map.commit();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.Timespan;
+
+/**
+ * The mapping done in an operation, between entities and documents.<br>
+ * It's spread over the operation, so this event has no duration of its own, the time is in
+ * <b>mappingTime</b>, and the threshold is the <b>minTime</b> setting.<br>
+ * The documents of a cursor are mapped as it's iterated, outside of any operation, that time is only
+ * in the {@link org.judison.mongodm.OperationMetrics}.
+ *
+ * @author judison
+ */
+@Name("mongodm.Map")
+@Label("MongODM Map")
+@Description("Mapping between entities and documents in an operation")
+@Category("MongODM")
+final class MapEvent extends Event {
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Collection")
+	String collection;
+
+	@Label("Entity Class")
+	Class<?> entityClass;
+
+	@Label("Documents")
+	long documents;
+
+	@Label("Mapping Time")
+	@Timespan
+	long mappingTime;
+
+	@Name("minTime")
+	@Label("Minimum Time")
+	@SettingDefinition
+	protected boolean minTime(TimeThreshold threshold) {
+		return threshold.accepts(mappingTime);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm.jfr;
+
+import java.util.Locale;
+import java.util.Set;
+
+import jdk.jfr.SettingControl;
+
+/**
+ * A threshold over a time field, for events whose own duration isn't the time they measure,
+ * set as <code>"10 ms"</code> (the default), <code>"500 us"</code>, etc. With many recordings the lowest one wins.
+ *
+ * @author judison
+ */
+public final class TimeThreshold extends SettingControl {
+
+	private volatile String value = "10 ms";
+	private volatile long nanos = 10000000L;
+
+	static long parse(String value) {
+		String s = value.trim().toLowerCase(Locale.ROOT);
+		if (s.isEmpty() || s.equals("0"))
+			return 0;
+		int i = 0;
+		while (i < s.length() && Character.isDigit(s.charAt(i)))
+			i++;
+		if (i == 0)
+			throw new IllegalArgumentException("Invalid time: " + value);
+		long n = Long.parseLong(s.substring(0, i));
+		String unit = s.substring(i).trim();
+		if (unit.equals("ns"))
+			return n;
+		if (unit.equals("us"))
+			return n * 1000L;
+		if (unit.equals("ms"))
+			return n * 1000000L;
+		if (unit.equals("s"))
+			return n * 1000000000L;
+		if (unit.equals("m"))
+			return n * 60000000000L;
+		throw new IllegalArgumentException("Invalid time unit: " + value);
+	}
+
+	@Override
+	public String combine(Set<String> values) {
+		String min = null;
+		long minNanos = Long.MAX_VALUE;
+		for (String v: values)
+			try {
+				long n = parse(v);
+				if (n < minNanos) {
+					minNanos = n;
+					min = v;
+				}
+			} catch (IllegalArgumentException e) {
+				// ignored, as JFR does with invalid thresholds
+			}
+		return min == null ? "0 ns" : min;
+	}
+
+	@Override
+	public void setValue(String value) {
+		try {
+			this.nanos = parse(value);
+			this.value = value;
+		} catch (IllegalArgumentException e) {
+			// keeps the previous value
+		}
+	}
+
+	@Override
+	public String getValue() {
+		return value;
+	}
+
+	boolean accepts(long time) {
+		return time >= nanos;
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.List;
+
+import org.judison.mongodm.converter.TypeConverter;
+
+/**
+ * A typed reference to a stored property of an entity, resolved once through the mapping:
+ * it knows the stored name (with @Property/@Id renames and embedded paths), the Java type and the {@link TypeConverter}.<br>
+ * Usually they are constants of a metamodel class generated by {@link MetamodelGenerator}, like <code>User_.email</code>
+ * or <code>User_.address.city</code>, and are accepted by {@link Query}, {@link Update}, {@link Projection} and {@link Pipeline}.
+ * For sorts use {@link #asc()}/{@link #desc()}, and {@link #ref()} for aggregation expressions.<br>
+ * A path that doesn't exist anymore fails when the metamodel class is loaded, not silently in the database.
+ *
+ * @author judison
+ */
+public class Attribute<V> {
+
+	private static final Mapper MAPPER = new Mapper(null);
+
+	private final String name;
+	private final Class<?> type;
+	private final PropertyInfo property;
+	private final TypeConverter<Object> converter;
+	private final TypeConverter<Object> itemConverter;
+
+	/**
+	 * Used by generated metamodels, for embedded properties with their own attributes
+	 */
+	protected Attribute(Attribute<V> attr) {
+		this.name = attr.name;
+		this.type = attr.type;
+		this.property = attr.property;
+		this.converter = attr.converter;
+		this.itemConverter = attr.itemConverter;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Attribute(String name, PropertyInfo property) {
+		this.name = name;
+		this.type = property.cls;
+		this.property = property;
+		this.converter = property.type == PropertyInfo.Type.SIMPLE && !property.geoJson ? (TypeConverter<Object>)Mapper.getTypeConverter(property.cls) : null;
+		this.itemConverter = property.type == PropertyInfo.Type.ARRAY && property.itemCls != null ? (TypeConverter<Object>)Mapper.getTypeConverter(property.itemCls) : null;
+	}
+
+	/**
+	 * @param path the Java field names, separated by dots for embedded properties, like "address.city"
+	 */
+	public static <V> Attribute<V> of(Class<?> entity, String path) {
+		TypeInfo typeInfo = Mapper.getTypeInfo(entity);
+		StringBuilder name = new StringBuilder();
+		PropertyInfo property = null;
+		for (String part: path.split("\\.")) {
+			if (property != null) {
+				if (property.subType != null)
+					typeInfo = property.subType;
+				else if (property.type == PropertyInfo.Type.ARRAY && property.itemCls != null && Mapper.getTypeInfo(property.itemCls, false) != null)
+					typeInfo = Mapper.getTypeInfo(property.itemCls);
+				else
+					throw new IllegalArgumentException("'" + name + "' of " + entity.getName() + " has no properties");
+				name.append('.');
+			}
+			property = null;
+			for (PropertyInfo pi: typeInfo.properties.values())
+				if (pi.field.getName().equals(part)) {
+					property = pi;
+					break;
+				}
+			if (property == null)
+				throw new IllegalArgumentException(entity.getName() + " has no property '" + path + "'");
+			name.append(property.name);
+		}
+		return new Attribute<V>(name.toString(), property);
+	}
+
+	/**
+	 * @return the stored name, with dots for embedded properties
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public TypeConverter<?> getConverter() {
+		return converter;
+	}
+
+	/**
+	 * Converts <b>value</b> to what's stored, for an array property it can also be a single item
+	 */
+	public Object toBson(Object value) {
+		if (value == null)
+			return null;
+		if (converter != null)
+			return converter.javaToBson(value);
+		switch (property.type) {
+		case ENUM:
+			return ((Enum<?>)value).name();
+		case REFERENCE:
+			return MAPPER.javaToBson(value instanceof Ref ? ((Ref<?>)value).getId() : value);
+		case ARRAY:
+			if (!(value instanceof List) && !value.getClass().isArray()) {
+				if (itemConverter != null)
+					return itemConverter.javaToBson(value);
+				if (value instanceof Enum)
+					return ((Enum<?>)value).name();
+				return MAPPER.javaToBson(value);
+			}
+			return MAPPER.javaToBson(value, property);
+		default:
+			return MAPPER.javaToBson(value, property);
+		}
+	}
+
+	/**
+	 * @return the name, for an ascending sort
+	 */
+	public String asc() {
+		return name;
+	}
+
+	/**
+	 * @return the name prefixed by '-', for a descending sort
+	 */
+	public String desc() {
+		return '-' + name;
+	}
+
+	/**
+	 * @return the name prefixed by '$', for aggregation expressions
+	 */
+	public String ref() {
+		return '$' + name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
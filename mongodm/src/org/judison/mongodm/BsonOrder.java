@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+/**
+ * The total order of BSON values used by the server to sort and to index:
+ * MinKey, null, numbers, strings, objects, arrays, binary, ObjectId, booleans, dates, timestamps, regexes, MaxKey.
+ *
+ * @author judison
+ */
+final class BsonOrder implements Comparator<Object> {
+
+	static final BsonOrder INSTANCE = new BsonOrder();
+
+	/**
+	 * Sorts before (or after) every value of a type, to scan a whole type in a sorted index
+	 */
+	static final class Bound {
+		final int rank;
+		final int side;
+
+		Bound(int rank, int side) {
+			this.rank = rank;
+			this.side = side;
+		}
+	}
+
+	static final Object MIN = new MinKey();
+	static final Object MAX = new MaxKey();
+
+	private BsonOrder() {}
+
+	@Override
+	public int compare(Object a, Object b) {
+		return compareValues(a, b);
+	}
+
+	static int rank(Object value) {
+		if (value instanceof Bound)
+			return ((Bound)value).rank;
+		if (value instanceof MinKey)
+			return 0;
+		if (value == null)
+			return 1;
+		if (value instanceof Number)
+			return 2;
+		if (value instanceof String || value instanceof Symbol)
+			return 3;
+		if (value instanceof List)
+			return 5;
+		if (value instanceof BSONObject)
+			return 4;
+		if (value instanceof byte[] || value instanceof Binary)
+			return 6;
+		if (value instanceof ObjectId)
+			return 7;
+		if (value instanceof Boolean)
+			return 8;
+		if (value instanceof Date)
+			return 9;
+		if (value instanceof BSONTimestamp)
+			return 10;
+		if (value instanceof Pattern)
+			return 11;
+		if (value instanceof MaxKey)
+			return 12;
+		return 4;
+	}
+
+	static int compareValues(Object a, Object b) {
+		int ra = rank(a);
+		int rb = rank(b);
+		if (ra != rb)
+			return ra < rb ? -1 : 1;
+		if (a instanceof Bound || b instanceof Bound) {
+			int sa = a instanceof Bound ? ((Bound)a).side : 0;
+			int sb = b instanceof Bound ? ((Bound)b).side : 0;
+			return sa < sb ? -1 : (sa == sb ? 0 : 1);
+		}
+		switch (ra) {
+		case 2:
+			return QueryMatcher.compareNumbers((Number)a, (Number)b);
+		case 3:
+			return a.toString().compareTo(b.toString());
+		case 4: {
+			BSONObject oa = (BSONObject)a;
+			BSONObject ob = (BSONObject)b;
+			List<String> ka = new ArrayList<String>(oa.keySet());
+			List<String> kb = new ArrayList<String>(ob.keySet());
+			for (int i = 0; i < ka.size() && i < kb.size(); i++) {
+				int c = ka.get(i).compareTo(kb.get(i));
+				if (c != 0)
+					return c;
+				c = compareValues(oa.get(ka.get(i)), ob.get(kb.get(i)));
+				if (c != 0)
+					return c;
+			}
+			return ka.size() - kb.size();
+		}
+		case 5: {
+			List<?> la = (List<?>)a;
+			List<?> lb = (List<?>)b;
+			for (int i = 0; i < la.size() && i < lb.size(); i++) {
+				int c = compareValues(la.get(i), lb.get(i));
+				if (c != 0)
+					return c;
+			}
+			return la.size() - lb.size();
+		}
+		case 6: {
+			byte[] ba = a instanceof Binary ? ((Binary)a).getData() : (byte[])a;
+			byte[] bb = b instanceof Binary ? ((Binary)b).getData() : (byte[])b;
+			if (ba.length != bb.length)
+				return ba.length - bb.length;
+			for (int i = 0; i < ba.length; i++)
+				if (ba[i] != bb[i])
+					return (ba[i] & 0xFF) - (bb[i] & 0xFF);
+			return 0;
+		}
+		case 7:
+			return ((ObjectId)a).compareTo((ObjectId)b);
+		case 8:
+			return ((Boolean)a).compareTo((Boolean)b);
+		case 9:
+			return ((Date)a).compareTo((Date)b);
+		case 10:
+			return ((BSONTimestamp)a).compareTo((BSONTimestamp)b);
+		case 11:
+			return ((Pattern)a).pattern().compareTo(((Pattern)b).pattern());
+		default:
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link MCollection}, registered with its {@link MDB} as
+ * <code>org.judison.mongodm:type=Collection,mdb=&lt;name&gt;,name=&lt;collection&gt;</code>
+ *
+ * @author judison
+ */
+public interface CollectionMXBean {
+
+	String getName();
+
+	String getEntityClass();
+
+	long getOperationCount();
+
+	long getErrorCount();
+
+	long getTotalTimeMillis();
+
+	long getMappingTimeMillis();
+
+	/**
+	 * @return the stats of each {@link OperationType}, by name
+	 */
+	Map<String, OperationSnapshot> getOperations();
+
+	boolean isWriteBehindEnabled();
+
+	int getWriteBehindPendingCount();
+
+	/**
+	 * @return the fraction of buffered writes coalesced into an already pending one, from 0 to 1
+	 */
+	double getWriteBehindCoalesceRate();
+
+	void resetMetrics();
+
+	void flushWriteBehind() throws MException;
+
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.MongoException;
+
+/**
+ * Sums counter increments in memory, and writes them periodically as bulk <code>$inc</code> updates.<br>
+ * Increments are kept per (collection, <code>_id</code>, field) in {@link LongAdder}s, so
+ * {@link #inc(MCollection, Object, String, long)} never blocks nor touches the database, and
+ * thousands of increments of the same counter become a single write.<br>
+ * Counters without increments for a whole interval are dropped from memory.
+ *
+ * @author judison
+ */
+public class CounterBatcher {
+
+	private static final class Key {
+		final MCollection<?> coll;
+		final Object id;
+		final String field;
+		final int hash;
+
+		Key(MCollection<?> coll, Object id, String field) {
+			this.coll = coll;
+			this.id = id;
+			this.field = field;
+			this.hash = (System.identityHashCode(coll) * 31 + id.hashCode()) * 31 + field.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return coll == other.coll && id.equals(other.id) && field.equals(other.field);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class Counter {
+		final Key key;
+		final LongAdder adder = new LongAdder();
+		// only touched while flushing
+		long flushed;
+		boolean idle;
+
+		Counter(Key key) {
+			this.key = key;
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Counter> counters = new ConcurrentHashMap<Key, Counter>();
+	// removed counters, flushed once more in case of an increment racing with the removal
+	private List<Counter> retired = new ArrayList<Counter>();
+	private final boolean upsert;
+	private final ScheduledExecutorService scheduler;
+	private final Object flushLock = new Object();
+
+	private final LongAdder increments = new LongAdder();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile MException lastError;
+
+	/**
+	 * @param interval the flush interval, in milliseconds
+	 * @param upsert if true, the counter's document is created if it doesn't exist
+	 */
+	public CounterBatcher(long interval, boolean upsert) {
+		if (interval <= 0)
+			throw new IllegalArgumentException();
+		this.upsert = upsert;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mongodm-counter-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (MException e) {
+					// already counted in errors/lastError, the increments are retried on the next flush
+				} catch (RuntimeException e) {
+					// never let it escape, it would cancel the periodic flush
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public void inc(MCollection<?> coll, Object id, String field) {
+		inc(coll, id, field, 1);
+	}
+
+	public void inc(MCollection<?> coll, Object id, String field, long amount) {
+		if (coll == null || id == null || field == null)
+			throw new IllegalArgumentException();
+		Key key = new Key(coll, id, field);
+		Counter counter = counters.get(key);
+		if (counter == null) {
+			Counter created = new Counter(key);
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null)
+				counter = created;
+		}
+		counter.adder.add(amount);
+		increments.increment();
+	}
+
+	/**
+	 * @return the amount not yet written for the counter
+	 */
+	public long getPending(MCollection<?> coll, Object id, String field) {
+		Counter counter = counters.get(new Key(coll, id, field));
+		if (counter == null)
+			return 0;
+		synchronized (flushLock) {
+			return counter.adder.sum() - counter.flushed;
+		}
+	}
+
+	/**
+	 * Writes all pending increments now, in the caller's thread.<br>
+	 * If the write fails, the increments are kept and retried on the next flush.
+	 */
+	public void flush() throws MException {
+		synchronized (flushLock) {
+			List<Counter> all = new ArrayList<Counter>(counters.values());
+			Set<Counter> retiring = new HashSet<Counter>(retired);
+			all.addAll(retiring);
+			retired = new ArrayList<Counter>();
+
+			// one $inc per document, with the counters it carries
+			Map<MCollection<?>, Map<Object, Doc>> docs = new LinkedHashMap<MCollection<?>, Map<Object, Doc>>();
+			for (Counter counter: all) {
+				long delta = counter.adder.sum() - counter.flushed;
+				if (delta == 0) {
+					if (counter.idle) {
+						if (counters.remove(counter.key, counter))
+							retired.add(counter);
+					} else
+						counter.idle = true;
+					continue;
+				}
+				counter.idle = false;
+				if (retiring.contains(counter))
+					retired.add(counter);
+
+				Map<Object, Doc> byId = docs.get(counter.key.coll);
+				if (byId == null) {
+					byId = new LinkedHashMap<Object, Doc>();
+					docs.put(counter.key.coll, byId);
+				}
+				Doc doc = byId.get(counter.key.id);
+				if (doc == null) {
+					doc = new Doc(counter.key.id);
+					byId.put(counter.key.id, doc);
+				}
+				doc.add(counter, delta);
+			}
+
+			MException error = null;
+			for (Entry<MCollection<?>, Map<Object, Doc>> e: docs.entrySet()) {
+				List<Doc> list = new ArrayList<Doc>(e.getValue().values());
+				Set<Integer> failed;
+				try {
+					failed = write(e.getKey(), list);
+				} catch (MException ex) {
+					// nothing known to be applied, all retried
+					errors.incrementAndGet();
+					error = ex;
+					lastError = error;
+					continue;
+				}
+				for (int k = 0; k < list.size(); k++)
+					if (!failed.contains(k)) {
+						list.get(k).markFlushed();
+						writes.incrementAndGet();
+					}
+				if (!failed.isEmpty()) {
+					errors.incrementAndGet();
+					error = lastError;
+				}
+			}
+			flushes.incrementAndGet();
+			if (error != null)
+				throw error;
+		}
+	}
+
+	private static final class Doc {
+		final Object id;
+		final Update update = new Update();
+		final List<Counter> counters = new ArrayList<Counter>(1);
+		final List<Long> deltas = new ArrayList<Long>(1);
+
+		Doc(Object id) {
+			this.id = id;
+		}
+
+		void add(Counter counter, long delta) {
+			update.inc(counter.key.field, delta);
+			counters.add(counter);
+			deltas.add(delta);
+		}
+
+		void markFlushed() {
+			for (int i = 0; i < counters.size(); i++)
+				counters.get(i).flushed += deltas.get(i);
+		}
+	}
+
+	/**
+	 * Writes the $inc of each document of a collection
+	 *
+	 * @return the indexes of the documents that failed, their increments are retried (lastError is set)
+	 * @throws MException if it's unknown which ones were written
+	 */
+	private Set<Integer> write(MCollection<?> coll, List<Doc> docs) throws MException {
+		Set<Integer> failed = new HashSet<Integer>();
+		MemoryCollection memory = coll.getMemoryCollection();
+		if (memory != null) {
+			// no bulk writes in memory, each update is applied on its own
+			for (int k = 0; k < docs.size(); k++)
+				try {
+					memory.update(new MObject("_id", docs.get(k).id), docs.get(k).update.toMObject(), upsert, false);
+				} catch (MException ex) {
+					failed.add(k);
+					lastError = ex;
+				}
+			return failed;
+		}
+		try {
+			BulkWriteOperation bulk = coll.getDBCollection().initializeUnorderedBulkOperation();
+			for (Doc doc: docs)
+				if (upsert)
+					bulk.find(new MObject("_id", doc.id)).upsert().updateOne(doc.update.toMObject());
+				else
+					bulk.find(new MObject("_id", doc.id)).updateOne(doc.update.toMObject());
+			bulk.execute();
+			return failed;
+		} catch (BulkWriteException ex) {
+			// unordered, every request without a write error was applied, only the others are retried
+			failed.addAll(failedIndexes(ex.getWriteErrors()));
+			lastError = new MException(ex);
+			return failed;
+		} catch (MongoException ex) {
+			throw new MException(ex);
+		} catch (RuntimeException ex) {
+			throw new MException("Counter flush failed", ex);
+		}
+	}
+
+	/**
+	 * @return the indexes of the requests of an unordered bulk that failed
+	 */
+	static Set<Integer> failedIndexes(List<BulkWriteError> writeErrors) {
+		Set<Integer> failed = new HashSet<Integer>();
+		for (BulkWriteError we: writeErrors)
+			failed.add(we.getIndex());
+		return failed;
+	}
+
+	/**
+	 * Flushes everything and stops the background flushing
+	 */
+	public void close() throws MException {
+		scheduler.shutdown();
+		flush();
+	}
+
+	/**
+	 * @return the number of {@link #inc(MCollection, Object, String, long)} calls
+	 */
+	public long getIncrementCount() {
+		return increments.sum();
+	}
+
+	/**
+	 * @return the number of documents updated by flushes
+	 */
+	public long getWriteCount() {
+		return writes.get();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	public MException getLastError() {
+		return lastError;
+	}
+
+	public int getCounterCount() {
+		return counters.size();
+	}
+
+}
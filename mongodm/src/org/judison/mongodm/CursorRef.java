@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.mongodb.Cursor;
+
+/**
+ * The tracking entry of an open {@link MCursor}.<br>
+ * It holds what is needed to close the driver cursor, but not the MCursor itself, so a cursor
+ * that is never closed can still be collected, and then closed by {@link MDB} when this reference is enqueued.
+ *
+ * @author judison
+ */
+final class CursorRef extends PhantomReference<MCursor<?>> {
+
+	final MCollection<?> coll;
+	private final Cursor cursor;
+	// where the cursor was created, only with site tracking or leak detection
+	final Throwable site;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	CursorRef(MCursor<?> referent, ReferenceQueue<? super MCursor<?>> queue, MCollection<?> coll, Cursor cursor, Throwable site) {
+		super(referent, queue);
+		this.coll = coll;
+		this.cursor = cursor;
+		this.site = site;
+	}
+
+	/**
+	 * Closes the driver cursor, only on the first call
+	 *
+	 * @return true on the first call
+	 */
+	boolean close() {
+		if (!closed.compareAndSet(false, true))
+			return false;
+		cursor.close();
+		return true;
+	}
+
+	/**
+	 * @return the first frames of the caller that created the cursor, or "?" without a site
+	 */
+	String getSite() {
+		if (site == null)
+			return "?";
+		StringBuilder buf = new StringBuilder();
+		int frames = 0;
+		for (StackTraceElement frame: site.getStackTrace()) {
+			String cls = frame.getClassName();
+			if (buf.length() == 0 && (cls.startsWith(CursorRef.class.getName()) || cls.startsWith(MCursor.class.getName()) || cls.startsWith(MCollection.class.getName()) || cls.startsWith(MDB.class.getName())))
+				continue;
+			if (frames > 0)
+				buf.append(" <- ");
+			buf.append(frame);
+			if (++frames == 3)
+				break;
+		}
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+/**
+ * {@link FindCursor} over the driver's DBCursor
+ *
+ * @author judison
+ */
+final class DriverFindCursor implements FindCursor {
+
+	private final DBCursor cursor;
+
+	DriverFindCursor(DBCursor cursor) {
+		this.cursor = cursor;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return cursor.hasNext();
+	}
+
+	@Override
+	public DBObject next() {
+		return cursor.next();
+	}
+
+	@Override
+	public void remove() {
+		cursor.remove();
+	}
+
+	@Override
+	public long getCursorId() {
+		return cursor.getCursorId();
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		return cursor.getServerAddress();
+	}
+
+	@Override
+	public void close() {
+		cursor.close();
+	}
+
+	@Override
+	public FindCursor sort(DBObject orderBy) {
+		cursor.sort(orderBy);
+		return this;
+	}
+
+	@Override
+	public FindCursor limit(int limit) {
+		cursor.limit(limit);
+		return this;
+	}
+
+	@Override
+	public FindCursor skip(int skip) {
+		cursor.skip(skip);
+		return this;
+	}
+
+	@Override
+	public FindCursor batchSize(int batchSize) {
+		cursor.batchSize(batchSize);
+		return this;
+	}
+
+	@Override
+	public int getBatchSize() {
+		return cursor.getBatchSize();
+	}
+
+	@Override
+	public int count() {
+		return cursor.count();
+	}
+
+	@Override
+	public int size() {
+		return cursor.size();
+	}
+
+	@Override
+	public FindCursor copy() {
+		return new DriverFindCursor(cursor.copy());
+	}
+
+	@Override
+	public DBObject getQuery() {
+		return cursor.getQuery();
+	}
+
+	@Override
+	public DBObject getKeysWanted() {
+		return cursor.getKeysWanted();
+	}
+
+	@Override
+	public FindCursor find(DBObject query, DBObject keys) {
+		return new DriverFindCursor(cursor.getCollection().find(query, keys));
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The results of a $facet stage, see {@link Pipeline#facet(String, Pipeline)} and {@link MCollection#facets(Pipeline)}.<br>
+ * Each facet is split out of the single reply, as raw {@link MObject}s or mapped to a result class.
+ *
+ * @author judison
+ */
+public class Facets {
+
+	private final MObject result;
+	private final Mapper mapper;
+
+	Facets(MObject result, Mapper mapper) {
+		this.result = result == null ? new MObject() : result;
+		this.mapper = mapper;
+	}
+
+	public Set<String> getNames() {
+		return result.keySet();
+	}
+
+	/**
+	 * @return the documents of the <b>name</b> facet, or an empty list if there isn't such facet
+	 */
+	public List<MObject> get(String name) {
+		Object value = result.get(name);
+		if (value == null)
+			return Collections.emptyList();
+		if (!(value instanceof MList))
+			throw new IllegalArgumentException("'" + name + "' is not a facet");
+		List<MObject> list = new ArrayList<MObject>();
+		for (Object obj: (MList)value)
+			list.add((MObject)obj);
+		return list;
+	}
+
+	/**
+	 * @return the documents of the <b>name</b> facet, mapped to <b>cls</b> (an @Entity or @Embedded class)
+	 */
+	public <R> List<R> get(String name, Class<R> cls) {
+		List<MObject> docs = get(name);
+		List<R> list = new ArrayList<R>(docs.size());
+		for (MObject doc: docs)
+			list.add(mapper.bsonToJava(cls, doc));
+		return list;
+	}
+
+	/**
+	 * @return the first document of the <b>name</b> facet, or <code>null</code>
+	 */
+	public MObject getFirst(String name) {
+		List<MObject> docs = get(name);
+		return docs.isEmpty() ? null : docs.get(0);
+	}
+
+	/**
+	 * @return the value of <b>field</b> in the first document of the <b>name</b> facet, as a long,
+	 * or 0 if there's none (as in a facet ending in {@link Pipeline#count(String)} without documents)
+	 */
+	public long getCount(String name, String field) {
+		MObject first = getFirst(name);
+		if (first == null)
+			return 0;
+		Object value = first.get(field);
+		return value instanceof Number ? ((Number)value).longValue() : 0;
+	}
+
+	public MObject toMObject() {
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+/**
+ * Options of {@link MCollection#findAndModify(Query, Update, FindAndModifyOptions)}
+ * and {@link MCollection#findAndRemove(Query, FindAndModifyOptions)}.
+ *
+ * @author judison
+ */
+public class FindAndModifyOptions {
+
+	private boolean returnNew = false;
+	private boolean upsert = false;
+	private MObject sort = null;
+	private MObject projection = null;
+
+	public FindAndModifyOptions() {}
+
+	/**
+	 * Returns the modified document, instead of the original one (default)
+	 */
+	public FindAndModifyOptions returnNew() {
+		return returnNew(true);
+	}
+
+	public FindAndModifyOptions returnNew(boolean returnNew) {
+		this.returnNew = returnNew;
+		return this;
+	}
+
+	/**
+	 * Inserts a new document if the query doesn't match any
+	 */
+	public FindAndModifyOptions upsert() {
+		return upsert(true);
+	}
+
+	public FindAndModifyOptions upsert(boolean upsert) {
+		this.upsert = upsert;
+		return this;
+	}
+
+	/**
+	 * Chooses which document is modified, if the query matches more than one
+	 */
+	public FindAndModifyOptions sort(String... fields) {
+		this.sort = IndexInfo.parseFields(fields);
+		return this;
+	}
+
+	public FindAndModifyOptions sort(MObject sort) {
+		this.sort = sort;
+		return this;
+	}
+
+	public FindAndModifyOptions projection(Projection projection) {
+		this.projection = projection.toMObject();
+		return this;
+	}
+
+	public FindAndModifyOptions projection(MObject projection) {
+		this.projection = projection;
+		return this;
+	}
+
+	public boolean isReturnNew() {
+		return returnNew;
+	}
+
+	public boolean isUpsert() {
+		return upsert;
+	}
+
+	public MObject getSort() {
+		return sort;
+	}
+
+	public MObject getProjection() {
+		return projection;
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+/**
+ * The cursor of a find behind a {@link MCursor}, over the driver's DBCursor or a {@link MemoryCollection}
+ *
+ * @author judison
+ */
+interface FindCursor extends Cursor {
+
+	FindCursor sort(DBObject orderBy);
+
+	FindCursor limit(int limit);
+
+	FindCursor skip(int skip);
+
+	FindCursor batchSize(int batchSize);
+
+	int getBatchSize();
+
+	/**
+	 * @return the number of documents matching the query, not taking limit/skip into consideration
+	 */
+	int count();
+
+	/**
+	 * @return the number of documents matching the query, taking limit/skip into consideration
+	 */
+	int size();
+
+	/**
+	 * @return a new cursor, not started, with the same query, projection, sort, limit and skip
+	 */
+	FindCursor copy();
+
+	DBObject getQuery();
+
+	DBObject getKeysWanted();
+
+	/**
+	 * @return a new cursor over the same collection, with other <b>query</b> and <b>keys</b>
+	 */
+	FindCursor find(DBObject query, DBObject keys);
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.Collection;
+
+/**
+ * Many points in <code>double[]</code> columns, for computing distances, bearings, radius filters and
+ * k-nearest from one point to all of them, without a {@link LatLng} per point.<br>
+ * The radians, sines and cosines of each point are computed once, in the constructor,
+ * and each operation is a plain loop over the columns; radius and k-nearest compare the haversine term
+ * directly, so only the points returned pay for the square roots and the arc tangent.<br>
+ * Immutable, so it can be shared between threads.
+ *
+ * @author judison
+ */
+public final class GeoBatch {
+
+	private final int size;
+	private final double[] lat;
+	private final double[] lng;
+	// derived columns, in radians
+	private final double[] latR;
+	private final double[] lngR;
+	private final double[] sinLat;
+	private final double[] cosLat;
+
+	/**
+	 * @param lat latitudes in degrees, copied
+	 * @param lng longitudes in degrees, copied
+	 */
+	public GeoBatch(double[] lat, double[] lng) {
+		if (lat == null || lng == null || lat.length != lng.length)
+			throw new IllegalArgumentException();
+		this.size = lat.length;
+		this.lat = lat.clone();
+		this.lng = lng.clone();
+		this.latR = new double[size];
+		this.lngR = new double[size];
+		this.sinLat = new double[size];
+		this.cosLat = new double[size];
+		for (int i = 0; i < size; i++) {
+			// the copies, the caller's arrays can change meanwhile
+			if (Double.isNaN(this.lat[i]) || Double.isNaN(this.lng[i]) || this.lat[i] < -90 || this.lat[i] > 90)
+				throw new IllegalArgumentException("Invalid point at " + i);
+			latR[i] = Math.toRadians(this.lat[i]);
+			lngR[i] = Math.toRadians(this.lng[i]);
+			sinLat[i] = Math.sin(latR[i]);
+			cosLat[i] = Math.cos(latR[i]);
+		}
+	}
+
+	public GeoBatch(Collection<LatLng> points) {
+		this(latitudes(points), longitudes(points));
+	}
+
+	private static double[] latitudes(Collection<LatLng> points) {
+		double[] lat = new double[points.size()];
+		int i = 0;
+		for (LatLng point: points)
+			lat[i++] = point.getLatitude();
+		return lat;
+	}
+
+	private static double[] longitudes(Collection<LatLng> points) {
+		double[] lng = new double[points.size()];
+		int i = 0;
+		for (LatLng point: points)
+			lng[i++] = point.getLongitude();
+		return lng;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double getLatitude(int i) {
+		return lat[i];
+	}
+
+	public double getLongitude(int i) {
+		return lng[i];
+	}
+
+	public LatLng get(int i) {
+		return new LatLng(lat[i], lng[i]);
+	}
+
+	//==========
+	// Distance
+	//==========
+
+	/**
+	 * @return the distance, in meters, from <b>from</b> to each point
+	 */
+	public double[] distances(LatLng from) {
+		return distances(from, new double[size]);
+	}
+
+	/**
+	 * @param out where the distances are written, reused between calls to avoid garbage
+	 */
+	public double[] distances(LatLng from, double[] out) {
+		if (out.length < size)
+			throw new IllegalArgumentException("out is too small");
+		haversines(from, out);
+		for (int i = 0; i < size; i++)
+			out[i] = toMeters(out[i]);
+		return out;
+	}
+
+	/**
+	 * @return the initial bearing, in degrees, from <b>from</b> to each point
+	 */
+	public double[] bearings(LatLng from) {
+		return bearings(from, new double[size]);
+	}
+
+	public double[] bearings(LatLng from, double[] out) {
+		if (out.length < size)
+			throw new IllegalArgumentException("out is too small");
+		final double lat0 = Math.toRadians(from.getLatitude());
+		final double lng0 = Math.toRadians(from.getLongitude());
+		final double sin0 = Math.sin(lat0);
+		final double cos0 = Math.cos(lat0);
+		for (int i = 0; i < size; i++) {
+			double dLng = lngR[i] - lng0;
+			double y = Math.sin(dLng) * cosLat[i];
+			double x = cos0 * sinLat[i] - sin0 * cosLat[i] * Math.cos(dLng);
+			double bearing = Math.toDegrees(Math.atan2(y, x));
+			out[i] = bearing < 0 ? bearing + 360 : bearing;
+		}
+		return out;
+	}
+
+	//========
+	// Filter
+	//========
+
+	/**
+	 * @return the indexes of the points up to <b>meters</b> from <b>center</b>, in index order
+	 */
+	public int[] withinRadius(LatLng center, double meters) {
+		if (meters < 0)
+			throw new IllegalArgumentException();
+		double[] h = haversines(center, new double[size]);
+		final double max = toHaversine(meters);
+		int count = 0;
+		for (int i = 0; i < size; i++)
+			if (h[i] <= max)
+				count++;
+		int[] result = new int[count];
+		int j = 0;
+		for (int i = 0; i < size; i++)
+			if (h[i] <= max)
+				result[j++] = i;
+		return result;
+	}
+
+	/**
+	 * @return the indexes of the <b>k</b> points nearest to <b>from</b>, nearest first
+	 */
+	public int[] nearest(LatLng from, int k) {
+		return nearest(from, k, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @return the indexes of the <b>k</b> points nearest to <b>from</b>, up to <b>maxMeters</b>, nearest first
+	 */
+	public int[] nearest(LatLng from, int k, double maxMeters) {
+		if (k < 0 || maxMeters < 0)
+			throw new IllegalArgumentException();
+		double[] h = haversines(from, new double[size]);
+		double max = Double.isInfinite(maxMeters) ? Double.POSITIVE_INFINITY : toHaversine(maxMeters);
+
+		// bounded max-heap of the k best, the worst of them on top
+		int[] heap = new int[Math.min(k, size)];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			double d = h[i];
+			if (d > max)
+				continue;
+			if (count < heap.length) {
+				int pos = count++;
+				while (pos > 0) {
+					int parent = (pos - 1) >>> 1;
+					if (h[heap[parent]] >= d)
+						break;
+					heap[pos] = heap[parent];
+					pos = parent;
+				}
+				heap[pos] = i;
+			} else if (count > 0 && d < h[heap[0]]) {
+				siftDown(heap, count, h, i);
+			}
+		}
+
+		// pops the worst to the end, so the result is nearest first
+		int[] result = new int[count];
+		for (int n = count; n > 0; n--) {
+			result[n - 1] = heap[0];
+			if (n > 1)
+				siftDown(heap, n - 1, h, heap[n - 1]);
+		}
+		return result;
+	}
+
+	/**
+	 * Replaces the top of the heap with <b>item</b>, keeping it a max-heap of h[]
+	 */
+	private static void siftDown(int[] heap, int count, double[] h, int item) {
+		double d = h[item];
+		int pos = 0;
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= count)
+				break;
+			if (child + 1 < count && h[heap[child + 1]] > h[heap[child]])
+				child++;
+			if (h[heap[child]] <= d)
+				break;
+			heap[pos] = heap[child];
+			pos = child;
+		}
+		heap[pos] = item;
+	}
+
+	//===========
+	// Haversine
+	//===========
+
+	/**
+	 * The haversine term <i>a</i> of each point, which grows with the distance
+	 */
+	private double[] haversines(LatLng from, double[] out) {
+		final double lat0 = Math.toRadians(from.getLatitude());
+		final double lng0 = Math.toRadians(from.getLongitude());
+		final double cos0 = Math.cos(lat0);
+		for (int i = 0; i < size; i++) {
+			double sLat = Math.sin((latR[i] - lat0) * 0.5);
+			double sLng = Math.sin((lngR[i] - lng0) * 0.5);
+			out[i] = sLat * sLat + cos0 * cosLat[i] * sLng * sLng;
+		}
+		return out;
+	}
+
+	private static double toMeters(double a) {
+		return 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a)) * LatLng.EARTH_MEAN_RADIUS;
+	}
+
+	private static double toHaversine(double meters) {
+		double angle = meters / LatLng.EARTH_MEAN_RADIUS;
+		if (angle >= Math.PI)
+			return Double.POSITIVE_INFINITY;
+		double s = Math.sin(angle * 0.5);
+		return s * s;
+	}
+
+}
@@ -27,6 +27,8 @@
  */
 package org.judison.mongodm;
 
+import java.util.Iterator;
+
 import org.judison.mongodm.annotations.Index;
 import org.judison.mongodm.annotations.TextIndex;
 
@@ -49,6 +51,21 @@ final class IndexInfo {
 		options.put("name", name);
 	}
 
+	/**
+	 * A geospatial index of a single field, like 2dsphere
+	 */
+	public IndexInfo(String name, String field, String type, boolean sparse) {
+		keys = new MObject(field, type);
+		options = new MObject();
+		if (sparse)
+			options.put("sparse", true);
+
+		if (name == null || name.isEmpty())
+			name = genIndexName(keys);
+
+		options.put("name", name);
+	}
+
 	public IndexInfo(Index index) {
 		this(index.name(), index.fields(), index.unique(), index.sparse());
 	}
@@ -86,6 +103,28 @@ final class IndexInfo {
 			options.put("weights", weights);
 	}
 
+	/**
+	 * @return true if this index starts with the <b>sort</b> fields, all in the same or all in the reverse order
+	 */
+	boolean supportsSort(MObject sort) {
+		Iterator<String> iter = keys.keySet().iterator();
+		int dir = 0;
+		for (String field: sort.keySet()) {
+			if (!iter.hasNext())
+				return false;
+			String key = iter.next();
+			Object order = keys.get(key);
+			if (!key.equals(field) || !(order instanceof Number))
+				return false;
+			int d = ((Number)order).intValue() * ((Number)sort.get(field)).intValue() > 0 ? 1 : -1;
+			if (dir == 0)
+				dir = d;
+			else if (dir != d)
+				return false;
+		}
+		return true;
+	}
+
 	public static MObject parseFields(String[] fields) {
 		MObject keys = new MObject();
 		for (String field: fields)
@@ -32,7 +32,7 @@ import java.util.Set;
 
 public class LatLng {
 
-	private static final double EARTH_MEAN_RADIUS = 6371009; // in Meters
+	static final double EARTH_MEAN_RADIUS = 6371009; // in Meters
 
 	private final double lat;
 	private final double lng;
@@ -48,7 +48,13 @@ public class LatLng {
 		if (obj == null)
 			throw new IllegalArgumentException();
 
-		if (obj instanceof MList) {
+		if (obj.containsField("type") && obj.containsField("coordinates")) {
+			if (!"Point".equals(obj.get("type")) || !(obj.get("coordinates") instanceof MList))
+				throw new IllegalArgumentException("Not a GeoJSON Point");
+			MList coords = (MList)obj.get("coordinates");
+			this.lng = normalizeLongitude(((Number)coords.get(0)).doubleValue());
+			this.lat = normalizeLatitude(((Number)coords.get(1)).doubleValue());
+		} else if (obj instanceof MList) {
 			this.lng = normalizeLongitude(((Number)((MList)obj).get(0)).doubleValue());
 			this.lat = normalizeLatitude(((Number)((MList)obj).get(1)).doubleValue());
 		} else if (obj.containsField("lng") && obj.containsField("lat")) {
@@ -108,6 +114,19 @@ public class LatLng {
 		return obj;
 	}
 
+	/**
+	 * @return this point as a GeoJSON Point: { type: "Point", coordinates: [ lng, lat ] }
+	 */
+	public MObject toGeoJSON() {
+		MList coords = new MList();
+		coords.add(lng);
+		coords.add(lat);
+		MObject obj = new MObject();
+		obj.put("type", "Point");
+		obj.put("coordinates", coords);
+		return obj;
+	}
+
 	public double getLatitude() {
 		return lat;
 	}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent log-linear histogram of latencies in nanoseconds, HDR style: each power of 2 is
+ * split in 32 buckets, so every value is kept within ~3% of precision, in a fixed ~10KB.<br>
+ * Latencies up to ~36 minutes are bucketed, longer ones count in the last bucket (but {@link #getMax()} is exact).<br>
+ * Recording never blocks, the buckets are spread over the latencies, and the totals are {@link LongAdder}s.
+ * Reading while recording gives an approximate view, as does {@link #reset()}.
+ *
+ * @author judison
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int MAX_BITS = 41;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int SIZE = (MAX_BITS - SUB_BITS) * SUB + SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return shift * SUB + (int)(value >>> shift);
+	}
+
+	/**
+	 * @return the highest value that falls in the bucket <b>index</b>
+	 */
+	static long highest(int index) {
+		int shift = index < 2 * SUB ? 0 : index / SUB - 1;
+		long mantissa = index - shift * SUB;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(index(Math.min(nanos, MAX_VALUE)));
+		count.increment();
+		sum.add(nanos);
+		long m;
+		while (nanos < (m = min.get()) && !min.compareAndSet(m, nanos));
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+	}
+
+	/**
+	 * Adds everything recorded in <b>other</b> to this one
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < SIZE; i++) {
+			long c = other.counts.get(i);
+			if (c != 0)
+				counts.addAndGet(i, c);
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		long m;
+		long otherMin = other.min.get();
+		while (otherMin < (m = min.get()) && !min.compareAndSet(m, otherMin));
+		long otherMax = other.max.get();
+		while (otherMax > (m = max.get()) && !max.compareAndSet(m, otherMax));
+	}
+
+	public void reset() {
+		for (int i = 0; i < SIZE; i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the sum of all latencies recorded
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMin() {
+		long m = min.get();
+		return m == Long.MAX_VALUE ? 0 : m;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long c = count.sum();
+		return c == 0 ? 0 : (double)sum.sum() / c;
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return the value that <b>percentile</b>% of the recorded values are less than or equal to
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[SIZE];
+		long total = 0;
+		for (int i = 0; i < SIZE; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		long max = getMax();
+		for (int i = 0; i < SIZE; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.0fns p50=%dns p99=%dns max=%dns", getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+	}
+
+}
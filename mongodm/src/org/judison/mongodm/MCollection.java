@@ -29,9 +29,11 @@ package org.judison.mongodm;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.mongodb.WriteResult;
@@ -40,8 +42,13 @@ public class MCollection<T> {
 
 	final MDB mdb;
 	private final DBCollection coll;
+	private final MemoryCollection memory;
 	private final TypeInfo typeInfo;
 	final Class<T> cls;
+	private final String name;
+	private volatile WriteBehind<T> writeBehind;
+	private final List<SpatialIndex<T>> spatialIndexes = new CopyOnWriteArrayList<SpatialIndex<T>>();
+	private final OperationMetrics metrics = new OperationMetrics();
 
 	public MCollection(MDB mdb, Class<T> cls) throws MException {
 		this(mdb, cls, null);
@@ -61,58 +68,85 @@ public class MCollection<T> {
 			}
 		if (entityName == null)
 			entityName = typeInfo.entityName;
-		this.coll = mdb.getMongoDB().getCollection(entityName);
-		this.coll.setDBDecoderFactory(MDecoder.FACTORY);
+		this.name = entityName;
+		if (mdb.getMemoryEngine() != null) {
+			this.coll = null;
+			this.memory = mdb.getMemoryEngine().getCollection(entityName);
+		} else {
+			this.memory = null;
+			this.coll = mdb.getMongoDB().getCollection(entityName);
+			this.coll.setDBDecoderFactory(MDecoder.FACTORY);
+		}
 
 		if (typeInfo != null)
 			for (IndexInfo idx : typeInfo.indexes)
-				try {
-					coll.createIndex(idx.keys, idx.options);
-				} catch (MongoException e) {
-					throw new MException(e);
-				}
+				ensureIndex(idx);
 	}
 
-	public T load(Object id) throws MException {
+	private void ensureIndex(IndexInfo idx) throws MException {
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.ENSURE_INDEX, idx.keys);
 		try {
-			MObject data = (MObject) coll.findOne(id);
-			return mapLoad(data);
+			if (memory != null)
+				memory.createIndex(idx.keys, idx.options);
+			else
+				coll.createIndex(idx.keys, idx.options);
+			timer.ok();
 		} catch (MongoException e) {
 			throw new MException(e);
+		} finally {
+			timer.stop();
 		}
 	}
 
-	public T findOne() throws MException {
+	public T load(Object id) throws MException {
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.LOAD);
 		try {
-			MObject data = (MObject) coll.findOne();
-			return mapLoad(data);
+			MObject data = memory != null ? memory.findById(id) : (MObject) coll.findOne(id);
+			T obj = mapLoad(data, timer);
+			timer.ok();
+			return obj;
 		} catch (MongoException e) {
 			throw new MException(e);
+		} finally {
+			timer.stop();
 		}
 	}
 
+	public T findOne() throws MException {
+		return findFirst(null);
+	}
+
 	public T findOne(MObject query) throws MException {
-		try {
-			MObject data = (MObject) coll.findOne(query);
-			return mapLoad(data);
-		} catch (MongoException e) {
-			throw new MException(e);
-		}
+		return findFirst(query);
 	}
 
 	public T findOne(Query query) throws MException {
+		return findFirst(query.toMObject());
+	}
+
+	private T findFirst(MObject query) throws MException {
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.FIND, query);
 		try {
-			MObject data = (MObject) coll.findOne(query.toMObject());
-			return mapLoad(data);
+			MObject data;
+			if (memory != null)
+				data = first(memory.find(query, null, null, 0, 1));
+			else if (query == null)
+				data = (MObject) coll.findOne();
+			else
+				data = (MObject) coll.findOne(query, textScore(query, null));
+			T obj = mapLoad(data, timer);
+			timer.ok();
+			return obj;
 		} catch (MongoException e) {
 			throw new MException(e);
+		} finally {
+			timer.stop();
 		}
 	}
 
 	public MCursor<T> find() throws MException {
 		try {
-			DBCursor cursor = coll.find();
-			return new MCursor<T>(this, cls, cursor, false);
+			return new MCursor<T>(this, cls, findCursor(null, null), false);
 		} catch (MongoException e) {
 			throw new MException(e);
 		}
@@ -120,8 +154,7 @@ public class MCollection<T> {
 
 	public MCursor<T> find(MObject query) throws MException {
 		try {
-			DBCursor cursor = coll.find(query);
-			return new MCursor<T>(this, cls, cursor, false);
+			return new MCursor<T>(this, cls, findCursor(query, null), false);
 		} catch (MongoException e) {
 			throw new MException(e);
 		}
@@ -129,8 +162,7 @@ public class MCollection<T> {
 
 	public MCursor<T> find(Query query) throws MException {
 		try {
-			DBCursor cursor = coll.find(query.toMObject());
-			return new MCursor<T>(this, cls, cursor, false);
+			return new MCursor<T>(this, cls, findCursor(query.toMObject(), null), false);
 		} catch (MongoException e) {
 			throw new MException(e);
 		}
@@ -139,8 +171,7 @@ public class MCollection<T> {
 	public MCursor<T> find(MObject query, MObject projection)
 			throws MException {
 		try {
-			DBCursor cursor = coll.find(query, projection);
-			return new MCursor<T>(this, cls, cursor, false);
+			return new MCursor<T>(this, cls, findCursor(query, projection), false);
 		} catch (MongoException e) {
 			throw new MException(e);
 		}
@@ -149,40 +180,128 @@ public class MCollection<T> {
 	public MCursor<T> find(Query query, Projection projection)
 			throws MException {
 		try {
-			DBCursor cursor = coll.find(query.toMObject(),
-					projection.toMObject());
-			return new MCursor<T>(this, cls, cursor, false);
+			return new MCursor<T>(this, cls, findCursor(query.toMObject(), projection.toMObject()), false);
 		} catch (MongoException e) {
 			throw new MException(e);
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	public List<MObject> aggregate(Pipeline pipeline) throws MException {
+	private FindCursor findCursor(MObject query, MObject projection) {
+		if (memory != null)
+			return new MemoryCursor(memory, query, projection);
+		if (query == null)
+			return new DriverFindCursor(coll.find());
+		return new DriverFindCursor(coll.find(query, textScore(query, projection)));
+	}
+
+	private static MObject first(List<MObject> docs) {
+		return docs.isEmpty() ? null : docs.get(0);
+	}
+
+	/**
+	 * Adds the @TextScore field to the <b>projection</b> of $text queries
+	 */
+	private MObject textScore(MObject query, MObject projection) {
+		if (typeInfo == null || typeInfo.textScoreField == null || !query.containsField("$text"))
+			return projection;
+		String name = typeInfo.textScoreField.name;
+		if (projection != null && projection.containsField(name))
+			return projection;
+		MObject proj = projection == null ? new MObject() : new MObject(projection);
+		proj.put(name, new MObject("$meta", "textScore"));
+		return proj;
+	}
+
+	/**
+	 * Runs the <b>pipeline</b> and streams its results through a cursor, so they aren't limited
+	 * by the 16MB reply size, nor held in memory all at once
+	 */
+	public MCursor<MObject> aggregate(Pipeline pipeline) throws MException {
+		return aggregate(pipeline, 0, false);
+	}
+
+	/**
+	 * @param batchSize the number of documents per batch, 0 for the server default
+	 * @param allowDiskUse lets the stages write temporary files, for results over the memory limit
+	 */
+	public MCursor<MObject> aggregate(Pipeline pipeline, int batchSize, boolean allowDiskUse) throws MException {
+		return aggregate(pipeline, MObject.class, batchSize, allowDiskUse);
+	}
+
+	/**
+	 * Runs a <b>pipeline</b> ending with a $facet stage, and splits its single reply into the facets
+	 *
+	 * @see Pipeline#facet(String, Pipeline)
+	 */
+	public Facets facets(Pipeline pipeline) throws MException {
+		MList operators = pipeline.getOperators();
+		if (operators.isEmpty() || !((MObject)operators.get(operators.size() - 1)).containsField("$facet"))
+			throw new IllegalArgumentException("The last stage must be a $facet");
+		MCursor<MObject> cursor = aggregate(pipeline);
 		try {
-			MObject cmd = new MObject("aggregate", coll.getName());
-			cmd.put("pipeline", pipeline.getOperators());
-
-			Object res = mdb.command(cmd);
-
-			if (res instanceof List) {
-				// TODO isso eh gambi, tem q fazer com MDecoder no cmd
-				List<DBObject> result = (List<DBObject>) res;
-
-				List<MObject> list = new ArrayList<MObject>();
-				for (DBObject dbo : result)
-					if (dbo instanceof MObject)
-						list.add((MObject) dbo);
-					else
-						list.add(new MObject(dbo));
-				return list;
+			return new Facets(cursor.hasNext() ? cursor.next() : null, mdb.mapper);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Optimizes the <b>pipeline</b>, and tells which of its stages can use the indexes of this collection's entity
+	 */
+	public PipelineReport analyze(Pipeline pipeline) {
+		PipelineOptimizer optimizer = new PipelineOptimizer(pipeline);
+		List<MObject> stages = optimizer.optimize();
+		Pipeline optimized = new Pipeline();
+		for (MObject stage: stages)
+			optimized.operators.add(stage);
+		IndexInfo[] indexes = typeInfo == null ? new IndexInfo[0] : typeInfo.indexes;
+		return new PipelineReport(optimized, optimizer.getRewrites(), PipelineOptimizer.indexUsage(stages, indexes));
+	}
+
+	/**
+	 * Runs the <b>pipeline</b> and maps each result document to <b>cls</b> (an @Embedded or @Entity class),
+	 * one at a time as the cursor is iterated, so the whole result is never held in memory
+	 */
+	public <R> MCursor<R> aggregate(Pipeline pipeline, Class<R> cls) throws MException {
+		return aggregate(pipeline, cls, 0, false);
+	}
+
+	public <R> MCursor<R> aggregate(Pipeline pipeline, Class<R> cls, int batchSize, boolean allowDiskUse) throws MException {
+		if (cls != MObject.class)
+			try {
+				Mapper.getTypeInfo(cls);
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Can't map aggregation results to " + cls.getName(), e);
+			}
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.AGGREGATE);
+		try {
+			Cursor cursor;
+			if (memory != null) {
+				List<MObject> stages = new ArrayList<MObject>();
+				// the same stages sent to a server, optimized if asked
+				for (DBObject stage: pipeline.getStages())
+					stages.add(stage instanceof MObject ? (MObject)stage : new MObject(stage));
+				cursor = MemoryCursor.of(memory.aggregate(stages));
 			} else
-				throw new MException("Unknow response "+res.getClass().toString());
+				cursor = coll.aggregate(pipeline.getStages(), aggregationOptions(batchSize, allowDiskUse));
+			timer.ok();
+			return new MCursor<R>(this, cls, cursor, cls == MObject.class);
 		} catch (MongoException e) {
 			throw new MException(e);
+		} finally {
+			timer.stop();
 		}
 	}
 
+	private static AggregationOptions aggregationOptions(int batchSize, boolean allowDiskUse) {
+		AggregationOptions.Builder options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR);
+		if (batchSize > 0)
+			options.batchSize(batchSize);
+		if (allowDiskUse)
+			options.allowDiskUse(true);
+		return options.build();
+	}
+
 	private void checkResult(WriteResult res) throws MException {
 		//@SuppressWarnings("deprecation")
 		//String error = res.getError();
@@ -191,18 +310,36 @@ public class MCollection<T> {
 	}
 
 	public void save(T object) throws MException {
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.SAVE);
 		try {
 			MObject data;
 			if (cls == MObject.class)
 				data = (MObject) object;
-			else
+			else {
+				long t = System.nanoTime();
 				data = (MObject) mdb.mapper.javaToBson(object);
+				timer.mapping += System.nanoTime() - t;
+			}
 
-			WriteResult res = coll.save(data);
-			checkResult(res);
+			WriteBehind<T> wb = writeBehind;
+			if (memory != null)
+				memory.save(data);
+			else if (wb != null && data.get("_id") != null)
+				wb.save(data.get("_id"), data);
+			else {
+				WriteResult res = coll.save(data);
+				checkResult(res);
+			}
+
+			for (SpatialIndex<T> index: spatialIndexes)
+				index.put(object);
 
+			timer.docs = 1;
+			timer.ok();
 		} catch (MongoException e) {
 			throw new MException(e);
+		} finally {
+			timer.stop();
 		}
 	}
 
@@ -219,35 +356,248 @@ public class MCollection<T> {
 		return update(query, update, false, false);
 	}
 
+	/**
+	 * With write-behind enabled, an update by <code>_id</code> only (not upsert, not multi, with <code>$</code> operators)
+	 * is buffered, and 1 is returned. Other updates flush the buffer first.
+	 */
 	public int update(MObject query, MObject update, boolean upsert,
 			boolean multi) throws MException {
-		WriteResult res = coll.update(query, update, upsert, multi);
-		checkResult(res);
-		return res.getN();
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.UPDATE, query);
+		try {
+			int n;
+			WriteBehind<T> wb = writeBehind;
+			if (wb != null && !upsert && !multi && query.keySet().size() == 1 && query.get("_id") != null && !(query.get("_id") instanceof MObject) && WriteBehind.isOperatorUpdate(update)) {
+				wb.update(query.get("_id"), update);
+				n = 1;
+			} else if (memory != null)
+				n = memory.update(query, update, upsert, multi);
+			else {
+				flushWriteBehind();
+				WriteResult res = coll.update(query, update, upsert, multi);
+				checkResult(res);
+				n = res.getN();
+			}
+			timer.docs = n;
+			timer.ok();
+			return n;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Atomically modifies and returns the original version of a single document
+	 */
+	public T findAndModify(Query query, Update update) throws MException {
+		return findAndModify(query.toMObject(), update.toMObject(), new FindAndModifyOptions());
+	}
+
+	/**
+	 * Atomically modifies and returns a single document, the original or the modified one, as in <b>options</b>
+	 */
+	public T findAndModify(Query query, Update update, FindAndModifyOptions options) throws MException {
+		return findAndModify(query.toMObject(), update.toMObject(), options);
+	}
+
+	public T findAndModify(MObject query, MObject update, FindAndModifyOptions options) throws MException {
+		if (update == null)
+			throw new IllegalArgumentException();
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.FIND_AND_MODIFY, query);
+		try {
+			MObject data;
+			if (memory != null)
+				data = memory.findAndModify(query, options.getProjection(), options.getSort(), false, update, options.isReturnNew(), options.isUpsert());
+			else {
+				flushWriteBehind();
+				data = (MObject)MDecoder.convert(coll.findAndModify(query, options.getProjection(), options.getSort(), false, update, options.isReturnNew(), options.isUpsert()));
+			}
+			T obj = mapLoad(data, timer);
+			timer.ok();
+			return obj;
+		} catch (MongoException e) {
+			throw new MException(e);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Atomically removes and returns a single document
+	 */
+	public T findAndRemove(Query query) throws MException {
+		return findAndRemove(query.toMObject(), new FindAndModifyOptions());
+	}
+
+	/**
+	 * Atomically removes and returns a single document, only the sort and projection <b>options</b> are used
+	 */
+	public T findAndRemove(Query query, FindAndModifyOptions options) throws MException {
+		return findAndRemove(query.toMObject(), options);
+	}
+
+	public T findAndRemove(MObject query, FindAndModifyOptions options) throws MException {
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.FIND_AND_MODIFY, query);
+		try {
+			MObject data;
+			if (memory != null)
+				data = memory.findAndModify(query, options.getProjection(), options.getSort(), true, null, false, false);
+			else {
+				flushWriteBehind();
+				data = (MObject)MDecoder.convert(coll.findAndModify(query, options.getProjection(), options.getSort(), true, null, false, false));
+			}
+			T obj = mapLoad(data, timer);
+			timer.ok();
+			return obj;
+		} catch (MongoException e) {
+			throw new MException(e);
+		} finally {
+			timer.stop();
+		}
 	}
 
 	public void remove(T object) throws MException {
+		long t = System.nanoTime();
 		MObject data = (MObject) mdb.mapper.javaToBson(object);
-		WriteResult res = coll.remove(new MObject("_id", data.get("_id")));
-		checkResult(res);
+		removeById(data.get("_id"), System.nanoTime() - t);
 	}
 	
 	public void remove(Query query) throws MException {
-		WriteResult res = coll.remove(query.toMObject());
-		checkResult(res);
+		MObject q = query.toMObject();
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.REMOVE, q);
+		try {
+			if (memory != null)
+				memory.remove(q);
+			else {
+				flushWriteBehind();
+				WriteResult res = coll.remove(q);
+				checkResult(res);
+			}
+			timer.ok();
+		} finally {
+			timer.stop();
+		}
 	}
 
 	public void removeById(Object id) throws MException {
-		WriteResult res = coll.remove(new MObject("_id", id));
-		checkResult(res);
+		removeById(id, 0);
+	}
+
+	private void removeById(Object id, long mapping) throws MException {
+		MObject query = new MObject("_id", id);
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.REMOVE, query);
+		timer.mapping = mapping;
+		try {
+			WriteBehind<T> wb = writeBehind;
+			if (wb != null)
+				wb.discard(id);
+			if (memory != null)
+				memory.remove(query);
+			else {
+				WriteResult res = coll.remove(query);
+				checkResult(res);
+			}
+			for (SpatialIndex<T> index: spatialIndexes)
+				index.removeById(id);
+			timer.ok();
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Creates an in memory {@link SpatialIndex} by the LatLng <b>property</b>, kept updated on every
+	 * {@link #save(Object)}, {@link #remove(Object)} and {@link #removeById(Object)} of this MCollection.<br>
+	 * It starts empty, use {@link SpatialIndex#addAll(Iterable)} to load the current documents.
+	 * Updates and removes by query don't reach it.
+	 */
+	public SpatialIndex<T> createSpatialIndex(String property) {
+		return createSpatialIndex(property, SpatialIndex.DEFAULT_BITS);
+	}
+
+	public SpatialIndex<T> createSpatialIndex(String property, int bits) {
+		if (typeInfo == null)
+			throw new IllegalStateException("Spatial indexes need an entity class");
+		SpatialIndex<T> index = new SpatialIndex<T>(cls, property, bits);
+		spatialIndexes.add(index);
+		return index;
+	}
+
+	public void dropSpatialIndex(SpatialIndex<T> index) {
+		spatialIndexes.remove(index);
+	}
+
+	/**
+	 * Enables the write-behind mode, where saves and updates by <code>_id</code> are buffered
+	 * and coalesced in memory, and flushed in bulk every <b>window</b> milliseconds.
+	 *
+	 * @param window the flush interval, in milliseconds
+	 * @param maxPending the maximum number of buffered documents, reaching it flushes in the caller's thread
+	 * @see WriteBehind
+	 */
+	public synchronized WriteBehind<T> enableWriteBehind(long window, int maxPending) {
+		if (memory != null)
+			throw new UnsupportedOperationException("Write-behind isn't supported by the MemoryEngine");
+		if (writeBehind != null)
+			throw new IllegalStateException("Write-behind already enabled for " + coll.getName());
+		writeBehind = new WriteBehind<T>(this, window, maxPending);
+		return writeBehind;
+	}
+
+	/**
+	 * Flushes the write-behind buffer, and goes back to writing directly
+	 */
+	public synchronized void disableWriteBehind() throws MException {
+		WriteBehind<T> wb = writeBehind;
+		if (wb != null) {
+			writeBehind = null;
+			wb.close();
+		}
+	}
+
+	public WriteBehind<T> getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Flushes the write-behind buffer before a write that doesn't go through it,
+	 * so the buffered writes can't be applied after it and undo it
+	 */
+	private void flushWriteBehind() throws MException {
+		WriteBehind<T> wb = writeBehind;
+		if (wb != null)
+			wb.flush();
 	}
 
 	public long count() {
-		return coll.count();
+		return count((MObject)null);
 	}
 
 	public long count(Query query) {
-		return coll.count(query.toMObject());
+		return count(query.toMObject());
+	}
+
+	private long count(MObject query) {
+		OperationTimer timer = new OperationTimer(mdb, this, OperationType.COUNT, query);
+		try {
+			long count;
+			if (memory != null)
+				count = memory.count(query);
+			else
+				count = query == null ? coll.count() : coll.count(query);
+			timer.ok();
+			return count;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private T mapLoad(MObject data, OperationTimer timer) {
+		long t = System.nanoTime();
+		try {
+			return mapLoad(data);
+		} finally {
+			timer.mapping += System.nanoTime() - t;
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -260,8 +610,41 @@ public class MCollection<T> {
 			return mdb.mapper.bsonToJava(cls, null, data);
 	}
 
+	/**
+	 * @return the driver's collection, null over a {@link MemoryEngine}
+	 */
+	DBCollection getDBCollection() {
+		return coll;
+	}
+
+	/**
+	 * @return the {@link MemoryEngine}'s collection, null over a server
+	 */
+	MemoryCollection getMemoryCollection() {
+		return memory;
+	}
+
 	public MDB getMDB() {
 		return mdb;
 	}
 
+	/**
+	 * @return the name of the collection in the database
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the metrics of the operations of this MCollection, they're also counted in {@link MDB#getMetrics()}
+	 */
+	public OperationMetrics getMetrics() {
+		return metrics;
+	}
+
+	void addMapping(OperationType type, long nanos) {
+		mdb.getMetrics().get(type).addMapping(nanos);
+		metrics.get(type).addMapping(nanos);
+	}
+
 }
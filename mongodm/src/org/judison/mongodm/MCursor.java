@@ -28,151 +28,481 @@
 package org.judison.mongodm;
 
 import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
-import com.mongodb.DBCursor;
+import org.bson.BSONObject;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
 
 public class MCursor<T> implements Iterable<T>, Iterator<T>, Closeable {
 
+	/**
+	 * Number of documents read ahead to resolve their {@link Ref}s together, when no batchSize is set
+	 */
+	static final int DEFAULT_REFERENCE_BATCH = 100;
+
 	private final MCollection<?> coll;
-	private final DBCursor dbCursor;
+	private final Cursor cursor;
+	private final FindCursor findCursor;
 	private final MDB mdb;
 	private final boolean dbObj;
 	private final Class<T> cls;
+	private final TypeInfo typeInfo;
+	private final ArrayDeque<T> buffer;
+	private MObject orderBy = null;
 	private T last = null;
+	// false until the first read, which runs the query of a find
+	private boolean fetched;
+	// tracked by the MDB from the first read of a find (when its query runs), closes the driver cursor
+	private CursorRef ref;
+	// where it was created, for MDB.setCursorSiteTracking and leak detection
+	private final Throwable site;
+	// true once closed, or once hasNext() returned false (released without close())
+	private boolean released;
 
-	MCursor(MCollection<?> coll, Class<T> cls, DBCursor dbCursor, boolean dbObj) {
+	MCursor(MCollection<?> coll, Class<T> cls, FindCursor findCursor, boolean dbObj) {
+		this(coll, cls, findCursor, findCursor, dbObj);
+	}
+
+	/**
+	 * A cursor over something other than a find, like an aggregation, it can't be sorted, limited, counted, etc.
+	 */
+	MCursor(MCollection<?> coll, Class<T> cls, Cursor cursor, boolean dbObj) {
+		this(coll, cls, cursor, null, dbObj);
+	}
+
+	private MCursor(MCollection<?> coll, Class<T> cls, Cursor cursor, FindCursor findCursor, boolean dbObj) {
 		this.coll = coll;
-		this.dbCursor = dbCursor;
+		this.cursor = cursor;
+		this.findCursor = findCursor;
 		this.mdb = coll.mdb;
 		this.cls = cls;
-		coll.mdb.onCursorCreated(this, cls);
+		// an aggregation runs (and is timed) when the cursor is created
+		this.fetched = findCursor == null;
+		this.site = mdb.cursorSite();
+		// a find that is never read (only paged or counted) holds nothing, an aggregation is already open
+		if (findCursor == null)
+			track();
 		this.dbObj = dbObj;
+		if (!dbObj && cls != MObject.class && Mapper.getTypeInfo(cls).hasReferences) {
+			this.typeInfo = Mapper.getTypeInfo(cls);
+			this.buffer = new ArrayDeque<T>();
+		} else {
+			this.typeInfo = null;
+			this.buffer = null;
+		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		close();
-		super.finalize();
+	private void track() {
+		try {
+			ref = mdb.onCursorCreated(this, coll, cursor, site);
+		} catch (RuntimeException e) {
+			released = true;
+			cursor.close();
+			throw e;
+		}
 	}
 
 	@Override
 	public void close() {
-		long t = System.nanoTime();
+		if (released)
+			return;
+		released = true;
+		if (ref != null)
+			mdb.onCursorClosed(ref);
+		else
+			cursor.close();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (buffer != null && !buffer.isEmpty())
+			return true;
+		return fetchHasNext();
+	}
+
+	@Override
+	public T next() {
+		if (buffer != null) {
+			if (buffer.isEmpty())
+				fetchBatch();
+			last = buffer.poll();
+			return last;
+		}
+		last = mapTimed(fetch());
+		return last;
+	}
+
+	//=========
+	// Metrics
+	//=========
+
+	/**
+	 * Times a read from the cursor, as {@link OperationType#FIND} if it's the first one of a find,
+	 * otherwise as {@link OperationType#NEXT_BATCH}, only recorded if a batch is actually read
+	 */
+	private OperationTimer fetchTimer() {
+		return new OperationTimer(mdb, coll, fetched ? OperationType.NEXT_BATCH : OperationType.FIND, query());
+	}
+
+	/**
+	 * @return the query of a find, for the {@link OperationListener}s
+	 */
+	private MObject query() {
+		if (findCursor == null || mdb.listeners.length == 0)
+			return null;
+		DBObject query = findCursor.getQuery();
+		return query instanceof MObject ? (MObject)query : null;
+	}
+
+	private void stopFetch(OperationTimer timer) {
+		if (!fetched || timer.hasDecoded()) {
+			fetched = true;
+			timer.stop();
+		}
+	}
+
+	private boolean fetchHasNext() {
+		if (released)
+			return false;
+		if (ref == null)
+			track();
+		OperationTimer timer = fetchTimer();
 		try {
-			dbCursor.close();
-			coll.mdb.onCursorClosed(this);
+			boolean hasNext = cursor.hasNext();
+			timer.ok();
+			if (!hasNext) {
+				// nothing more to read, release it without waiting for close(), a for-each can't close it
+				released = true;
+				mdb.onCursorClosed(ref);
+			}
+			return hasNext;
 		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
+			stopFetch(timer);
 		}
 	}
 
-	@Override
-	public boolean hasNext() {
-		long t = System.nanoTime();
+	private DBObject fetch() {
+		if (released)
+			throw new NoSuchElementException();
+		if (ref == null)
+			track();
+		OperationTimer timer = fetchTimer();
 		try {
-			return dbCursor.hasNext();
+			DBObject data = cursor.next();
+			timer.ok();
+			return data;
 		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
+			stopFetch(timer);
 		}
 	}
 
-	@Override
-	@SuppressWarnings("unchecked")
-	public T next() {
+	/**
+	 * Maps a document, counting the time in the mapping time of the find or aggregation
+	 */
+	private T mapTimed(DBObject data) {
 		long t = System.nanoTime();
 		try {
-			MObject data = (MObject)dbCursor.next();
-			if (dbObj)
-				last = (T)data;
-			else
-				last = (T)coll.mapLoad(data);
-			return last;
+			return map(data);
 		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
+			coll.addMapping(findCursor != null ? OperationType.FIND : OperationType.AGGREGATE, System.nanoTime() - t);
 		}
 	}
 
+	/**
+	 * Maps a document, straight from the driver's objects when they aren't MObjects (as in aggregations)
+	 */
+	@SuppressWarnings("unchecked")
+	private T map(DBObject data) {
+		if (dbObj || cls == MObject.class)
+			return (T)MDecoder.convert(data);
+		if (data == null)
+			return null;
+		return mdb.mapper.bsonToJava(cls, null, data);
+	}
+
+	/**
+	 * Reads ahead the current batch, and resolves all its {@link Ref}s at once
+	 */
+	private void fetchBatch() {
+		int size = findCursor == null ? 0 : Math.abs(findCursor.getBatchSize());
+		if (size == 0)
+			size = DEFAULT_REFERENCE_BATCH;
+		List<Ref<?>> refs = new ArrayList<Ref<?>>();
+		do {
+			T obj = mapTimed(fetch());
+			typeInfo.collectReferences(obj, refs);
+			buffer.add(obj);
+		} while (buffer.size() < size && fetchHasNext());
+
+		if (!refs.isEmpty())
+			try {
+				Ref.resolveAll(mdb, refs);
+			} catch (MException e) {
+				throw new MRuntimeException(e);
+			}
+	}
+
 	public T getLast() {
 		return last;
 	}
 
+	/**
+	 * @return this cursor itself if it wasn't read yet or can't be copied (like an aggregation),
+	 * otherwise a new cursor with the same query
+	 */
 	@Override
 	public Iterator<T> iterator() {
+		if (findCursor == null || !fetched)
+			return this;
 		return copy();
 	}
 
+	private FindCursor findCursor() {
+		if (findCursor == null)
+			throw new UnsupportedOperationException("Not supported by this kind of MCursor");
+		return findCursor;
+	}
+
 	private MCursor<T> copy() {
-		long t = System.nanoTime();
-		try {
-			MCursor<T> copy = new MCursor<T>(coll, cls, dbCursor.copy(), dbObj);
-			return copy;
-		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
-		}
+		MCursor<T> copy = new MCursor<T>(coll, cls, findCursor().copy(), dbObj);
+		return copy;
 	}
 
+	/**
+	 * @param fields the fields, prefixed by '-' for descending, or {@link Attribute#asc()}/{@link Attribute#desc()}
+	 */
 	public MCursor<T> sort(String... fields) {
-		long t = System.nanoTime();
-		try {
-			MObject orderBy = IndexInfo.parseFields(fields);
-			dbCursor.sort(orderBy);
-			return this;
-		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
-		}
+		orderBy = IndexInfo.parseFields(fields);
+		findCursor().sort(orderBy);
+		return this;
 	}
 	
 	public MCursor<T> sort(MObject sort) {
-		long t = System.nanoTime();
-		try {
-			dbCursor.sort(sort);
-			return this;
-		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
-		}
+		orderBy = sort;
+		findCursor().sort(sort);
+		return this;
+	}
+
+	/**
+	 * Sorts by the relevance of a $text query, the score must be projected as <b>field</b>
+	 * (see {@link Projection#textScore(String)}), which is automatic for a @TextScore field
+	 *
+	 * @param thenBy fields to sort documents with the same score
+	 */
+	public MCursor<T> sortByTextScore(String field, String... thenBy) {
+		MObject sort = new MObject(field, new MObject("$meta", "textScore"));
+		sort.putAll(IndexInfo.parseFields(thenBy));
+		return sort(sort);
+	}
+
+	/**
+	 * Sorts by the relevance of a $text query, into the entity's @TextScore field
+	 */
+	public MCursor<T> sortByTextScore() {
+		TypeInfo typeInfo = cls == MObject.class ? null : Mapper.getTypeInfo(cls);
+		if (typeInfo == null || typeInfo.textScoreField == null)
+			throw new IllegalStateException(cls.getName() + " has no @TextScore field");
+		return sortByTextScore(typeInfo.textScoreField.name);
 	}
 
 	public MCursor<T> limit(int n) {
-		long t = System.nanoTime();
-		try {
-			dbCursor.limit(n);
-			return this;
-		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
-		}
+		findCursor().limit(n);
+		return this;
+	}
+
+	public MCursor<T> batchSize(int n) {
+		findCursor().batchSize(n);
+		return this;
 	}
 
 	public MCursor<T> skip(int n) {
-		long t = System.nanoTime();
+		findCursor().skip(n);
+		return this;
+	}
+
+	public MCursor<T> skipAndLimit(int skip, int limit) {
+		findCursor().skip(skip);
+		findCursor().limit(limit);
+		return this;
+	}
+
+	/**
+	 * Keyset (seek) pagination, returns <b>size</b> objects after the position of <b>token</b>.<br>
+	 * Instead of skipping, it adds a range condition over the {@link #sort(String...)} fields, plus
+	 * <code>_id</code> as a tiebreaker, so every page costs the same. The sort fields followed by <code>_id</code>
+	 * must be covered by an index of the entity (like <code>{ a: 1, _id: 1 }</code> to sort by <code>a</code>),
+	 * and must not be excluded by the projection.
+	 *
+	 * @param size the page size
+	 * @param token the {@link Page#getNextToken()} of the previous page, or <code>null</code> for the first one
+	 */
+	@SuppressWarnings("unchecked")
+	public Page<T> page(int size, String token) {
+		if (size <= 0)
+			throw new IllegalArgumentException();
+		OperationTimer timer = new OperationTimer(mdb, coll, OperationType.FIND, query());
 		try {
-			dbCursor.skip(n);
-			return this;
+			TypeInfo typeInfo = cls == MObject.class ? null : Mapper.getTypeInfo(cls);
+
+			MObject sort = new MObject();
+			if (orderBy != null)
+				sort.putAll(orderBy);
+			for (String field: sort.keySet())
+				if (!(sort.get(field) instanceof Number))
+					throw new IllegalStateException("Keyset pagination can't sort by " + sort.get(field));
+			if (!sort.containsField("_id")) {
+				int dir = 1;
+				for (String field: sort.keySet())
+					dir = ((Number)sort.get(field)).intValue();
+				sort.put("_id", dir);
+			}
+			if (typeInfo != null)
+				checkKeysetIndex(typeInfo, sort);
+
+			DBObject dbQuery = findCursor().getQuery();
+			MObject query = dbQuery instanceof MObject ? (MObject)dbQuery : new MObject(dbQuery);
+			if (token != null) {
+				MObject seek = seekCondition(sort, decodeToken(token, sort.keySet().size()));
+				if (query.keySet().isEmpty())
+					query = seek;
+				else {
+					MList and = new MList();
+					and.add(query);
+					and.add(seek);
+					query = new MObject("$and", and);
+				}
+			}
+
+			FindCursor pageCursor = findCursor().find(query, findCursor().getKeysWanted()).sort(sort).limit(size + 1).batchSize(size + 1);
+			List<T> items = new ArrayList<T>(size);
+			MList lastValues = null;
+			boolean more = false;
+			try {
+				while (pageCursor.hasNext()) {
+					MObject data = (MObject)pageCursor.next();
+					if (items.size() == size) {
+						more = true;
+						break;
+					}
+					lastValues = new MList();
+					for (String field: sort.keySet())
+						lastValues.add(data.deepGet(field));
+					long m = System.nanoTime();
+					items.add(map(data));
+					timer.mapping += System.nanoTime() - m;
+				}
+			} finally {
+				pageCursor.close();
+			}
+
+			if (typeInfo != null && typeInfo.hasReferences) {
+				List<Ref<?>> refs = new ArrayList<Ref<?>>();
+				for (T item: items)
+					typeInfo.collectReferences(item, refs);
+				if (!refs.isEmpty())
+					Ref.resolveAll(mdb, refs);
+			}
+
+			timer.ok();
+			return new Page<T>(items, more ? encodeToken(lastValues) : null);
+		} catch (MException e) {
+			throw new MRuntimeException(e);
 		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
+			timer.stop();
 		}
 	}
 
-	public MCursor<T> skipAndLimit(int skip, int limit) {
-		long t = System.nanoTime();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static String encodeToken(MList values) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(JSON.serialize(new ArrayList<Object>(values)).getBytes(UTF8));
+	}
+
+	private static MList decodeToken(String token, int size) {
+		Object parsed;
 		try {
-			dbCursor.skip(skip);
-			dbCursor.limit(limit);
-			return this;
-		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
+			parsed = JSON.parse(new String(Base64.getUrlDecoder().decode(token), UTF8));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid page token", e);
+		}
+		if (!(parsed instanceof List) || ((List<?>)parsed).size() != size)
+			throw new IllegalArgumentException("Invalid page token");
+		MList values = new MList();
+		for (Object value: (List<?>)parsed)
+			values.add(value instanceof BSONObject ? new MObject((BSONObject)value) : value);
+		return values;
+	}
+
+	/**
+	 * { $or: [ { k1: { $gt: v1 } }, { k1: v1, k2: { $gt: v2 } }, ... ] }, using $lt for descending keys.<br>
+	 * Nulls (and missing fields) sort before every value, so after a null comes { $ne: null } ascending,
+	 * and nothing descending, while after a value descending also come the nulls.
+	 */
+	private static MObject seekCondition(MObject sort, MList values) {
+		String[] keys = sort.keySet().toArray(new String[0]);
+		MList or = new MList();
+		for (int i = 0; i < keys.length; i++) {
+			int dir = ((Number)sort.get(keys[i])).intValue();
+			Object value = values.get(i);
+			if (value == null) {
+				if (dir > 0)
+					or.add(seekBranch(keys, values, i, new MObject("$ne", null)));
+			} else {
+				or.add(seekBranch(keys, values, i, new MObject(dir < 0 ? "$lt" : "$gt", value)));
+				if (dir < 0)
+					or.add(seekBranch(keys, values, i, null));
+			}
 		}
+		if (or.size() == 1)
+			return (MObject)or.get(0);
+		return new MObject("$or", or);
+	}
+
+	/**
+	 * { k1: v1, ..., k(i-1): v(i-1), ki: cond }
+	 */
+	private static MObject seekBranch(String[] keys, MList values, int i, Object cond) {
+		MObject branch = new MObject();
+		for (int j = 0; j < i; j++)
+			branch.put(keys[j], values.get(j));
+		branch.put(keys[i], cond);
+		return branch;
+	}
+
+	/**
+	 * The whole sort, _id tiebreaker included, must be walked by one index, otherwise the server
+	 * sorts everything after the seek point, and a page doesn't cost the same anymore
+	 */
+	private static void checkKeysetIndex(TypeInfo typeInfo, MObject sort) {
+		// the _id index, always there
+		if (sort.keySet().size() == 1 && sort.containsField("_id"))
+			return;
+		for (IndexInfo idx: typeInfo.indexes)
+			if (idx.supportsSort(sort))
+				return;
+		throw new IllegalStateException("There's no index on " + sort + " at " + typeInfo.entityName + " for keyset pagination");
 	}
 
 	/**
 	 * @return The number of objects matching the query <b>NOT TAKING</b> limit/skip into consideration
 	 */
 	public int count() {
-		long t = System.nanoTime();
+		OperationTimer timer = new OperationTimer(mdb, coll, OperationType.COUNT, query());
 		try {
-			return dbCursor.count();
+			int count = findCursor().count();
+			timer.ok();
+			return count;
 		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
+			timer.stop();
 		}
 	}
 
@@ -180,11 +510,13 @@ public class MCursor<T> implements Iterable<T>, Iterator<T>, Closeable {
 	 * @return The number of objects matching the query <b>taking</b> limit/skip into consideration
 	 */
 	public int size() {
-		long t = System.nanoTime();
+		OperationTimer timer = new OperationTimer(mdb, coll, OperationType.COUNT, query());
 		try {
-			return dbCursor.size();
+			int count = findCursor().size();
+			timer.ok();
+			return count;
 		} finally {
-			mdb.timerTotal += System.nanoTime() - t;
+			timer.stop();
 		}
 	}
 
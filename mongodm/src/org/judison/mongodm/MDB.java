@@ -27,11 +27,26 @@
  */
 package org.judison.mongodm;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.MongoException;
@@ -65,6 +80,7 @@ public class MDB {
 			"ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE";
 
 	private final DB database;
+	private final MemoryEngine memory;
 	private Map<Object, MCollection<?>> collections = new HashMap<Object, MCollection<?>>();
 	private final DBCollection _cmd;
 	
@@ -79,12 +95,25 @@ public class MDB {
 //	}
 
 	public MDB(DB database) {
-		this.mapper = new Mapper();
+		this.mapper = new Mapper(this);
 		this.database = database;
+		this.memory = null;
 		_cmd = database.getCollection("$cmd");
 		_cmd.setDBDecoderFactory(MDecoder.FACTORY);
 	}
 
+	/**
+	 * A MDB over an embedded in-memory engine, no server involved, see {@link MemoryEngine}
+	 */
+	public MDB(MemoryEngine memory) {
+		if (memory == null)
+			throw new IllegalArgumentException();
+		this.mapper = new Mapper(this);
+		this.database = null;
+		this.memory = memory;
+		_cmd = null;
+	}
+
 	private MongoException getException(MObject cmd, MObject res) {
 		Object _ok = res.get("ok");
 		boolean ok;
@@ -134,16 +163,19 @@ public class MDB {
 	}
 
 	public Object command(MObject cmd) throws MException {
-		long t = System.nanoTime();
+		OperationTimer timer = new OperationTimer(this, null, OperationType.COMMAND);
 		try {
+			if (memory != null)
+				throw new MException("Commands aren't supported by the MemoryEngine");
 			MObject res = (MObject)_cmd.findOne(cmd);
 			MongoException e = getException(cmd, res);
 			if (e != null)
 				throw new MException(e);
 
+			timer.ok();
 			return res.get("result");
 		} finally {
-			timerTotal += System.nanoTime() - t;
+			timer.stop();
 		}
 	}
 
@@ -154,6 +186,8 @@ public class MDB {
 			throw new IllegalArgumentException();
 		synchronized (collections) {
 			collections.put(cls, coll);
+			if (mbeanName != null)
+				registerMBean(coll);
 		}
 	}
 
@@ -164,6 +198,8 @@ public class MDB {
 			if (coll == null) {
 				coll = new MCollection<T>(this, cls);
 				collections.put(cls, coll);
+				if (mbeanName != null)
+					registerMBean(coll);
 			}
 			return coll;
 		}
@@ -176,49 +212,278 @@ public class MDB {
 			if (coll == null) {
 				coll = new MCollection<MObject>(this, MObject.class, name);
 				collections.put(name, coll);
+				if (mbeanName != null)
+					registerMBean(coll);
 			}
 			return coll;
 		}
 	}
 
+	/**
+	 * @return the driver's DB, or null if this MDB is over a {@link MemoryEngine}
+	 */
 	public DB getMongoDB() {
 		return database;
 	}
 
-	private List<MCursor<?>> cursors = new ArrayList<MCursor<?>>();
+	/**
+	 * @return the MemoryEngine of this MDB, or null if it's over a server
+	 */
+	public MemoryEngine getMemoryEngine() {
+		return memory;
+	}
+
+	private static final Logger LOG = Logger.getLogger(MDB.class.getName());
+
+	// the open cursors, by identity, collected ones are enqueued in collectedCursors
+	private final Set<CursorRef> cursors = Collections.newSetFromMap(new ConcurrentHashMap<CursorRef, Boolean>());
+	private final ReferenceQueue<MCursor<?>> collectedCursors = new ReferenceQueue<MCursor<?>>();
+	private final AtomicInteger openCursors = new AtomicInteger();
+	private final AtomicLong leakedCursors = new AtomicLong();
+	private volatile int maxOpenCursors;
+	private volatile boolean cursorSiteTracking;
+	private volatile boolean cursorLeakDetection;
+
+	/**
+	 * @return the creation site of a new cursor, only with site tracking or leak detection
+	 */
+	Throwable cursorSite() {
+		return cursorSiteTracking || cursorLeakDetection ? new Throwable("cursor created") : null;
+	}
 
-	protected <T> void onCursorCreated(MCursor<T> cursor, Class<T> cls) {
-		synchronized (cursors) {
-			cursors.add(cursor);
+	CursorRef onCursorCreated(MCursor<?> cursor, MCollection<?> coll, Cursor driverCursor, Throwable site) {
+		reapCursors();
+		int max = maxOpenCursors;
+		for (;;) {
+			int open = openCursors.get();
+			if (max > 0 && open >= max)
+				throw new IllegalStateException("Too many open cursors: " + open + " (max " + max + ")");
+			if (openCursors.compareAndSet(open, open + 1))
+				break;
 		}
+		CursorRef ref = new CursorRef(cursor, collectedCursors, coll, driverCursor, site);
+		cursors.add(ref);
+		return ref;
+	}
+
+	void onCursorClosed(CursorRef ref) {
+		if (!ref.close())
+			return;
+		cursors.remove(ref);
+		openCursors.decrementAndGet();
 	}
 
-	protected <T> void onCursorClosed(MCursor<T> cursor) {
-		synchronized (cursors) {
-			cursors.remove(cursor);
+	/**
+	 * Closes the cursors that were garbage collected without close()
+	 */
+	private void reapCursors() {
+		Reference<?> collected;
+		while ((collected = collectedCursors.poll()) != null) {
+			CursorRef ref = (CursorRef)collected;
+			if (!ref.close())
+				continue;
+			cursors.remove(ref);
+			openCursors.decrementAndGet();
+			leakedCursors.incrementAndGet();
+			if (cursorLeakDetection && ref.site != null)
+				LOG.log(Level.WARNING, "Cursor over " + ref.coll.getName() + " garbage collected without close()", ref.site);
 		}
 	}
 
-	public void close() {
-		synchronized (cursors) {
-			for (MCursor<?> cursor: cursors.toArray(new MCursor<?>[cursors.size()])) {
-				cursor.close();
+	public int getOpenCursorCount() {
+		reapCursors();
+		return openCursors.get();
+	}
+
+	/**
+	 * @param max the maximum number of open cursors, creating one more fails with an IllegalStateException, 0 for no limit
+	 */
+	public void setMaxOpenCursors(int max) {
+		if (max < 0)
+			throw new IllegalArgumentException();
+		this.maxOpenCursors = max;
+	}
+
+	public int getMaxOpenCursors() {
+		return maxOpenCursors;
+	}
+
+	/**
+	 * When on, each new cursor records where it was created, shown by {@link #dumpOpenCursors()}.<br>
+	 * It costs a stack trace per cursor, so it's off by default.
+	 */
+	public void setCursorSiteTracking(boolean tracking) {
+		this.cursorSiteTracking = tracking;
+	}
+
+	public boolean isCursorSiteTracking() {
+		return cursorSiteTracking;
+	}
+
+	/**
+	 * When on, each new cursor records where it was created, and the ones garbage collected
+	 * without close() are logged (as a WARNING of the <code>org.judison.mongodm.MDB</code> logger) with that stack trace.<br>
+	 * Leaked cursors are always closed and counted in {@link #getLeakedCursorCount()}.
+	 */
+	public void setCursorLeakDetection(boolean detection) {
+		this.cursorLeakDetection = detection;
+	}
+
+	public boolean isCursorLeakDetection() {
+		return cursorLeakDetection;
+	}
+
+	/**
+	 * @return the number of cursors garbage collected without close()
+	 */
+	public long getLeakedCursorCount() {
+		reapCursors();
+		return leakedCursors.get();
+	}
+
+	/**
+	 * @return the open cursors, as "count x collection at creation site", the most frequent first
+	 */
+	public String[] dumpOpenCursors() {
+		reapCursors();
+		final Map<String, Integer> sites = new HashMap<String, Integer>();
+		for (CursorRef ref: cursors) {
+			String site = ref.coll.getName() + " at " + ref.getSite();
+			Integer count = sites.get(site);
+			sites.put(site, count == null ? 1 : count + 1);
+		}
+		List<String> keys = new ArrayList<String>(sites.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+
+			@Override
+			public int compare(String a, String b) {
+				return sites.get(b).compareTo(sites.get(a));
 			}
+		});
+		String[] dump = new String[keys.size()];
+		for (int i = 0; i < dump.length; i++)
+			dump[i] = sites.get(keys.get(i)) + " x " + keys.get(i);
+		return dump;
+	}
+
+	MCollection<?>[] getCollections() {
+		synchronized (collections) {
+			// a collection may be there by class and by name
+			return new LinkedHashSet<MCollection<?>>(collections.values()).toArray(new MCollection<?>[0]);
+		}
+	}
+
+	// guarded by collections
+	private String mbeanName;
+	private List<ObjectName> mbeans = new ArrayList<ObjectName>();
+
+	/**
+	 * Registers the {@link MDBMXBean} of this MDB, and a {@link CollectionMXBean} for each of its collections
+	 * (also the ones created later), in the platform MBeanServer.<br>
+	 * They're unregistered by {@link #unregisterMBeans()} or {@link #close()}.
+	 *
+	 * @param name the name of this MDB in the ObjectNames, unique in the JVM
+	 */
+	public void registerMBeans(String name) {
+		if (name == null || name.isEmpty())
+			throw new IllegalArgumentException();
+		synchronized (collections) {
+			if (mbeanName != null)
+				throw new IllegalStateException("MBeans already registered as " + mbeanName);
+			ObjectName objectName = Management.mdbName(name);
+			Management.register(objectName, new Management.MDBBean(this, name), MDBMXBean.class);
+			mbeanName = name;
+			mbeans.add(objectName);
+			for (MCollection<?> coll: getCollections())
+				registerMBean(coll);
+		}
+	}
+
+	private void registerMBean(MCollection<?> coll) {
+		ObjectName objectName = Management.collectionName(mbeanName, coll);
+		// a collection with the same name (by class and by name) is registered once
+		if (!mbeans.contains(objectName)) {
+			Management.register(objectName, new Management.CollectionBean(coll), CollectionMXBean.class);
+			mbeans.add(objectName);
+		}
+	}
+
+	public void unregisterMBeans() {
+		synchronized (collections) {
+			for (ObjectName objectName: mbeans)
+				Management.unregister(objectName);
+			mbeans.clear();
+			mbeanName = null;
 		}
 	}
 
-	long timerTotal;
+	public void close() {
+		unregisterMBeans();
+		for (CursorRef ref: cursors)
+			onCursorClosed(ref);
+		reapCursors();
+		MCollection<?>[] colls;
+		synchronized (collections) {
+			colls = collections.values().toArray(new MCollection<?>[collections.size()]);
+		}
+		MException error = null;
+		for (MCollection<?> coll: colls)
+			try {
+				coll.disableWriteBehind();
+			} catch (MException e) {
+				error = e;
+			}
+		if (error != null)
+			throw new MRuntimeException("Failed to flush write-behind buffers", error);
+	}
+
+	private final OperationMetrics metrics = new OperationMetrics();
+
+	private static final OperationListener[] NO_LISTENERS = new OperationListener[0];
+
+	// copy on write, read on every operation
+	volatile OperationListener[] listeners = NO_LISTENERS;
+
+	/**
+	 * Adds a listener called around every operation of this MDB, see {@link OperationListener}
+	 */
+	public synchronized void addListener(OperationListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException();
+		OperationListener[] list = Arrays.copyOf(listeners, listeners.length + 1);
+		list[listeners.length] = listener;
+		listeners = list;
+	}
+
+	public synchronized void removeListener(OperationListener listener) {
+		List<OperationListener> list = new ArrayList<OperationListener>(Arrays.asList(listeners));
+		if (list.remove(listener))
+			listeners = list.isEmpty() ? NO_LISTENERS : list.toArray(new OperationListener[list.size()]);
+	}
+
+	/**
+	 * @return the metrics of the operations of all collections of this MDB, and of its commands
+	 */
+	public OperationMetrics getMetrics() {
+		return metrics;
+	}
 
+	/**
+	 * Resets the {@link #getMetrics()}
+	 */
 	public void clearTimer() {
-		timerTotal = 0;
+		metrics.reset();
 	}
 
+	/**
+	 * @return the time spent in database operations, see {@link #getMetrics()}
+	 */
 	public long getTimeInMillis() {
-		return timerTotal / 1000000;
+		return metrics.getTotalNanos() / 1000000;
 	}
 
 	public long getTimeInNanos() {
-		return timerTotal;
+		return metrics.getTotalNanos();
 	}
 
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+/**
+ * The JMX view of a {@link MDB}, registered by {@link MDB#registerMBeans(String)} as
+ * <code>org.judison.mongodm:type=MDB,name=&lt;name&gt;</code>.<br>
+ * The TypeInfo registry is shared by all MDBs of the JVM, so its attributes are the same in every MDB.
+ *
+ * @author judison
+ */
+public interface MDBMXBean {
+
+	String getName();
+
+	String[] getCollectionNames();
+
+	int getOpenCursorCount();
+
+	/**
+	 * @see MDB#setMaxOpenCursors(int)
+	 */
+	int getMaxOpenCursors();
+
+	void setMaxOpenCursors(int max);
+
+	long getLeakedCursorCount();
+
+	/**
+	 * @return the number of operations of all collections, see {@link MDB#getMetrics()}
+	 */
+	long getOperationCount();
+
+	long getErrorCount();
+
+	long getTotalTimeMillis();
+
+	long getMappingTimeMillis();
+
+	/**
+	 * @return the number of classes in the TypeInfo registry
+	 */
+	int getTypeInfoCount();
+
+	long getTypeInfoLookupCount();
+
+	/**
+	 * @return the fraction of TypeInfo lookups that didn't have to build one, from 0 to 1
+	 */
+	double getTypeInfoHitRate();
+
+	/**
+	 * @see MDB#setCursorSiteTracking(boolean)
+	 */
+	boolean isCursorSiteTracking();
+
+	void setCursorSiteTracking(boolean tracking);
+
+	/**
+	 * @see MDB#setCursorLeakDetection(boolean)
+	 */
+	boolean isCursorLeakDetection();
+
+	void setCursorLeakDetection(boolean detection);
+
+	/**
+	 * Resets the metrics of the MDB and of all its collections
+	 */
+	void clearTimer();
+
+	/**
+	 * Flushes the write-behind buffers of all collections
+	 */
+	void flushWriteBehind() throws MException;
+
+	/**
+	 * Drops the TypeInfo registry, it's built again as classes are mapped
+	 */
+	void clearTypeInfoCache();
+
+	/**
+	 * @return the open cursors, grouped by collection and creation site, the most frequent first
+	 */
+	String[] dumpOpenCursors();
+
+}
@@ -28,6 +28,7 @@
 package org.judison.mongodm;
 
 import java.util.List;
+import java.util.Map;
 
 import org.bson.BSONObject;
 
@@ -35,6 +36,7 @@ import com.mongodb.DBCallback;
 import com.mongodb.DBCollection;
 import com.mongodb.DBDecoder;
 import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
 import com.mongodb.DefaultDBCallback;
 import com.mongodb.DefaultDBDecoder;
 
@@ -48,6 +50,41 @@ class MDecoder extends DefaultDBDecoder {
 		}
 	};
 
+	/**
+	 * Decoding totals of a thread, see {@link OperationTimer}
+	 */
+	static final class Tally {
+		long nanos;
+		long docs;
+		long bytes;
+	}
+
+	private static final ThreadLocal<Tally> TALLY = new ThreadLocal<Tally>() {
+
+		@Override
+		protected Tally initialValue() {
+			return new Tally();
+		}
+	};
+
+	static Tally tally() {
+		return TALLY.get();
+	}
+
+	@Override
+	public DBObject decode(byte[] bytes, DBCollection collection) {
+		long t = System.nanoTime();
+		try {
+			return super.decode(bytes, collection);
+		} finally {
+			Tally tally = TALLY.get();
+			tally.nanos += System.nanoTime() - t;
+			tally.docs++;
+			// the array may be bigger than the document, its size is in the first 4 bytes
+			tally.bytes += bytes.length < 4 ? bytes.length : (bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 24;
+		}
+	}
+
 	@Override
 	public DBCallback getDBCallback(DBCollection collection) {
 		return new DefaultDBCallback(collection) {
@@ -67,4 +104,33 @@ class MDecoder extends DefaultDBDecoder {
 		};
 	}
 
+	/**
+	 * Converts a value decoded by the driver's own codec (BasicDBObject, BasicDBList)
+	 * to the MObject/MList equivalent, used where the DBDecoderFactory is not honored.
+	 */
+	static Object convert(Object value) {
+		if (value instanceof MObject)
+			return value;
+		if (value instanceof List) {
+			MList list = new MList();
+			for (Object item: (List<?>)value)
+				list.add(convert(item));
+			return list;
+		}
+		if (value instanceof BSONObject) {
+			BSONObject bson = (BSONObject)value;
+			MObject obj = new MObject();
+			for (String key: bson.keySet())
+				obj.put(key, convert(bson.get(key)));
+			return obj;
+		}
+		if (value instanceof Map) {
+			MObject obj = new MObject();
+			for (Map.Entry<?, ?> e: ((Map<?, ?>)value).entrySet())
+				obj.put(String.valueOf(e.getKey()), convert(e.getValue()));
+			return obj;
+		}
+		return value;
+	}
+
 }
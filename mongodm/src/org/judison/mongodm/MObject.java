@@ -103,6 +103,12 @@ public class MObject implements DBObject, BSONObject {
 				Object bsonValue = map.remove(pi.name);
 				setField(pi, obj, mapper, bsonValue);
 			}
+		if (typeInfo.textScoreField != null && map.containsKey(typeInfo.textScoreField.name)) {
+			Object score = map.remove(typeInfo.textScoreField.name);
+			if (score instanceof Number && typeInfo.textScoreField.cls != Double.TYPE && typeInfo.textScoreField.cls != Double.class)
+				score = ((Number)score).floatValue();
+			setField(typeInfo.textScoreField, obj, mapper, score);
+		}
 		for (Entry<String, Object> e: map.entrySet())
 			put(e.getKey(), e.getValue());
 	}
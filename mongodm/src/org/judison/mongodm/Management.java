@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registers the {@link MDBMXBean} and {@link CollectionMXBean}s of a {@link MDB} in the platform MBeanServer
+ *
+ * @author judison
+ */
+final class Management {
+
+	static final String DOMAIN = "org.judison.mongodm";
+
+	private Management() {}
+
+	static ObjectName mdbName(String name) {
+		return objectName("type=MDB,name=" + quote(name));
+	}
+
+	static ObjectName collectionName(String mdbName, MCollection<?> coll) {
+		return objectName("type=Collection,mdb=" + quote(mdbName) + ",name=" + quote(coll.getName()));
+	}
+
+	private static ObjectName objectName(String properties) {
+		try {
+			return new ObjectName(DOMAIN + ":" + properties);
+		} catch (JMException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static String quote(String value) {
+		for (int i = 0; i < value.length(); i++)
+			if (",=:\"*?\\\n".indexOf(value.charAt(i)) >= 0)
+				return ObjectName.quote(value);
+		return value;
+	}
+
+	static void register(ObjectName name, Object bean, Class<?> type) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			StandardMBean mbean = new StandardMBean(bean, (Class)type, true);
+			server.registerMBean(mbean, name);
+		} catch (InstanceAlreadyExistsException e) {
+			throw new IllegalStateException("MBean already registered: " + name, e);
+		} catch (JMException e) {
+			throw new MRuntimeException("Failed to register MBean " + name, e);
+		}
+	}
+
+	static void unregister(ObjectName name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(name);
+		} catch (InstanceNotFoundException e) {
+			// already unregistered by someone else
+		} catch (JMException e) {
+			throw new MRuntimeException("Failed to unregister MBean " + name, e);
+		}
+	}
+
+	private static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	static class MDBBean implements MDBMXBean {
+
+		private final MDB mdb;
+		private final String name;
+
+		MDBBean(MDB mdb, String name) {
+			this.mdb = mdb;
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String[] getCollectionNames() {
+			MCollection<?>[] colls = mdb.getCollections();
+			String[] names = new String[colls.length];
+			for (int i = 0; i < colls.length; i++)
+				names[i] = colls[i].getName();
+			return names;
+		}
+
+		@Override
+		public int getOpenCursorCount() {
+			return mdb.getOpenCursorCount();
+		}
+
+		@Override
+		public int getMaxOpenCursors() {
+			return mdb.getMaxOpenCursors();
+		}
+
+		@Override
+		public void setMaxOpenCursors(int max) {
+			mdb.setMaxOpenCursors(max);
+		}
+
+		@Override
+		public long getLeakedCursorCount() {
+			return mdb.getLeakedCursorCount();
+		}
+
+		@Override
+		public long getOperationCount() {
+			return mdb.getMetrics().getCount();
+		}
+
+		@Override
+		public long getErrorCount() {
+			return mdb.getMetrics().getErrorCount();
+		}
+
+		@Override
+		public long getTotalTimeMillis() {
+			return millis(mdb.getMetrics().getTotalNanos());
+		}
+
+		@Override
+		public long getMappingTimeMillis() {
+			return millis(mdb.getMetrics().getMappingNanos());
+		}
+
+		@Override
+		public int getTypeInfoCount() {
+			return Mapper.getTypeInfoCount();
+		}
+
+		@Override
+		public long getTypeInfoLookupCount() {
+			return Mapper.getTypeInfoLookupCount();
+		}
+
+		@Override
+		public double getTypeInfoHitRate() {
+			long lookups = Mapper.getTypeInfoLookupCount();
+			return lookups == 0 ? 0 : 1 - (double)Mapper.getTypeInfoBuildCount() / lookups;
+		}
+
+		@Override
+		public boolean isCursorSiteTracking() {
+			return mdb.isCursorSiteTracking();
+		}
+
+		@Override
+		public void setCursorSiteTracking(boolean tracking) {
+			mdb.setCursorSiteTracking(tracking);
+		}
+
+		@Override
+		public boolean isCursorLeakDetection() {
+			return mdb.isCursorLeakDetection();
+		}
+
+		@Override
+		public void setCursorLeakDetection(boolean detection) {
+			mdb.setCursorLeakDetection(detection);
+		}
+
+		@Override
+		public void clearTimer() {
+			mdb.clearTimer();
+			for (MCollection<?> coll: mdb.getCollections())
+				coll.getMetrics().reset();
+		}
+
+		@Override
+		public void flushWriteBehind() throws MException {
+			for (MCollection<?> coll: mdb.getCollections()) {
+				WriteBehind<?> wb = coll.getWriteBehind();
+				if (wb != null)
+					wb.flush();
+			}
+		}
+
+		@Override
+		public void clearTypeInfoCache() {
+			Mapper.clearTypeInfos();
+		}
+
+		@Override
+		public String[] dumpOpenCursors() {
+			return mdb.dumpOpenCursors();
+		}
+
+	}
+
+	static class CollectionBean implements CollectionMXBean {
+
+		private final MCollection<?> coll;
+
+		CollectionBean(MCollection<?> coll) {
+			this.coll = coll;
+		}
+
+		@Override
+		public String getName() {
+			return coll.getName();
+		}
+
+		@Override
+		public String getEntityClass() {
+			return coll.cls.getName();
+		}
+
+		@Override
+		public long getOperationCount() {
+			return coll.getMetrics().getCount();
+		}
+
+		@Override
+		public long getErrorCount() {
+			return coll.getMetrics().getErrorCount();
+		}
+
+		@Override
+		public long getTotalTimeMillis() {
+			return millis(coll.getMetrics().getTotalNanos());
+		}
+
+		@Override
+		public long getMappingTimeMillis() {
+			return millis(coll.getMetrics().getMappingNanos());
+		}
+
+		@Override
+		public Map<String, OperationSnapshot> getOperations() {
+			Map<String, OperationSnapshot> map = new LinkedHashMap<String, OperationSnapshot>();
+			for (OperationType type: OperationType.values())
+				map.put(type.name(), new OperationSnapshot(coll.getMetrics().get(type)));
+			return map;
+		}
+
+		@Override
+		public boolean isWriteBehindEnabled() {
+			return coll.getWriteBehind() != null;
+		}
+
+		@Override
+		public int getWriteBehindPendingCount() {
+			WriteBehind<?> wb = coll.getWriteBehind();
+			return wb == null ? 0 : wb.getPendingCount();
+		}
+
+		@Override
+		public double getWriteBehindCoalesceRate() {
+			WriteBehind<?> wb = coll.getWriteBehind();
+			if (wb == null || wb.getBufferedCount() == 0)
+				return 0;
+			return (double)wb.getCoalescedCount() / wb.getBufferedCount();
+		}
+
+		@Override
+		public void resetMetrics() {
+			coll.getMetrics().reset();
+		}
+
+		@Override
+		public void flushWriteBehind() throws MException {
+			WriteBehind<?> wb = coll.getWriteBehind();
+			if (wb != null)
+				wb.flush();
+		}
+
+	}
+
+}
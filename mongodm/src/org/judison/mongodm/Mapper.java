@@ -34,6 +34,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.bson.BSONObject;
 import org.judison.mongodm.converter.LatLngConverter;
@@ -53,6 +55,10 @@ public final class Mapper {
 		return typeConverters.containsKey(cls);
 	}
 
+	static TypeConverter<?> getTypeConverter(Class<?> cls) {
+		return typeConverters.get(cls);
+	}
+
 	static {
 		typeConverters.put(Byte.class, NumberConverter.BYTE);
 		typeConverters.put(Byte.TYPE, NumberConverter.BYTE);
@@ -78,7 +84,9 @@ public final class Mapper {
 
 	//===================================
 
-	private static Map<Class<?>, TypeInfo> typeInfos = new HashMap<Class<?>, TypeInfo>();
+	private static final ConcurrentHashMap<Class<?>, TypeInfo> typeInfos = new ConcurrentHashMap<Class<?>, TypeInfo>();
+	private static final LongAdder typeInfoLookups = new LongAdder();
+	private static final LongAdder typeInfoBuilds = new LongAdder();
 
 	static TypeInfo getTypeInfo(Class<?> cls) {
 		return getTypeInfo(cls, true);
@@ -86,12 +94,7 @@ public final class Mapper {
 
 	static TypeInfo getTypeInfo(Class<?> cls, boolean canThrow) {
 		try {
-			TypeInfo info = typeInfos.get(cls);
-			if (info == null) {
-				info = new TypeInfo(cls);
-				typeInfos.put(cls, info);
-			}
-			return info;
+			return lookupTypeInfo(cls);
 		} catch (RuntimeException e) {
 			if (canThrow)
 				throw e;
@@ -100,12 +103,47 @@ public final class Mapper {
 		}
 	}
 
-	public static void addClass(Class<?> cls) {
+	/**
+	 * The TypeInfo of <b>cls</b>, built on the first use
+	 */
+	private static TypeInfo lookupTypeInfo(Class<?> cls) {
+		typeInfoLookups.increment();
 		TypeInfo info = typeInfos.get(cls);
 		if (info == null) {
+			// two threads may build it at the same time, they're equivalent
 			info = new TypeInfo(cls);
-			typeInfos.put(cls, info);
+			typeInfoBuilds.increment();
+			TypeInfo other = typeInfos.putIfAbsent(cls, info);
+			if (other != null)
+				info = other;
 		}
+		return info;
+	}
+
+	public static void addClass(Class<?> cls) {
+		lookupTypeInfo(cls);
+	}
+
+	/**
+	 * @return the number of classes with a TypeInfo built
+	 */
+	static int getTypeInfoCount() {
+		return typeInfos.size();
+	}
+
+	static long getTypeInfoLookupCount() {
+		return typeInfoLookups.sum();
+	}
+
+	static long getTypeInfoBuildCount() {
+		return typeInfoBuilds.sum();
+	}
+
+	/**
+	 * Drops all TypeInfos, they're built again as needed (the ones already held by collections are kept)
+	 */
+	static void clearTypeInfos() {
+		typeInfos.clear();
 	}
 
 	//========================================================================
@@ -134,7 +172,11 @@ public final class Mapper {
 		}
 	}
 
-	Mapper() {}
+	final MDB mdb;
+
+	Mapper(MDB mdb) {
+		this.mdb = mdb;
+	}
 
 	public <T> T bsonToJava(Class<T> cls, Object bsonValue) {
 		return bsonToJava(cls, null, bsonValue);
@@ -167,6 +209,9 @@ public final class Mapper {
 		if (tc != null)
 			return tc.bsonToJava(bsonValue);
 
+		if (cls == Ref.class)
+			return (T)new Ref(mdb, itemCls, bsonValue);
+
 		if (cls.isEnum())
 			return (T)Enum.valueOf((Class<? extends Enum>)cls, bsonValue.toString());
 
@@ -222,14 +267,12 @@ public final class Mapper {
 			}
 			BSONObject bsonObject = (BSONObject)bsonValue;
 
-			TypeInfo typeInfo = typeInfos.get(cls);
-			if (typeInfo == null)
-				try {
-					typeInfo = new TypeInfo(cls);
-					typeInfos.put(cls, typeInfo);
-				} catch (Throwable e) {
-					throw new IllegalArgumentException("Can't map to " + cls.getName(), e);
-				}
+			TypeInfo typeInfo;
+			try {
+				typeInfo = lookupTypeInfo(cls);
+			} catch (Throwable e) {
+				throw new IllegalArgumentException("Can't map to " + cls.getName(), e);
+			}
 
 			try {
 				javaObj = cls.newInstance();
@@ -240,7 +283,8 @@ public final class Mapper {
 			if (mobj == null) {
 				// to criando um novo MObject, mas o BSONObject q tava la, vai continuar
 				mobj = new MObject(typeInfo, this, javaObj);
-				mobj.putAll(bsonObject);
+				for (String name: bsonObject.keySet())
+					mobj.put(name, MDecoder.convert(bsonObject.get(name)));
 			} else {
 				// faço meu MObject ficar mapeado
 				mobj.mapToObject(typeInfo, this, javaObj);
@@ -267,6 +311,9 @@ public final class Mapper {
 
 		Class<?> cls = javaValue.getClass();
 
+		if (pi != null && pi.geoJson && javaValue instanceof LatLng)
+			return ((LatLng)javaValue).toGeoJSON();
+
 		@SuppressWarnings("unchecked")
 		TypeConverter<Object> tc = (TypeConverter<Object>)typeConverters.get(cls);
 		if (tc != null)
@@ -275,20 +322,21 @@ public final class Mapper {
 		if (cls.isEnum())
 			return ((Enum<?>)javaValue).name();
 
+		if (javaValue instanceof Ref)
+			return javaToBson(((Ref<?>)javaValue).getId());
+
 		if ((javaValue instanceof List) || cls.isArray())
 			return new MList(cls.isArray(), javaValue, this, pi == null ? null : pi.itemCls);//TODO nao usar null, se pi == null
 
 		if (javaValue instanceof BSONObject)
 			return javaValue;
 
-		TypeInfo typeInfo = typeInfos.get(cls);
-		if (typeInfo == null)
-			try {
-				typeInfo = new TypeInfo(cls);
-				typeInfos.put(cls, typeInfo);
-			} catch (Throwable e) {
-				throw new IllegalArgumentException("Can't map " + cls.getName() + " to MObject", e);
-			}
+		TypeInfo typeInfo;
+		try {
+			typeInfo = lookupTypeInfo(cls);
+		} catch (Throwable e) {
+			throw new IllegalArgumentException("Can't map " + cls.getName() + " to MObject", e);
+		}
 
 		return new MObject(typeInfo, this, javaValue);
 	}
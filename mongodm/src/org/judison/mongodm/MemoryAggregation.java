@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bson.BSONObject;
+
+/**
+ * Runs an aggregation pipeline over a {@link MemoryCollection}.<br>
+ * Stages: <code>$geoNear</code> (first), <code>$match</code>, <code>$project</code>, <code>$sort</code>, <code>$skip</code>,
+ * <code>$limit</code>, <code>$unwind</code>, <code>$group</code>, <code>$count</code> and <code>$facet</code>.
+ * A leading <code>$match</code> uses the collection's indexes, like a find.<br>
+ * Expressions: field paths, <code>$$ROOT</code>, <code>$literal</code>, <code>$add</code>, <code>$subtract</code>,
+ * <code>$multiply</code>, <code>$divide</code>, <code>$mod</code>, <code>$concat</code>, <code>$toLower</code>,
+ * <code>$toUpper</code>, <code>$ifNull</code>, <code>$cond</code>, <code>$size</code>, comparisons and boolean operators.
+ *
+ * @author judison
+ */
+final class MemoryAggregation {
+
+	private MemoryAggregation() {}
+
+	static List<MObject> run(MemoryCollection coll, List<MObject> stages) throws MException {
+		List<MObject> docs;
+		int first = 0;
+		if (!stages.isEmpty() && stages.get(0).containsField("$geoNear")) {
+			docs = geoNear(coll, toMObject(stages.get(0).get("$geoNear")));
+			first = 1;
+		} else {
+			MObject query = new MObject();
+			if (!stages.isEmpty() && stages.get(0).containsField("$match")) {
+				query = toMObject(stages.get(0).get("$match"));
+				first = 1;
+			}
+			docs = new ArrayList<MObject>();
+			for (MemoryCollection.Record rec: coll.match(query))
+				docs.add((MObject)MemoryCollection.copy(rec.doc));
+		}
+		return run(docs, stages.subList(first, stages.size()));
+	}
+
+	private static List<MObject> run(List<MObject> docs, List<MObject> stages) throws MException {
+		for (MObject stage: stages) {
+			String op = PipelineOptimizer.name(stage);
+			Object spec = stage.get(op);
+			if (op.equals("$match")) {
+				QueryMatcher matcher = QueryMatcher.compile(toMObject(spec));
+				List<MObject> result = new ArrayList<MObject>();
+				for (MObject doc: docs)
+					if (matcher.matches(doc))
+						result.add(doc);
+				docs = result;
+			} else if (op.equals("$project")) {
+				List<MObject> result = new ArrayList<MObject>(docs.size());
+				for (MObject doc: docs)
+					result.add(project(doc, toMObject(spec)));
+				docs = result;
+			} else if (op.equals("$sort")) {
+				final Comparator<BSONObject> order = MemoryCollection.order(toMObject(spec));
+				docs = new ArrayList<MObject>(docs);
+				Collections.sort(docs, new Comparator<MObject>() {
+
+					@Override
+					public int compare(MObject a, MObject b) {
+						return order.compare(a, b);
+					}
+				});
+			} else if (op.equals("$skip")) {
+				int skip = ((Number)spec).intValue();
+				docs = docs.subList(Math.min(skip, docs.size()), docs.size());
+			} else if (op.equals("$limit")) {
+				int limit = ((Number)spec).intValue();
+				docs = docs.subList(0, Math.min(limit, docs.size()));
+			} else if (op.equals("$unwind"))
+				docs = unwind(docs, spec);
+			else if (op.equals("$group"))
+				docs = group(docs, toMObject(spec));
+			else if (op.equals("$count")) {
+				List<MObject> result = new ArrayList<MObject>(1);
+				if (!docs.isEmpty())
+					result.add(new MObject((String)spec, docs.size()));
+				docs = result;
+			} else if (op.equals("$facet")) {
+				MObject facets = toMObject(spec);
+				MObject result = new MObject();
+				for (String name: facets.keySet()) {
+					List<MObject> sub = new ArrayList<MObject>();
+					for (Object s: (List<?>)facets.get(name))
+						sub.add(toMObject(s));
+					List<MObject> input = new ArrayList<MObject>(docs.size());
+					for (MObject doc: docs)
+						input.add((MObject)MemoryCollection.copy(doc));
+					MList list = new MList();
+					list.addAll(run(input, sub));
+					result.put(name, list);
+				}
+				docs = Collections.singletonList(result);
+			} else
+				throw new MException("Stage " + op + " isn't supported in memory");
+		}
+		return new ArrayList<MObject>(docs);
+	}
+
+	private static MObject toMObject(Object value) {
+		return value instanceof MObject ? (MObject)value : new MObject((BSONObject)value);
+	}
+
+	//========
+	// Stages
+	//========
+
+	private static List<MObject> geoNear(MemoryCollection coll, MObject spec) throws MException {
+		List<String> fields = coll.getGeoFields();
+		if (fields.size() != 1)
+			throw new MException("$geoNear needs exactly one 2dsphere index, " + coll.getName() + " has " + fields.size());
+		String field = fields.get(0);
+		LatLng near = point(spec.get("near"));
+		if (near == null)
+			throw new MException("Invalid $geoNear point: " + spec.get("near"));
+		String distanceField = (String)spec.get("distanceField");
+		double max = spec.get("maxDistance") instanceof Number ? ((Number)spec.get("maxDistance")).doubleValue() : Double.POSITIVE_INFINITY;
+		double min = spec.get("minDistance") instanceof Number ? ((Number)spec.get("minDistance")).doubleValue() : 0;
+		MObject query = spec.get("query") == null ? new MObject() : toMObject(spec.get("query"));
+
+		final Map<MObject, Double> distances = new IdentityHashMap<MObject, Double>();
+		List<MObject> result = new ArrayList<MObject>();
+		for (MemoryCollection.Record rec: coll.match(query)) {
+			LatLng point = point(rec.doc.deepGet(field));
+			if (point == null)
+				continue;
+			double distance = near.getDistanceTo(point);
+			if (distance < min || distance > max)
+				continue;
+			MObject doc = (MObject)MemoryCollection.copy(rec.doc);
+			doc.deepPut(distanceField, distance);
+			distances.put(doc, distance);
+			result.add(doc);
+		}
+		Collections.sort(result, new Comparator<MObject>() {
+
+			@Override
+			public int compare(MObject a, MObject b) {
+				return Double.compare(distances.get(a), distances.get(b));
+			}
+		});
+		return result;
+	}
+
+	private static LatLng point(Object value) {
+		if (!(value instanceof MObject))
+			return null;
+		try {
+			return new LatLng((MObject)value);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static MObject project(MObject doc, MObject spec) throws MException {
+		boolean exclusion = true;
+		for (String field: spec.keySet())
+			if (!field.equals("_id") && !isFlag(spec.get(field), false))
+				exclusion = false;
+		if (exclusion)
+			return MemoryCollection.project(doc, spec);
+
+		MObject keys = new MObject();
+		List<String> computed = new ArrayList<String>();
+		for (String field: spec.keySet()) {
+			Object value = spec.get(field);
+			if (isFlag(value, true) || isFlag(value, false))
+				keys.put(field, value);
+			else
+				computed.add(field);
+		}
+		if (!keys.containsField("_id") && !computed.contains("_id"))
+			keys.put("_id", 1);
+		MObject result = MemoryCollection.project(doc, keys);
+		if (!keys.keySet().isEmpty() && !hasInclusion(keys))
+			// only _id: false, and computed fields
+			result = new MObject();
+		for (String field: computed) {
+			Object value = eval(doc, spec.get(field));
+			if (field.indexOf('.') >= 0)
+				result.deepPut(field, value);
+			else
+				result.put(field, value);
+		}
+		return result;
+	}
+
+	private static boolean hasInclusion(MObject keys) {
+		for (String field: keys.keySet())
+			if (isFlag(keys.get(field), true))
+				return true;
+		return false;
+	}
+
+	private static boolean isFlag(Object value, boolean on) {
+		if (value instanceof Boolean)
+			return (Boolean)value == on;
+		if (value instanceof Number)
+			return (((Number)value).doubleValue() != 0) == on;
+		return false;
+	}
+
+	private static List<MObject> unwind(List<MObject> docs, Object spec) {
+		String path;
+		String indexField = null;
+		boolean preserve = false;
+		if (spec instanceof String)
+			path = (String)spec;
+		else {
+			BSONObject opts = (BSONObject)spec;
+			path = (String)opts.get("path");
+			indexField = (String)opts.get("includeArrayIndex");
+			preserve = Boolean.TRUE.equals(opts.get("preserveNullAndEmptyArrays"));
+		}
+		if (path.startsWith("$"))
+			path = path.substring(1);
+		List<MObject> result = new ArrayList<MObject>();
+		for (MObject doc: docs) {
+			Object value = doc.deepGet(path);
+			if (value instanceof List && !((List<?>)value).isEmpty()) {
+				List<?> items = (List<?>)value;
+				for (int i = 0; i < items.size(); i++) {
+					MObject copy = (MObject)MemoryCollection.copy(doc);
+					copy.deepPut(path, MemoryCollection.copy(items.get(i)));
+					if (indexField != null)
+						copy.put(indexField, (long)i);
+					result.add(copy);
+				}
+			} else if (value != null && !(value instanceof List)) {
+				if (indexField != null)
+					doc.put(indexField, null);
+				result.add(doc);
+			} else if (preserve) {
+				if (indexField != null)
+					doc.put(indexField, null);
+				result.add(doc);
+			}
+		}
+		return result;
+	}
+
+	private static final class Accumulator {
+		final String op;
+		final Object expr;
+		Object value;
+		double sum;
+		boolean doubles;
+		long count;
+		boolean seen;
+		MList list;
+
+		Accumulator(String op, Object expr) {
+			this.op = op;
+			this.expr = expr;
+		}
+
+		void add(Object v) throws MException {
+			if (op.equals("$sum") || op.equals("$avg")) {
+				if (v instanceof Number) {
+					if (v instanceof Double || v instanceof Float)
+						doubles = true;
+					sum += ((Number)v).doubleValue();
+					value = value == null ? (Number)v : Update.add((Number)value, (Number)v);
+					count++;
+				}
+			} else if (op.equals("$min") || op.equals("$max")) {
+				if (v != null) {
+					int c = value == null ? 0 : BsonOrder.compareValues(v, value);
+					if (value == null || (op.equals("$min") ? c < 0 : c > 0))
+						value = v;
+				}
+			} else if (op.equals("$first")) {
+				if (!seen)
+					value = v;
+			} else if (op.equals("$last"))
+				value = v;
+			else if (op.equals("$push") || op.equals("$addToSet")) {
+				if (list == null)
+					list = new MList();
+				boolean dup = false;
+				if (op.equals("$addToSet"))
+					for (Object item: list)
+						if (QueryMatcher.valueEquals(item, v))
+							dup = true;
+				if (!dup)
+					list.add(v);
+			} else
+				throw new MException("Accumulator " + op + " isn't supported in memory");
+			seen = true;
+		}
+
+		Object result() {
+			if (op.equals("$sum"))
+				return value == null ? 0 : (doubles ? (Object)sum : value);
+			if (op.equals("$avg"))
+				return count == 0 ? null : (Object)(sum / count);
+			if (op.equals("$push") || op.equals("$addToSet"))
+				return list == null ? new MList() : list;
+			return value;
+		}
+	}
+
+	private static List<MObject> group(List<MObject> docs, MObject spec) throws MException {
+		if (!spec.containsField("_id"))
+			throw new MException("$group needs an _id");
+		Map<Object, List<Accumulator>> groups = new TreeMap<Object, List<Accumulator>>(BsonOrder.INSTANCE);
+		for (MObject doc: docs) {
+			Object id = eval(doc, spec.get("_id"));
+			List<Accumulator> accs = groups.get(id);
+			if (accs == null) {
+				accs = new ArrayList<Accumulator>();
+				for (String field: spec.keySet())
+					if (!field.equals("_id")) {
+						BSONObject acc = (BSONObject)spec.get(field);
+						String op = acc.keySet().iterator().next();
+						accs.add(new Accumulator(op, acc.get(op)));
+					}
+				groups.put(id, accs);
+			}
+			for (Accumulator acc: accs)
+				acc.add(eval(doc, acc.expr));
+		}
+		List<MObject> result = new ArrayList<MObject>(groups.size());
+		for (Map.Entry<Object, List<Accumulator>> e: groups.entrySet()) {
+			MObject doc = new MObject("_id", e.getKey());
+			int i = 0;
+			for (String field: spec.keySet())
+				if (!field.equals("_id"))
+					doc.put(field, e.getValue().get(i++).result());
+			result.add(doc);
+		}
+		return result;
+	}
+
+	//=============
+	// Expressions
+	//=============
+
+	static Object eval(MObject doc, Object expr) throws MException {
+		if (expr instanceof String) {
+			String str = (String)expr;
+			if (str.equals("$$ROOT") || str.equals("$$CURRENT"))
+				return doc;
+			if (str.startsWith("$$ROOT.") || str.startsWith("$$CURRENT."))
+				str = "$" + str.substring(str.indexOf('.') + 1);
+			if (str.startsWith("$") && !str.startsWith("$$"))
+				return field(doc, str.substring(1).split("\\."), 0);
+			return str;
+		}
+		if (expr instanceof List) {
+			MList list = new MList();
+			for (Object item: (List<?>)expr)
+				list.add(eval(doc, item));
+			return list;
+		}
+		if (expr instanceof BSONObject) {
+			BSONObject obj = (BSONObject)expr;
+			if (obj.keySet().size() == 1 && obj.keySet().iterator().next().startsWith("$")) {
+				String op = obj.keySet().iterator().next();
+				return operator(doc, op, obj.get(op));
+			}
+			MObject result = new MObject();
+			for (String field: obj.keySet())
+				result.put(field, eval(doc, obj.get(field)));
+			return result;
+		}
+		return expr;
+	}
+
+	private static Object field(Object cur, String[] path, int i) {
+		if (i == path.length)
+			return cur;
+		if (cur instanceof List) {
+			MList list = new MList();
+			for (Object item: (List<?>)cur)
+				if (item instanceof BSONObject && !(item instanceof List)) {
+					Object value = field(item, path, i);
+					if (value != null)
+						list.add(value);
+				}
+			return list;
+		}
+		if (cur instanceof BSONObject)
+			return field(((BSONObject)cur).get(path[i]), path, i + 1);
+		return null;
+	}
+
+	private static Object operator(MObject doc, String op, Object arg) throws MException {
+		if (op.equals("$literal"))
+			return arg;
+		List<Object> args = new ArrayList<Object>();
+		if (arg instanceof List)
+			for (Object a: (List<?>)arg)
+				args.add(eval(doc, a));
+		else
+			args.add(eval(doc, arg));
+
+		if (op.equals("$add")) {
+			Number sum = 0;
+			Date date = null;
+			for (Object a: args) {
+				if (a == null)
+					return null;
+				if (a instanceof Date)
+					date = (Date)a;
+				else
+					sum = Update.add(sum, number(op, a));
+			}
+			return date != null ? new Date(date.getTime() + sum.longValue()) : sum;
+		}
+		if (op.equals("$multiply")) {
+			Number product = 1;
+			for (Object a: args) {
+				if (a == null)
+					return null;
+				Number n = number(op, a);
+				if (product instanceof Double || n instanceof Double || n instanceof Float)
+					product = product.doubleValue() * n.doubleValue();
+				else
+					product = Update.add(0L, product.longValue() * n.longValue());
+			}
+			return product;
+		}
+		if (op.equals("$subtract") || op.equals("$divide") || op.equals("$mod")) {
+			if (args.size() != 2)
+				throw new MException(op + " needs 2 arguments");
+			Object a = args.get(0), b = args.get(1);
+			if (a == null || b == null)
+				return null;
+			if (op.equals("$subtract")) {
+				if (a instanceof Date && b instanceof Date)
+					return ((Date)a).getTime() - ((Date)b).getTime();
+				if (a instanceof Date)
+					return new Date(((Date)a).getTime() - number(op, b).longValue());
+				Number nb = number(op, b);
+				return Update.add(number(op, a), nb instanceof Double || nb instanceof Float ? (Number)(-nb.doubleValue()) : (Number)(-nb.longValue()));
+			}
+			if (number(op, b).doubleValue() == 0)
+				throw new MException("Can't " + op + " by zero");
+			if (op.equals("$divide"))
+				return number(op, a).doubleValue() / number(op, b).doubleValue();
+			Number na = number(op, a), nb = number(op, b);
+			if (na instanceof Double || nb instanceof Double || na instanceof Float || nb instanceof Float)
+				return na.doubleValue() % nb.doubleValue();
+			return Update.add(0L, na.longValue() % nb.longValue());
+		}
+		if (op.equals("$concat")) {
+			StringBuilder buf = new StringBuilder();
+			for (Object a: args) {
+				if (a == null)
+					return null;
+				if (!(a instanceof String))
+					throw new MException("$concat only supports strings: " + a);
+				buf.append(a);
+			}
+			return buf.toString();
+		}
+		if (op.equals("$toLower") || op.equals("$toUpper")) {
+			Object a = args.get(0);
+			String str = a == null ? "" : a.toString();
+			return op.equals("$toLower") ? str.toLowerCase() : str.toUpperCase();
+		}
+		if (op.equals("$ifNull")) {
+			for (Object a: args)
+				if (a != null)
+					return a;
+			return null;
+		}
+		if (op.equals("$cond")) {
+			if (arg instanceof BSONObject && !(arg instanceof List)) {
+				BSONObject c = (BSONObject)arg;
+				return truthy(eval(doc, c.get("if"))) ? eval(doc, c.get("then")) : eval(doc, c.get("else"));
+			}
+			if (args.size() != 3)
+				throw new MException("$cond needs 3 arguments");
+			return truthy(args.get(0)) ? args.get(1) : args.get(2);
+		}
+		if (op.equals("$size")) {
+			if (!(args.get(0) instanceof List))
+				throw new MException("The argument to $size must be an array: " + args.get(0));
+			return ((List<?>)args.get(0)).size();
+		}
+		if (op.equals("$and")) {
+			for (Object a: args)
+				if (!truthy(a))
+					return false;
+			return true;
+		}
+		if (op.equals("$or")) {
+			for (Object a: args)
+				if (truthy(a))
+					return true;
+			return false;
+		}
+		if (op.equals("$not"))
+			return !truthy(args.get(0));
+		if (op.equals("$eq") || op.equals("$ne") || op.equals("$gt") || op.equals("$gte") || op.equals("$lt") || op.equals("$lte") || op.equals("$cmp")) {
+			if (args.size() != 2)
+				throw new MException(op + " needs 2 arguments");
+			int c = BsonOrder.compareValues(args.get(0), args.get(1));
+			if (op.equals("$cmp"))
+				return c < 0 ? -1 : (c == 0 ? 0 : 1);
+			if (op.equals("$eq"))
+				return c == 0;
+			if (op.equals("$ne"))
+				return c != 0;
+			if (op.equals("$gt"))
+				return c > 0;
+			if (op.equals("$gte"))
+				return c >= 0;
+			if (op.equals("$lt"))
+				return c < 0;
+			return c <= 0;
+		}
+		throw new MException("Expression " + op + " isn't supported in memory");
+	}
+
+	private static Number number(String op, Object value) throws MException {
+		if (!(value instanceof Number))
+			throw new MException(op + " only supports numeric types: " + value);
+		return (Number)value;
+	}
+
+	private static boolean truthy(Object value) {
+		if (value == null || Boolean.FALSE.equals(value))
+			return false;
+		if (value instanceof Number)
+			return ((Number)value).doubleValue() != 0;
+		return true;
+	}
+
+}
@@ -0,0 +1,860 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+/**
+ * A collection of a {@link MemoryEngine}.<br>
+ * Documents are kept by <code>_id</code> as private copies, which are replaced (never changed) by writes,
+ * so reads don't lock. Writes to the same document are serialized by a lock striped by <code>_id</code>,
+ * and each one is atomic, like in the server.<br>
+ * Queries are evaluated by {@link QueryMatcher}, using the first ascending/descending index over an equality,
+ * <code>$in</code> or range condition of the query to find the candidates.<br>
+ * The <code>_id</code>s are also kept in order, in a skip list, and a sorted find with a limit walks the index
+ * that gives its order, stopping after skip + limit matches.
+ *
+ * @author judison
+ */
+final class MemoryCollection {
+
+	private static final int STRIPES = 16;
+
+	static final class Record {
+		final long seq;
+		final MObject doc;
+
+		Record(long seq, MObject doc) {
+			this.seq = seq;
+			this.doc = doc;
+		}
+	}
+
+	private static final Comparator<Record> NATURAL = new Comparator<Record>() {
+
+		@Override
+		public int compare(Record a, Record b) {
+			return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	private final String name;
+	private final ConcurrentHashMap<Object, Record> docs = new ConcurrentHashMap<Object, Record>();
+	private final AtomicLong seq = new AtomicLong();
+	private final MemoryIndex idIndex = new MemoryIndex(new MObject("_id", 1), new MObject("name", "_id_"));
+	private final List<MemoryIndex> indexes = new CopyOnWriteArrayList<MemoryIndex>();
+	private final List<String> geoFields = new CopyOnWriteArrayList<String>();
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+	private final ReentrantLock uniqueLock = new ReentrantLock();
+	private final List<MObject> indexSpecs = new CopyOnWriteArrayList<MObject>();
+	private final MemoryStore store;
+
+	/**
+	 * @param store where the writes are persisted, null to keep the documents only in memory
+	 */
+	MemoryCollection(String name, MemoryStore store) throws MException {
+		this.name = name;
+		this.store = store;
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new ReentrantLock();
+		if (store != null) {
+			for (MObject doc: store.open()) {
+				docs.put(idKey(doc.get("_id")), new Record(seq.incrementAndGet(), doc));
+				idIndex.add(idIndex.keys(doc), doc.get("_id"));
+			}
+			for (MObject spec: store.loadIndexes())
+				createIndex((BSONObject)spec.get("key"), (BSONObject)spec.get("options"));
+		}
+	}
+
+	MemoryStore getStore() {
+		return store;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int size() {
+		return docs.size();
+	}
+
+	//=========
+	// Indexes
+	//=========
+
+	/**
+	 * Text indexes are ignored, and 2dsphere ones are only used to find the field of a $geoNear,
+	 * queries over them are evaluated by a full scan
+	 */
+	void createIndex(BSONObject keys, BSONObject options) throws MException {
+		MObject opts = options == null ? new MObject() : new MObject(options);
+		if (!MemoryIndex.isSupported(keys)) {
+			for (String field: keys.keySet())
+				if ("2dsphere".equals(keys.get(field)) && !geoFields.contains(field)) {
+					geoFields.add(field);
+					saveIndexSpec(keys, opts);
+				}
+			return;
+		}
+		if (opts.get("name") == null) {
+			StringBuilder buf = new StringBuilder();
+			for (String field: keys.keySet())
+				buf.append(buf.length() == 0 ? "" : "_").append(field).append('_').append(keys.get(field));
+			opts.put("name", buf.toString());
+		}
+		for (MemoryIndex idx: indexes)
+			if (idx.name.equals(opts.get("name")))
+				return;
+		MemoryIndex idx = new MemoryIndex(keys, opts);
+		lockAll();
+		try {
+			for (Record rec: docs.values()) {
+				Object id = rec.doc.get("_id");
+				List<Object[]> k = idx.keys(rec.doc);
+				Object dup = idx.findDuplicate(k, id);
+				if (dup != null)
+					throw duplicateKey(idx, k);
+				idx.add(k, id);
+			}
+			indexes.add(idx);
+			saveIndexSpec(keys, opts);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	private void saveIndexSpec(BSONObject keys, MObject options) throws MException {
+		MObject spec = new MObject("key", copy(keys));
+		spec.put("options", options);
+		indexSpecs.add(spec);
+		if (store != null)
+			store.saveIndexes(indexSpecs);
+	}
+
+	List<MemoryIndex> getIndexes() {
+		return Collections.unmodifiableList(indexes);
+	}
+
+	List<String> getGeoFields() {
+		return Collections.unmodifiableList(geoFields);
+	}
+
+	private MException duplicateKey(MemoryIndex idx, List<Object[]> keys) {
+		StringBuilder buf = new StringBuilder();
+		for (Object[] key: keys)
+			for (int i = 0; i < key.length; i++)
+				buf.append(buf.length() == 0 ? "{ " : ", ").append(idx.fields[i]).append(": ").append(key[i]);
+		return new MException("E11000 duplicate key error index: " + name + ".$" + idx.name + " dup key: " + buf + " }");
+	}
+
+	//=======
+	// Locks
+	//=======
+
+	private ReentrantLock lock(Object key) {
+		ReentrantLock lock = locks[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+		lock.lock();
+		return lock;
+	}
+
+	private void lockAll() {
+		for (ReentrantLock lock: locks)
+			lock.lock();
+		uniqueLock.lock();
+	}
+
+	private void unlockAll() {
+		uniqueLock.unlock();
+		for (int i = STRIPES - 1; i >= 0; i--)
+			locks[i].unlock();
+	}
+
+	/**
+	 * The key of an _id in the map, numbers are equal by value, like in the server
+	 */
+	static Object idKey(Object id) {
+		if (id instanceof Number) {
+			Number n = (Number)id;
+			double d = n.doubleValue();
+			if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte)
+				return n.longValue();
+			if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 9.007199254740992E15)
+				return (long)d;
+			return d;
+		}
+		if (id instanceof BSONObject)
+			return id.toString();
+		return id;
+	}
+
+	//========
+	// Writes
+	//========
+
+	/**
+	 * Puts <b>doc</b> (already a private copy) in the place of <b>old</b>, with the stripe lock of <b>key</b> held
+	 */
+	private long store(Object key, Record old, MObject doc) throws MException {
+		Object id = doc.get("_id");
+		List<List<Object[]>> newKeys = new ArrayList<List<Object[]>>(indexes.size());
+		boolean unique = false;
+		for (MemoryIndex idx: indexes) {
+			newKeys.add(idx.keys(doc));
+			unique |= idx.unique;
+		}
+		if (unique)
+			uniqueLock.lock();
+		try {
+			for (int i = 0; i < indexes.size(); i++)
+				if (indexes.get(i).findDuplicate(newKeys.get(i), id) != null)
+					throw duplicateKey(indexes.get(i), newKeys.get(i));
+			// new keys first, so a concurrent reader never misses the document
+			for (int i = 0; i < indexes.size(); i++)
+				indexes.get(i).add(newKeys.get(i), id);
+			if (old == null)
+				idIndex.add(idIndex.keys(doc), id);
+			docs.put(key, new Record(old == null ? seq.incrementAndGet() : old.seq, doc));
+			if (old != null)
+				for (int i = 0; i < indexes.size(); i++)
+					indexes.get(i).removeStale(indexes.get(i).keys(old.doc), newKeys.get(i), id);
+			return store != null ? store.put(doc) : 0;
+		} finally {
+			if (unique)
+				uniqueLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the document of <b>key</b>, with its stripe lock held
+	 */
+	private long delete(Object key, Record old) throws MException {
+		docs.remove(key);
+		Object id = old.doc.get("_id");
+		idIndex.remove(idIndex.keys(old.doc), id);
+		for (MemoryIndex idx: indexes)
+			idx.remove(idx.keys(old.doc), id);
+		return store != null ? store.delete(id) : 0;
+	}
+
+	/**
+	 * Waits for the record of <b>ticket</b> to be durable, without holding any lock
+	 */
+	private void sync(long ticket) throws MException {
+		if (store != null)
+			store.sync(ticket);
+	}
+
+	/**
+	 * Inserts or replaces by <code>_id</code>, like <code>DBCollection.save</code>, a missing _id is generated
+	 * and put in <b>data</b> too
+	 */
+	void save(MObject data) throws MException {
+		Object id = data.get("_id");
+		if (id == null) {
+			id = new ObjectId();
+			data.put("_id", id);
+		}
+		MObject doc = new MObject("_id", copy(id));
+		for (String field: data.keySet())
+			if (!field.equals("_id"))
+				doc.put(field, copy(data.get(field)));
+		Object key = idKey(id);
+		long ticket;
+		ReentrantLock lock = lock(key);
+		try {
+			ticket = store(key, docs.get(key), doc);
+		} finally {
+			lock.unlock();
+		}
+		sync(ticket);
+	}
+
+	private void insert(MObject doc) throws MException {
+		Object id = doc.get("_id");
+		if (id == null) {
+			MObject withId = new MObject("_id", new ObjectId());
+			withId.putAll(doc);
+			doc = withId;
+			id = doc.get("_id");
+		}
+		Object key = idKey(id);
+		long ticket;
+		ReentrantLock lock = lock(key);
+		try {
+			if (docs.containsKey(key))
+				throw new MException("E11000 duplicate key error index: " + name + ".$_id_ dup key: { _id: " + id + " }");
+			ticket = store(key, null, doc);
+		} finally {
+			lock.unlock();
+		}
+		sync(ticket);
+	}
+
+	/**
+	 * @return the number of documents updated, or 1 if upserted
+	 */
+	int update(MObject query, MObject update, boolean upsert, boolean multi) throws MException {
+		if (multi && !MemoryUpdate.isOperatorUpdate(update))
+			throw new MException("multi update only works with $ operators");
+		QueryMatcher matcher = QueryMatcher.compile(query);
+		int n = 0;
+		long ticket = 0;
+		// a single update takes the first match in natural order
+		for (Record cand: candidates(query, !multi)) {
+			Object key = idKey(cand.doc.get("_id"));
+			ReentrantLock lock = lock(key);
+			try {
+				Record rec = docs.get(key);
+				if (rec == null || !matcher.matches(rec.doc))
+					continue;
+				ticket = store(key, rec, MemoryUpdate.apply(rec.doc, update, query, false));
+				n++;
+			} finally {
+				lock.unlock();
+			}
+			if (!multi)
+				break;
+		}
+		sync(ticket);
+		if (n == 0 && upsert) {
+			insert(MemoryUpdate.apply(null, update, query, true));
+			n = 1;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the original or modified document (by <b>returnNew</b>), projected by <b>fields</b>,
+	 * or null if no document matched
+	 */
+	MObject findAndModify(MObject query, MObject fields, MObject sort, boolean remove, MObject update, boolean returnNew, boolean upsert) throws MException {
+		if (query == null)
+			query = new MObject();
+		QueryMatcher matcher = QueryMatcher.compile(query);
+		List<Record> cands = candidates(query, sort == null || sort.keySet().isEmpty());
+		sort(cands, sort);
+		for (Record cand: cands) {
+			Object key = idKey(cand.doc.get("_id"));
+			MObject result;
+			long ticket;
+			ReentrantLock lock = lock(key);
+			try {
+				Record rec = docs.get(key);
+				if (rec == null || !matcher.matches(rec.doc))
+					continue;
+				if (remove) {
+					ticket = delete(key, rec);
+					result = rec.doc;
+				} else {
+					MObject doc = MemoryUpdate.apply(rec.doc, update, query, false);
+					ticket = store(key, rec, doc);
+					result = returnNew ? doc : rec.doc;
+				}
+			} finally {
+				lock.unlock();
+			}
+			sync(ticket);
+			return project(result, fields);
+		}
+		if (upsert && !remove) {
+			MObject doc = MemoryUpdate.apply(null, update, query, true);
+			insert(doc);
+			return returnNew ? project(doc, fields) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of documents removed
+	 */
+	int remove(MObject query) throws MException {
+		QueryMatcher matcher = QueryMatcher.compile(query);
+		int n = 0;
+		long ticket = 0;
+		for (Record cand: candidates(query, false)) {
+			Object key = idKey(cand.doc.get("_id"));
+			ReentrantLock lock = lock(key);
+			try {
+				Record rec = docs.get(key);
+				if (rec == null || !matcher.matches(rec.doc))
+					continue;
+				ticket = delete(key, rec);
+				n++;
+			} finally {
+				lock.unlock();
+			}
+		}
+		sync(ticket);
+		return n;
+	}
+
+	void clear() throws MException {
+		lockAll();
+		try {
+			docs.clear();
+			idIndex.clear();
+			for (MemoryIndex idx: indexes)
+				idx.clear();
+			if (store != null)
+				store.compact(this);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Compacts the persisted segments into a snapshot, see {@link MemoryStore#compact(MemoryCollection)}
+	 */
+	void compact() throws MException {
+		if (store != null)
+			store.compact(this);
+	}
+
+	/**
+	 * @return the current documents, as they are stored, in natural order
+	 */
+	List<MObject> snapshot() {
+		List<Record> records = new ArrayList<Record>(docs.values());
+		Collections.sort(records, NATURAL);
+		List<MObject> result = new ArrayList<MObject>(records.size());
+		for (Record rec: records)
+			result.add(rec.doc);
+		return result;
+	}
+
+	//=======
+	// Reads
+	//=======
+
+	MObject findById(Object id) {
+		Record rec = docs.get(idKey(id));
+		return rec == null ? null : project(rec.doc, null);
+	}
+
+	List<MObject> find(MObject query, MObject keys, MObject sort, int skip, int limit) {
+		List<Record> matches = null;
+		if (sort != null && !sort.keySet().isEmpty() && limit > 0)
+			matches = walk(query == null ? new MObject() : query, sort, (int)Math.min((long)skip + limit, Integer.MAX_VALUE));
+		if (matches == null) {
+			matches = match(query, sort == null || sort.keySet().isEmpty());
+			sort(matches, sort);
+		}
+		int from = Math.min(skip, matches.size());
+		int to = limit > 0 ? Math.min(from + limit, matches.size()) : matches.size();
+		List<MObject> result = new ArrayList<MObject>(to - from);
+		for (int i = from; i < to; i++)
+			result.add(project(matches.get(i).doc, keys));
+		return result;
+	}
+
+	long count(MObject query) {
+		if (query == null || query.keySet().isEmpty())
+			return docs.size();
+		return match(query, false).size();
+	}
+
+	/**
+	 * @return the documents matching <b>query</b>, as they are stored, in natural order
+	 */
+	List<Record> match(MObject query) {
+		return match(query, true);
+	}
+
+	private List<Record> match(MObject query, boolean ordered) {
+		if (query == null)
+			query = new MObject();
+		QueryMatcher matcher = QueryMatcher.compile(query);
+		List<Record> result = new ArrayList<Record>();
+		for (Record rec: candidates(query, ordered))
+			if (matcher.matches(rec.doc))
+				result.add(rec);
+		return result;
+	}
+
+	/**
+	 * Finds the first <b>max</b> matches in the order of <b>sort</b> by walking an index that gives that order,
+	 * unless the query has a condition over another indexed field, whose candidates are better sorted
+	 *
+	 * @return the matches, or null if there is no such index
+	 */
+	private List<Record> walk(MObject query, MObject sort, int max) {
+		MemoryIndex idx = null;
+		int dir = 0;
+		for (MemoryIndex i: indexes())
+			if (!i.sparse && !i.isMultikey() && (dir = i.sortDirection(sort)) != 0) {
+				idx = i;
+				break;
+			}
+		if (idx == null)
+			return null;
+		for (String field: query.keySet())
+			if (!field.startsWith("$") && !field.equals(idx.fields[0]) && isIndexed(field))
+				return null;
+		Range range = query.containsField(idx.fields[0]) ? range(idx, query.get(idx.fields[0])) : null;
+		Iterator<Object> ids = range == null ? idx.walk(dir, null, true, null, true) : idx.walk(dir, range.low, range.lowInc, range.high, range.highInc);
+		QueryMatcher matcher = QueryMatcher.compile(query);
+		List<Record> result = new ArrayList<Record>(Math.min(max, 1024));
+		// a document can have several entries (values in nested arrays, or old keys while it is rewritten), the first one gives its place
+		Set<Object> seen = new HashSet<Object>();
+		while (result.size() < max && ids.hasNext()) {
+			Object key = idKey(ids.next());
+			Record rec = docs.get(key);
+			if (rec != null && matcher.matches(rec.doc) && seen.add(key))
+				result.add(rec);
+		}
+		return result;
+	}
+
+	List<MObject> aggregate(List<MObject> stages) throws MException {
+		return MemoryAggregation.run(this, stages);
+	}
+
+	//==========
+	// Planning
+	//==========
+
+	/**
+	 * @return a superset of the documents matching <b>query</b>, in natural order if <b>ordered</b>
+	 */
+	private List<Record> candidates(MObject query, boolean ordered) {
+		Collection<Object> ids = query == null ? null : indexScan(query);
+		List<Record> result;
+		if (ids == null)
+			result = new ArrayList<Record>(docs.values());
+		else {
+			result = new ArrayList<Record>(ids.size());
+			for (Object id: ids) {
+				Record rec = docs.get(idKey(id));
+				if (rec != null)
+					result.add(rec);
+			}
+		}
+		if (ordered)
+			Collections.sort(result, NATURAL);
+		return result;
+	}
+
+	/**
+	 * @return the _id index and the secondary ones
+	 */
+	private List<MemoryIndex> indexes() {
+		List<MemoryIndex> all = new ArrayList<MemoryIndex>(indexes.size() + 1);
+		all.add(idIndex);
+		all.addAll(indexes);
+		return all;
+	}
+
+	private boolean isIndexed(String field) {
+		for (MemoryIndex idx: indexes())
+			if (idx.fields[0].equals(field))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the _ids of the candidates, or null for a full scan
+	 */
+	private Collection<Object> indexScan(MObject query) {
+		for (String field: query.keySet()) {
+			if (field.startsWith("$"))
+				continue;
+			Object value = query.get(field);
+			if (field.equals("_id") && isPlainValue(value))
+				return Collections.singletonList(value);
+			for (MemoryIndex idx: indexes())
+				if (idx.fields[0].equals(field)) {
+					Collection<Object> ids = indexScan(idx, value);
+					if (ids != null)
+						return ids;
+				}
+		}
+		return null;
+	}
+
+	private static Collection<Object> indexScan(MemoryIndex idx, Object value) {
+		if (value instanceof BSONObject && !(value instanceof List) && ((BSONObject)value).get("$in") instanceof List) {
+			Set<Object> ids = new LinkedHashSet<Object>();
+			for (Object item: (List<?>)((BSONObject)value).get("$in")) {
+				if (!isPlainValue(item) || (item == null && idx.sparse))
+					return null;
+				ids.addAll(idx.lookup(item));
+			}
+			return ids;
+		}
+		Range range = range(idx, value);
+		if (range == null)
+			return null;
+		if (range.low == range.high)
+			return idx.lookup(range.low);
+		return idx.range(range.low, range.lowInc, range.high, range.highInc);
+	}
+
+	/**
+	 * The bounds of an equality or range condition over the first field of an index
+	 */
+	private static final class Range {
+		final Object low;
+		final boolean lowInc;
+		final Object high;
+		final boolean highInc;
+
+		Range(Object low, boolean lowInc, Object high, boolean highInc) {
+			this.low = low;
+			this.lowInc = lowInc;
+			this.high = high;
+			this.highInc = highInc;
+		}
+	}
+
+	/**
+	 * @return the bounds of <b>value</b>, or null if it's not an equality or range condition that can use <b>idx</b>
+	 */
+	private static Range range(MemoryIndex idx, Object value) {
+		if (isPlainValue(value))
+			return value == null && idx.sparse ? null : new Range(value, true, value, true);
+		if (!(value instanceof BSONObject) || value instanceof List)
+			return null;
+		BSONObject ops = (BSONObject)value;
+		if (ops.containsField("$eq") && isPlainValue(ops.get("$eq")))
+			return ops.get("$eq") == null && idx.sparse ? null : new Range(ops.get("$eq"), true, ops.get("$eq"), true);
+		Object low = null, high = null;
+		boolean lowInc = true, highInc = true;
+		if (ops.containsField("$gt") || ops.containsField("$gte")) {
+			lowInc = !ops.containsField("$gt");
+			low = ops.get(lowInc ? "$gte" : "$gt");
+		}
+		if (ops.containsField("$lt") || ops.containsField("$lte")) {
+			highInc = !ops.containsField("$lt");
+			high = ops.get(highInc ? "$lte" : "$lt");
+		}
+		if (!isRangeValue(low) || !isRangeValue(high) || (low == null && high == null))
+			return null;
+		// items of different arrays can satisfy each bound, so only one of them can be used on multikey indexes
+		if (low != null && high != null && (idx.isMultikey() || BsonOrder.rank(low) != BsonOrder.rank(high)))
+			high = null;
+		if (low != null && high == null) {
+			high = new BsonOrder.Bound(BsonOrder.rank(low), 1);
+			highInc = true;
+		} else if (low == null) {
+			low = new BsonOrder.Bound(BsonOrder.rank(high), -1);
+			lowInc = true;
+		}
+		return new Range(low, lowInc, high, highInc);
+	}
+
+	private static boolean isPlainValue(Object value) {
+		return !(value instanceof BSONObject) && !(value instanceof Pattern);
+	}
+
+	private static boolean isRangeValue(Object value) {
+		return value == null || value instanceof Number || value instanceof String || value instanceof Date || value instanceof ObjectId;
+	}
+
+	//================
+	// Sort & Project
+	//================
+
+	static void sort(List<Record> records, final MObject sort) {
+		if (sort == null || sort.keySet().isEmpty())
+			return;
+		final Comparator<BSONObject> order = order(sort);
+		Collections.sort(records, new Comparator<Record>() {
+
+			@Override
+			public int compare(Record a, Record b) {
+				int c = order.compare(a.doc, b.doc);
+				return c != 0 ? c : NATURAL.compare(a, b);
+			}
+		});
+	}
+
+	/**
+	 * The order of documents by a sort spec, arrays sort by their smallest item ascending, or by the largest descending
+	 */
+	static Comparator<BSONObject> order(MObject sort) {
+		final String[][] paths = new String[sort.keySet().size()][];
+		final int[] dirs = new int[paths.length];
+		int i = 0;
+		for (String field: sort.keySet()) {
+			Object dir = sort.get(field);
+			if (!(dir instanceof Number))
+				throw new IllegalArgumentException("Can't sort by " + dir + " in memory");
+			paths[i] = field.split("\\.");
+			dirs[i++] = ((Number)dir).intValue() < 0 ? -1 : 1;
+		}
+		return new Comparator<BSONObject>() {
+
+			@Override
+			public int compare(BSONObject a, BSONObject b) {
+				for (int i = 0; i < paths.length; i++) {
+					int c = BsonOrder.compareValues(sortKey(a, paths[i], dirs[i]), sortKey(b, paths[i], dirs[i]));
+					if (c != 0)
+						return c * dirs[i];
+				}
+				return 0;
+			}
+		};
+	}
+
+	private static Object sortKey(BSONObject doc, String[] path, int dir) {
+		List<Object> values = new ArrayList<Object>(1);
+		QueryMatcher.resolve(doc, path, 0, values);
+		Object key = null;
+		boolean first = true;
+		for (Object value: values)
+			for (Object item: value instanceof List && !((List<?>)value).isEmpty() ? (List<?>)value : Collections.singletonList(value)) {
+				if (first || BsonOrder.compareValues(item, key) * dir < 0)
+					key = item;
+				first = false;
+			}
+		return key;
+	}
+
+	/**
+	 * @return a copy of <b>doc</b> with only the fields asked by <b>keys</b>, a find projection
+	 */
+	static MObject project(BSONObject doc, BSONObject keys) {
+		if (keys == null || keys.keySet().isEmpty())
+			return (MObject)copy(doc);
+		boolean inclusion = false;
+		for (String field: keys.keySet())
+			if (!field.equals("_id") && truthy(keys.get(field)))
+				inclusion = true;
+		MObject result;
+		if (inclusion) {
+			result = new MObject();
+			if (!keys.containsField("_id") || truthy(keys.get("_id")))
+				if (doc.containsField("_id"))
+					result.put("_id", copy(doc.get("_id")));
+			for (String field: keys.keySet())
+				if (!field.equals("_id") && truthy(keys.get(field)))
+					include(doc, result, field.split("\\."), 0);
+		} else {
+			result = (MObject)copy(doc);
+			for (String field: keys.keySet())
+				if (!truthy(keys.get(field)))
+					exclude(result, field.split("\\."), 0);
+		}
+		return result;
+	}
+
+	private static void include(BSONObject from, BSONObject into, String[] path, int i) {
+		if (!from.containsField(path[i]))
+			return;
+		Object value = from.get(path[i]);
+		if (i == path.length - 1) {
+			into.put(path[i], copy(value));
+			return;
+		}
+		if (value instanceof List) {
+			MList list = into.get(path[i]) instanceof MList ? (MList)into.get(path[i]) : null;
+			if (list == null) {
+				list = new MList();
+				for (Object item: (List<?>)value)
+					if (item instanceof BSONObject && !(item instanceof List))
+						list.add(new MObject());
+				into.put(path[i], list);
+			}
+			int j = 0;
+			for (Object item: (List<?>)value)
+				if (item instanceof BSONObject && !(item instanceof List))
+					include((BSONObject)item, (BSONObject)list.get(j++), path, i + 1);
+		} else if (value instanceof BSONObject) {
+			BSONObject sub = into.get(path[i]) instanceof BSONObject ? (BSONObject)into.get(path[i]) : null;
+			if (sub == null) {
+				sub = new MObject();
+				into.put(path[i], sub);
+			}
+			include((BSONObject)value, sub, path, i + 1);
+		}
+	}
+
+	private static void exclude(Object cur, String[] path, int i) {
+		if (cur instanceof List) {
+			for (Object item: (List<?>)cur)
+				exclude(item, path, i);
+		} else if (cur instanceof BSONObject) {
+			BSONObject obj = (BSONObject)cur;
+			if (i == path.length - 1)
+				obj.removeField(path[i]);
+			else
+				exclude(obj.get(path[i]), path, i + 1);
+		}
+	}
+
+	private static boolean truthy(Object value) {
+		if (value instanceof Boolean)
+			return (Boolean)value;
+		if (value instanceof Number)
+			return ((Number)value).doubleValue() != 0;
+		return value != null;
+	}
+
+	/**
+	 * Deep copy of a value, into plain MObjects and MLists
+	 */
+	static Object copy(Object value) {
+		if (value instanceof List) {
+			MList list = new MList();
+			for (Object item: (List<?>)value)
+				list.add(copy(item));
+			return list;
+		}
+		if (value instanceof BSONObject) {
+			BSONObject obj = (BSONObject)value;
+			MObject copy = new MObject();
+			for (String field: obj.keySet())
+				copy.put(field, copy(obj.get(field)));
+			return copy;
+		}
+		if (value instanceof Date)
+			return new Date(((Date)value).getTime());
+		if (value instanceof byte[])
+			return ((byte[])value).clone();
+		return value;
+	}
+
+}
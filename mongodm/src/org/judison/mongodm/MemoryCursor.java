@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+/**
+ * {@link FindCursor} over a {@link MemoryCollection}, the query runs on the first {@link #hasNext()}/{@link #next()},
+ * and the documents are copies, so they don't change with later writes.
+ *
+ * @author judison
+ */
+final class MemoryCursor implements FindCursor {
+
+	private final MemoryCollection coll;
+	private final MObject query;
+	private final MObject keys;
+	private MObject sort;
+	private int limit;
+	private int skip;
+	private int batchSize;
+	private Iterator<MObject> results;
+
+	MemoryCursor(MemoryCollection coll, MObject query, MObject keys) {
+		this.coll = coll;
+		this.query = query == null ? new MObject() : query;
+		this.keys = keys;
+	}
+
+	/**
+	 * A cursor over an already computed list of documents, like the result of an aggregation
+	 */
+	static Cursor of(final List<MObject> docs) {
+		final Iterator<MObject> it = docs.iterator();
+		return new Cursor() {
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public DBObject next() {
+				return it.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public long getCursorId() {
+				return 0;
+			}
+
+			@Override
+			public ServerAddress getServerAddress() {
+				return null;
+			}
+
+			@Override
+			public void close() {}
+		};
+	}
+
+	private void checkNotStarted() {
+		if (results != null)
+			throw new IllegalStateException("Cursor already started");
+	}
+
+	private Iterator<MObject> results() {
+		if (results == null)
+			results = coll.find(query, keys, sort, skip, Math.abs(limit)).iterator();
+		return results;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return results().hasNext();
+	}
+
+	@Override
+	public DBObject next() {
+		if (!results().hasNext())
+			throw new NoSuchElementException();
+		return results.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public long getCursorId() {
+		return 0;
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		return null;
+	}
+
+	@Override
+	public void close() {
+		results = null;
+	}
+
+	@Override
+	public FindCursor sort(DBObject orderBy) {
+		checkNotStarted();
+		this.sort = orderBy == null ? null : new MObject(orderBy);
+		return this;
+	}
+
+	@Override
+	public FindCursor limit(int limit) {
+		checkNotStarted();
+		this.limit = limit;
+		return this;
+	}
+
+	@Override
+	public FindCursor skip(int skip) {
+		checkNotStarted();
+		if (skip < 0)
+			throw new IllegalArgumentException();
+		this.skip = skip;
+		return this;
+	}
+
+	@Override
+	public FindCursor batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	@Override
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public int count() {
+		return (int)coll.count(query);
+	}
+
+	@Override
+	public int size() {
+		return coll.find(query, new MObject("_id", 1), sort, skip, Math.abs(limit)).size();
+	}
+
+	@Override
+	public FindCursor copy() {
+		MemoryCursor copy = new MemoryCursor(coll, query, keys);
+		copy.sort = sort;
+		copy.limit = limit;
+		copy.skip = skip;
+		copy.batchSize = batchSize;
+		return copy;
+	}
+
+	@Override
+	public DBObject getQuery() {
+		return query;
+	}
+
+	@Override
+	public DBObject getKeysWanted() {
+		return keys;
+	}
+
+	@Override
+	public FindCursor find(DBObject query, DBObject keys) {
+		return new MemoryCursor(coll, query == null ? null : new MObject(query), keys == null ? null : new MObject(keys));
+	}
+
+}
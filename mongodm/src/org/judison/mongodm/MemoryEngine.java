@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.io.File;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An embedded, in-memory storage engine, to run a {@link MDB} without a server, as in tests:
+ * <pre>
+ * MDB mdb = new MDB(new MemoryEngine());
+ * </pre>
+ * Finds, counts, saves, updates, removes, findAndModify, aggregations and unique indexes work as with a server,
+ * queries are evaluated by {@link QueryMatcher} (so <code>$where</code> and <code>$text</code> aren't supported).<br>
+ * It's thread safe: reads never lock, and each write is atomic per document.<br>
+ * Created with a directory, the collections are persisted there, in append-only segment files,
+ * and loaded back, with their indexes, when it's created again. Segments are compacted into a snapshot in the background.
+ *
+ * @author judison
+ */
+public class MemoryEngine {
+
+	/**
+	 * When the writes of a persistent MemoryEngine are forced to disk
+	 */
+	public static enum Sync {
+		/** Every write forces its segment before returning */
+		ALWAYS,
+		/** Writes wait for the next group commit, which forces them all together every {@link MemoryEngine#GROUP_COMMIT_INTERVAL} ms */
+		GROUP,
+		/** Writes return right away, and the OS writes them whenever it wants, a crash of the machine can lose them */
+		OS
+	}
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final long GROUP_COMMIT_INTERVAL = 10;
+	public static final long COMPACTION_INTERVAL = 60000;
+
+	private final ConcurrentHashMap<String, MemoryCollection> collections = new ConcurrentHashMap<String, MemoryCollection>();
+	private final File dir;
+	private final Sync sync;
+	private final int segmentSize;
+	private final ScheduledExecutorService scheduler;
+
+	public MemoryEngine() {
+		this.dir = null;
+		this.sync = null;
+		this.segmentSize = 0;
+		this.scheduler = null;
+	}
+
+	/**
+	 * A persistent MemoryEngine, with group commits
+	 */
+	public MemoryEngine(File dir) throws MException {
+		this(dir, Sync.GROUP, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public MemoryEngine(File dir, Sync sync) throws MException {
+		this(dir, sync, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param dir the directory of the data, with a subdirectory per collection
+	 * @param segmentSize the size of each segment file, mapped in memory while it's written
+	 */
+	public MemoryEngine(File dir, Sync sync, int segmentSize) throws MException {
+		if (dir == null || sync == null || segmentSize < 1024)
+			throw new IllegalArgumentException();
+		this.dir = dir;
+		this.sync = sync;
+		this.segmentSize = segmentSize;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new MException("Can't create " + dir);
+		for (File sub: dir.listFiles())
+			if (sub.isDirectory())
+				getCollection(sub.getName());
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mongodm-memory-engine");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (sync == Sync.GROUP)
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					for (MemoryCollection coll: collections.values())
+						coll.getStore().force();
+				}
+			}, GROUP_COMMIT_INTERVAL, GROUP_COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				for (MemoryCollection coll: collections.values())
+					if (coll.getStore().needsCompaction())
+						try {
+							coll.compact();
+						} catch (MException e) {
+							// the segments are kept, it's retried on the next check
+						} catch (RuntimeException e) {
+							// never let it escape, it would cancel the periodic compaction
+						}
+			}
+		}, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	MemoryCollection getCollection(String name) throws MException {
+		MemoryCollection coll = collections.get(name);
+		if (coll == null)
+			synchronized (collections) {
+				coll = collections.get(name);
+				if (coll == null) {
+					coll = new MemoryCollection(name, dir == null ? null : new MemoryStore(new File(dir, name), sync, segmentSize));
+					collections.put(name, coll);
+				}
+			}
+		return coll;
+	}
+
+	/**
+	 * @return the directory of the data, null if it's not persistent
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	public Sync getSync() {
+		return sync;
+	}
+
+	public Set<String> getCollectionNames() {
+		return new TreeSet<String>(collections.keySet());
+	}
+
+	/**
+	 * @return the number of documents in the collection <b>name</b>
+	 */
+	public int getCount(String name) {
+		MemoryCollection coll = collections.get(name);
+		return coll == null ? 0 : coll.size();
+	}
+
+	/**
+	 * Removes all documents of a collection, keeping its indexes
+	 */
+	public void clear(String name) throws MException {
+		MemoryCollection coll = collections.get(name);
+		if (coll != null)
+			coll.clear();
+	}
+
+	/**
+	 * Removes all documents of all collections, keeping their indexes
+	 */
+	public void clear() throws MException {
+		for (MemoryCollection coll: collections.values())
+			coll.clear();
+	}
+
+	/**
+	 * Compacts the segments of every collection into snapshots now, in the caller's thread
+	 */
+	public void compact() throws MException {
+		if (dir != null)
+			for (MemoryCollection coll: collections.values())
+				coll.compact();
+	}
+
+	/**
+	 * Forces every pending write to disk, and closes the files, it can't be used anymore
+	 */
+	public void close() {
+		if (dir == null)
+			return;
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (MemoryCollection coll: collections.values())
+			coll.getStore().close();
+	}
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.bson.BSONObject;
+
+/**
+ * A secondary index of a {@link MemoryCollection}, a skip list of (keys, _id) entries.<br>
+ * Arrays are indexed by item (multikey), and missing fields as null, unless it's sparse.
+ *
+ * @author judison
+ */
+final class MemoryIndex {
+
+	static final class Entry {
+		final Object[] keys;
+		final Object id;
+
+		Entry(Object[] keys, Object id) {
+			this.keys = keys;
+			this.id = id;
+		}
+	}
+
+	final String name;
+	final String[] fields;
+	final String[][] paths;
+	final int[] dirs;
+	final boolean unique;
+	final boolean sparse;
+	private final ConcurrentSkipListSet<Entry> entries;
+	private volatile boolean multikey;
+
+	MemoryIndex(IndexInfo info) {
+		this(info.keys, info.options);
+	}
+
+	MemoryIndex(BSONObject keys, BSONObject options) {
+		this.name = (String)options.get("name");
+		this.fields = keys.keySet().toArray(new String[0]);
+		this.paths = new String[fields.length][];
+		this.dirs = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			paths[i] = fields[i].split("\\.");
+			dirs[i] = ((Number)keys.get(fields[i])).intValue() < 0 ? -1 : 1;
+		}
+		this.unique = Boolean.TRUE.equals(options.get("unique"));
+		this.sparse = Boolean.TRUE.equals(options.get("sparse"));
+		final int[] dirs = this.dirs;
+		this.entries = new ConcurrentSkipListSet<Entry>(new Comparator<Entry>() {
+
+			@Override
+			public int compare(Entry a, Entry b) {
+				int n = Math.min(a.keys.length, b.keys.length);
+				for (int i = 0; i < n; i++) {
+					int c = BsonOrder.compareValues(a.keys[i], b.keys[i]) * dirs[i];
+					if (c != 0)
+						return c;
+				}
+				return BsonOrder.compareValues(a.id, b.id);
+			}
+		});
+	}
+
+	/**
+	 * Only ascending/descending indexes can be kept in memory, not text or geo ones
+	 */
+	static boolean isSupported(BSONObject keys) {
+		for (String field: keys.keySet())
+			if (!(keys.get(field) instanceof Number))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the keys of <b>doc</b> in this index, none if it's sparse and the fields are missing
+	 */
+	List<Object[]> keys(BSONObject doc) {
+		List<Object[]> keys = new ArrayList<Object[]>(1);
+		keys.add(new Object[fields.length]);
+		boolean any = false;
+		for (int i = 0; i < fields.length; i++) {
+			List<Object> values = new ArrayList<Object>(1);
+			QueryMatcher.resolve(doc, paths[i], 0, values);
+			List<Object> items = new ArrayList<Object>(values.size());
+			for (Object value: values)
+				if (value instanceof List && !((List<?>)value).isEmpty()) {
+					items.addAll((List<?>)value);
+					multikey = true;
+				} else
+					items.add(value instanceof List ? null : value);
+			if (items.isEmpty())
+				items.add(null);
+			else
+				any = true;
+			List<Object[]> expanded = new ArrayList<Object[]>(keys.size() * items.size());
+			for (Object[] key: keys)
+				for (Object item: new LinkedHashSet<Object>(items)) {
+					Object[] copy = key.clone();
+					copy[i] = item;
+					expanded.add(copy);
+				}
+			keys = expanded;
+		}
+		if (sparse && !any)
+			return Collections.emptyList();
+		return keys;
+	}
+
+	/**
+	 * @return the _id of another document with any of <b>keys</b>, if this is unique
+	 */
+	Object findDuplicate(List<Object[]> keys, Object id) {
+		if (!unique)
+			return null;
+		for (Object[] key: keys)
+			for (Entry e: entries.subSet(new Entry(key, BsonOrder.MIN), true, new Entry(key, BsonOrder.MAX), true))
+				if (!QueryMatcher.valueEquals(e.id, id))
+					return e.id;
+		return null;
+	}
+
+	void add(List<Object[]> keys, Object id) {
+		for (Object[] key: keys)
+			entries.add(new Entry(key, id));
+	}
+
+	/**
+	 * Removes the <b>oldKeys</b> of a document that aren't in its <b>newKeys</b>
+	 */
+	void removeStale(List<Object[]> oldKeys, List<Object[]> newKeys, Object id) {
+		for (Object[] key: oldKeys) {
+			Entry old = new Entry(key, id);
+			boolean stale = true;
+			for (Object[] k: newKeys)
+				if (entries.comparator().compare(old, new Entry(k, id)) == 0)
+					stale = false;
+			if (stale)
+				entries.remove(old);
+		}
+	}
+
+	void remove(List<Object[]> keys, Object id) {
+		for (Object[] key: keys)
+			entries.remove(new Entry(key, id));
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return true if any document had an array in the indexed fields
+	 */
+	boolean isMultikey() {
+		return multikey;
+	}
+
+	//======
+	// Scan
+	//======
+
+	/**
+	 * @return the _ids with the first field equal to <b>value</b>
+	 */
+	Set<Object> lookup(Object value) {
+		Object[] key = new Object[] { value };
+		Set<Object> ids = new LinkedHashSet<Object>();
+		for (Entry e: entries.subSet(new Entry(key, BsonOrder.MIN), true, new Entry(key, BsonOrder.MAX), true))
+			ids.add(e.id);
+		return ids;
+	}
+
+	/**
+	 * @return the _ids with the first field between <b>low</b> and <b>high</b>, which can be {@link BsonOrder.Bound}s
+	 */
+	Set<Object> range(Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+		Set<Object> ids = new LinkedHashSet<Object>();
+		for (Entry e: entries(low, lowInclusive, high, highInclusive))
+			ids.add(e.id);
+		return ids;
+	}
+
+	/**
+	 * @return the entries with the first field between <b>low</b> and <b>high</b>, in index order
+	 */
+	private NavigableSet<Entry> entries(Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+		Entry from = new Entry(new Object[] { low }, lowInclusive ? BsonOrder.MIN : BsonOrder.MAX);
+		Entry to = new Entry(new Object[] { high }, highInclusive ? BsonOrder.MAX : BsonOrder.MIN);
+		if (dirs[0] < 0) {
+			Entry aux = from;
+			from = new Entry(to.keys, to.id == BsonOrder.MAX ? BsonOrder.MIN : BsonOrder.MAX);
+			to = new Entry(aux.keys, aux.id == BsonOrder.MIN ? BsonOrder.MAX : BsonOrder.MIN);
+		}
+		try {
+			return entries.subSet(from, true, to, true);
+		} catch (IllegalArgumentException e) {
+			return new TreeSet<Entry>(); // from > to, nothing
+		}
+	}
+
+	/**
+	 * @return the _ids in index order (or reversed, if <b>direction</b> is -1), all of them if <b>low</b> and
+	 * <b>high</b> are null, or only the ones with the first field between them
+	 */
+	Iterator<Object> walk(int direction, Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+		NavigableSet<Entry> range = low == null && high == null ? entries : entries(low, lowInclusive, high, highInclusive);
+		final Iterator<Entry> iter = direction < 0 ? range.descendingIterator() : range.iterator();
+		return new Iterator<Object>() {
+
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public Object next() {
+				return iter.next().id;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return 1 if walking this index gives the order of <b>sort</b>, -1 if walking it backwards does, or 0 if neither;
+	 * the sort can be a prefix of the fields, or all of them followed by <code>_id</code>
+	 */
+	int sortDirection(MObject sort) {
+		int dir = 0;
+		int i = 0;
+		for (String field: sort.keySet()) {
+			Object order = sort.get(field);
+			if (!(order instanceof Number))
+				return 0;
+			int d;
+			if (i < fields.length && fields[i].equals(field))
+				d = ((Number)order).intValue() * dirs[i] > 0 ? 1 : -1;
+			else if (i == fields.length && field.equals("_id"))
+				d = ((Number)order).intValue() > 0 ? 1 : -1; // the entries tie by _id ascending
+			else
+				return 0;
+			if (dir == 0)
+				dir = d;
+			else if (dir != d)
+				return 0;
+			i++;
+		}
+		return dir;
+	}
+
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.DBCollection;
+
+/**
+ * The files of a persistent {@link MemoryCollection}, in its own directory:
+ * <ul>
+ * <li><code>NNNNNNNNNNNNNNNN.seg</code>: append-only segments, written through a {@link MappedByteBuffer},
+ * with a record per save/update (the whole new document) or remove (just the _id)</li>
+ * <li><code>NNNNNNNNNNNNNNNN.snap</code>: a snapshot, all the documents when the segments up to <code>N</code> were compacted</li>
+ * <li><code>indexes.bson</code>: the indexes, rebuilt from the documents on startup</li>
+ * </ul>
+ * A record is <code>[int length][int crc32][byte op][BSON]</code>, a length of 0 marks the end of a segment,
+ * and a torn record (as in a crash) fails the crc and ends the recovery.<br>
+ * When the segments grow bigger than the snapshot, they are compacted into a new snapshot,
+ * while writes go on into a new segment.
+ *
+ * @author judison
+ */
+final class MemoryStore {
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final int HEADER = 9;
+
+	private static final class Segment {
+		final long seq;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		Segment(long seq, File file, int size, FileChannel.MapMode mode) throws IOException {
+			this.seq = seq;
+			RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+			this.channel = raf.getChannel();
+			this.buffer = channel.map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? channel.size() : size);
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// the mapping stays valid until collected, nothing else to do
+			}
+		}
+	}
+
+	private final File dir;
+	private final MemoryEngine.Sync sync;
+	private final int segmentSize;
+
+	private final Object appendLock = new Object();
+	private final Object forceLock = new Object();
+	private final Object compactLock = new Object();
+	private Segment current;
+	private long written; // records appended, the "ticket" of the last one
+	private long durable; // records forced to disk
+	private long logBytes; // bytes in segments after the snapshot
+	private long snapshotBytes;
+	private volatile boolean closed;
+
+	MemoryStore(File dir, MemoryEngine.Sync sync, int segmentSize) {
+		this.dir = dir;
+		this.sync = sync;
+		this.segmentSize = segmentSize;
+	}
+
+	//==========
+	// Recovery
+	//==========
+
+	/**
+	 * Reads the snapshot and the segments after it, and opens the last segment for appending
+	 *
+	 * @return the documents, in their original insertion order
+	 */
+	List<MObject> open() throws MException {
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Can't create " + dir);
+			long snapshot = -1;
+			List<Long> segments = new ArrayList<Long>();
+			for (String name: dir.list()) {
+				if (name.endsWith(".tmp"))
+					new File(dir, name).delete();
+				else if (name.endsWith(".snap"))
+					snapshot = Math.max(snapshot, seq(name));
+				else if (name.endsWith(".seg"))
+					segments.add(seq(name));
+			}
+			Collections.sort(segments);
+
+			LinkedHashMap<Object, MObject> docs = new LinkedHashMap<Object, MObject>();
+			if (snapshot >= 0) {
+				File file = file(snapshot, ".snap");
+				snapshotBytes = file.length();
+				Segment snap = new Segment(snapshot, file, 0, FileChannel.MapMode.READ_ONLY);
+				try {
+					replay(snap.buffer, docs);
+				} finally {
+					snap.close();
+				}
+			}
+			for (String name: dir.list())
+				if (name.endsWith(".snap") && seq(name) < snapshot)
+					new File(dir, name).delete();
+
+			long last = snapshot;
+			for (long seq: segments) {
+				if (seq <= snapshot) {
+					// already in the snapshot, left by a crash during a compaction
+					file(seq, ".seg").delete();
+					continue;
+				}
+				Segment segment = new Segment(seq, file(seq, ".seg"), (int)file(seq, ".seg").length(), FileChannel.MapMode.READ_WRITE);
+				int end = replay(segment.buffer, docs);
+				logBytes += end;
+				last = seq;
+				if (current != null)
+					current.close();
+				current = segment;
+				current.buffer.position(end);
+				if (end + 4 <= current.buffer.capacity())
+					current.buffer.putInt(end, 0); // cuts a torn record
+			}
+			if (current == null || current.seq != last)
+				current = newSegment(last + 1, segmentSize);
+			return new ArrayList<MObject>(docs.values());
+		} catch (IOException e) {
+			throw new MException("Can't open " + dir, e);
+		}
+	}
+
+	/**
+	 * @return the position after the last valid record
+	 */
+	private static int replay(MappedByteBuffer buffer, LinkedHashMap<Object, MObject> docs) {
+		int pos = 0;
+		int limit = buffer.capacity();
+		CRC32 crc = new CRC32();
+		MDecoder decoder = new MDecoder();
+		while (pos + HEADER <= limit) {
+			int length = buffer.getInt(pos);
+			if (length <= 0 || pos + 8 + length > limit)
+				break;
+			byte[] payload = new byte[length];
+			for (int i = 0; i < length; i++)
+				payload[i] = buffer.get(pos + 8 + i);
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int)crc.getValue() != buffer.getInt(pos + 4))
+				break;
+			MObject doc;
+			try {
+				doc = (MObject)decoder.decode(Arrays.copyOfRange(payload, 1, length), (DBCollection)null);
+			} catch (RuntimeException e) {
+				break;
+			}
+			Object key = MemoryCollection.idKey(doc.get("_id"));
+			if (payload[0] == DELETE)
+				docs.remove(key);
+			else
+				docs.put(key, doc);
+			pos += 8 + length;
+		}
+		return pos;
+	}
+
+	//========
+	// Append
+	//========
+
+	/**
+	 * @return the ticket of the record, see {@link #sync(long)}
+	 */
+	long put(MObject doc) throws MException {
+		return append(PUT, doc);
+	}
+
+	long delete(Object id) throws MException {
+		return append(DELETE, new MObject("_id", id));
+	}
+
+	private long append(byte op, MObject doc) throws MException {
+		byte[] bson = new BasicBSONEncoder().encode(doc);
+		byte[] payload = new byte[bson.length + 1];
+		payload[0] = op;
+		System.arraycopy(bson, 0, payload, 1, bson.length);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		synchronized (appendLock) {
+			if (closed)
+				throw new MException("The MemoryEngine is closed");
+			try {
+				int needed = 8 + payload.length + 4;
+				if (current.buffer.remaining() < needed)
+					roll(needed);
+				MappedByteBuffer buf = current.buffer;
+				int pos = buf.position();
+				buf.putInt(pos + 4, (int)crc.getValue());
+				buf.position(pos + 8);
+				buf.put(payload);
+				if (buf.remaining() >= 4)
+					buf.putInt(buf.position(), 0);
+				// the length last, so a record is never seen before it's complete
+				buf.putInt(pos, payload.length);
+				logBytes += 8 + payload.length;
+				return ++written;
+			} catch (IOException e) {
+				throw new MException("Can't write to " + dir, e);
+			}
+		}
+	}
+
+	/**
+	 * Starts a new segment, forcing the current one first, with the append lock held
+	 */
+	private void roll(int needed) throws IOException {
+		Segment old = current;
+		current = newSegment(old.seq + 1, Math.max(segmentSize, needed));
+		if (sync != MemoryEngine.Sync.OS) {
+			old.buffer.force();
+			synchronized (forceLock) {
+				durable = Math.max(durable, written);
+				forceLock.notifyAll();
+			}
+		}
+		old.close();
+	}
+
+	private Segment newSegment(long seq, int size) throws IOException {
+		return new Segment(seq, file(seq, ".seg"), size, FileChannel.MapMode.READ_WRITE);
+	}
+
+	//============
+	// Durability
+	//============
+
+	/**
+	 * Returns when the record of <b>ticket</b> is on disk, as of the {@link MemoryEngine.Sync} policy:
+	 * forcing it now (ALWAYS), waiting for the next group commit (GROUP), or not at all (OS)
+	 */
+	void sync(long ticket) throws MException {
+		if (ticket <= 0)
+			return;
+		if (sync == MemoryEngine.Sync.ALWAYS)
+			force();
+		else if (sync == MemoryEngine.Sync.GROUP)
+			synchronized (forceLock) {
+				while (durable < ticket && !closed)
+					try {
+						forceLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new MException("Interrupted waiting for the group commit", e);
+					}
+			}
+	}
+
+	/**
+	 * Forces everything appended so far, the writers waiting for it share a single force
+	 */
+	void force() {
+		MappedByteBuffer buf;
+		long upTo;
+		synchronized (appendLock) {
+			if (current == null)
+				return;
+			buf = current.buffer;
+			upTo = written;
+		}
+		synchronized (forceLock) {
+			if (durable >= upTo)
+				return;
+			buf.force();
+			durable = upTo;
+			forceLock.notifyAll();
+		}
+	}
+
+	//============
+	// Compaction
+	//============
+
+	/**
+	 * @return true if the segments are bigger than the snapshot (and than a quarter segment), so most of them is garbage
+	 */
+	boolean needsCompaction() {
+		synchronized (appendLock) {
+			return logBytes > Math.max(snapshotBytes, segmentSize / 4);
+		}
+	}
+
+	/**
+	 * Writes the current documents of <b>coll</b> as a new snapshot, and deletes the segments it covers.<br>
+	 * Writes go on into a new segment meanwhile, and are replayed over the snapshot on recovery.
+	 */
+	void compact(MemoryCollection coll) throws MException {
+		synchronized (compactLock) {
+			long covered;
+			synchronized (appendLock) {
+				if (closed)
+					return;
+				try {
+					if (current.buffer.position() > 0)
+						roll(0);
+				} catch (IOException e) {
+					throw new MException("Can't write to " + dir, e);
+				}
+				covered = current.seq - 1;
+				logBytes = 0;
+			}
+
+			File tmp = file(covered, ".snap.tmp");
+			long size = 0;
+			try {
+				FileOutputStream fos = new FileOutputStream(tmp);
+				try {
+					OutputStream out = new BufferedOutputStream(fos, 1 << 16);
+					BasicBSONEncoder encoder = new BasicBSONEncoder();
+					CRC32 crc = new CRC32();
+					byte[] header = new byte[8];
+					for (MObject doc: coll.snapshot()) {
+						byte[] bson = encoder.encode(doc);
+						crc.reset();
+						crc.update(PUT);
+						crc.update(bson, 0, bson.length);
+						putInt(header, 0, bson.length + 1);
+						putInt(header, 4, (int)crc.getValue());
+						out.write(header);
+						out.write(PUT);
+						out.write(bson);
+						size += 8 + 1 + bson.length;
+					}
+					out.flush();
+					fos.getChannel().force(true);
+				} finally {
+					fos.close();
+				}
+				Files.move(tmp.toPath(), file(covered, ".snap").toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				tmp.delete();
+				throw new MException("Can't write a snapshot of " + dir, e);
+			}
+			synchronized (appendLock) {
+				snapshotBytes = size;
+			}
+			for (String name: dir.list())
+				if ((name.endsWith(".seg") || name.endsWith(".snap")) && seq(name) <= covered && !name.equals(file(covered, ".snap").getName()))
+					new File(dir, name).delete();
+		}
+	}
+
+	private static void putInt(byte[] buf, int pos, int value) {
+		buf[pos] = (byte)(value >>> 24);
+		buf[pos + 1] = (byte)(value >>> 16);
+		buf[pos + 2] = (byte)(value >>> 8);
+		buf[pos + 3] = (byte)value;
+	}
+
+	//=========
+	// Indexes
+	//=========
+
+	/**
+	 * Replaces the index file with <b>specs</b>, { key, options } documents
+	 */
+	void saveIndexes(List<MObject> specs) throws MException {
+		File tmp = new File(dir, "indexes.bson.tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				BasicBSONEncoder encoder = new BasicBSONEncoder();
+				for (MObject spec: specs)
+					fos.write(encoder.encode(spec));
+				fos.getChannel().force(true);
+			} finally {
+				fos.close();
+			}
+			Files.move(tmp.toPath(), new File(dir, "indexes.bson").toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tmp.delete();
+			throw new MException("Can't write the indexes of " + dir, e);
+		}
+	}
+
+	List<MObject> loadIndexes() throws MException {
+		List<MObject> specs = new ArrayList<MObject>();
+		File file = new File(dir, "indexes.bson");
+		if (!file.exists())
+			return specs;
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			MDecoder decoder = new MDecoder();
+			int pos = 0;
+			while (pos + 4 <= bytes.length) {
+				int length = (bytes[pos] & 0xFF) | (bytes[pos + 1] & 0xFF) << 8 | (bytes[pos + 2] & 0xFF) << 16 | (bytes[pos + 3] & 0xFF) << 24;
+				specs.add((MObject)decoder.decode(Arrays.copyOfRange(bytes, pos, pos + length), (DBCollection)null));
+				pos += length;
+			}
+		} catch (IOException e) {
+			throw new MException("Can't read the indexes of " + dir, e);
+		}
+		return specs;
+	}
+
+	//=======
+	// Close
+	//=======
+
+	void close() {
+		synchronized (compactLock) {
+			force();
+			synchronized (appendLock) {
+				closed = true;
+				if (current != null)
+					current.close();
+			}
+			synchronized (forceLock) {
+				forceLock.notifyAll();
+			}
+		}
+	}
+
+	//=======
+	// Files
+	//=======
+
+	private File file(long seq, String ext) {
+		return new File(dir, String.format("%016d", seq) + ext);
+	}
+
+	private static long seq(String name) {
+		try {
+			return Long.parseLong(name.substring(0, name.indexOf('.')));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+
+/**
+ * Applies an update document to a {@link MemoryCollection} document, like the server does:
+ * <code>$set</code>, <code>$unset</code>, <code>$inc</code>, <code>$mul</code>, <code>$min</code>, <code>$max</code>,
+ * <code>$currentDate</code>, <code>$setOnInsert</code>, <code>$push</code> (with <code>$each</code>, <code>$position</code>,
+ * <code>$sort</code> and <code>$slice</code>), <code>$addToSet</code>, <code>$pull</code>, <code>$pullAll</code>,
+ * <code>$pop</code>, <code>$rename</code>, or a replacement document.<br>
+ * The positional operator (<code>$</code>) isn't supported.
+ *
+ * @author judison
+ */
+final class MemoryUpdate {
+
+	private MemoryUpdate() {}
+
+	static boolean isOperatorUpdate(MObject update) {
+		return !update.keySet().isEmpty() && update.keySet().iterator().next().startsWith("$");
+	}
+
+	/**
+	 * @param old the current document, null for an upsert
+	 * @param query the query of the update, the equalities of which seed an upserted document
+	 * @return a new document, <b>old</b> is never changed
+	 */
+	static MObject apply(MObject old, MObject update, MObject query, boolean insert) throws MException {
+		MObject doc;
+		if (old != null)
+			doc = (MObject)MemoryCollection.copy(old);
+		else {
+			doc = new MObject();
+			seed(doc, query);
+		}
+
+		if (!isOperatorUpdate(update)) {
+			MObject replaced = new MObject();
+			Object id = doc.get("_id");
+			if (update.containsField("_id") && id != null && !QueryMatcher.valueEquals(id, update.get("_id")))
+				throw new MException("The _id field cannot be changed from " + id + " to " + update.get("_id"));
+			if (id == null)
+				id = update.get("_id");
+			if (id != null)
+				replaced.put("_id", MemoryCollection.copy(id));
+			for (String field: update.keySet())
+				if (!field.equals("_id"))
+					replaced.put(field, MemoryCollection.copy(update.get(field)));
+			return replaced;
+		}
+
+		Object id = doc.get("_id");
+		for (String op: update.keySet()) {
+			if (!(update.get(op) instanceof BSONObject))
+				throw new MException("Modifier " + op + " needs a document");
+			BSONObject args = (BSONObject)update.get(op);
+			for (String field: args.keySet()) {
+				if (field.equals("$") || field.startsWith("$.") || field.contains(".$.") || field.endsWith(".$"))
+					throw new MException("The positional operator isn't supported in memory: " + field);
+				apply(doc, op, field.split("\\."), args.get(field), insert);
+			}
+		}
+		if (old != null && !QueryMatcher.valueEquals(id, doc.get("_id")))
+			throw new MException("The _id field cannot be changed from " + id + " to " + doc.get("_id"));
+		return doc;
+	}
+
+	/**
+	 * Puts the equality conditions of <b>query</b> in <b>doc</b>
+	 */
+	private static void seed(MObject doc, BSONObject query) throws MException {
+		if (query == null)
+			return;
+		for (String field: query.keySet()) {
+			Object value = query.get(field);
+			if (field.equals("$and") && value instanceof List) {
+				for (Object sub: (List<?>)value)
+					if (sub instanceof BSONObject)
+						seed(doc, (BSONObject)sub);
+			} else if (!field.startsWith("$")) {
+				if (value instanceof BSONObject && !(value instanceof List)) {
+					BSONObject ops = (BSONObject)value;
+					if (ops.keySet().isEmpty() || !ops.keySet().iterator().next().startsWith("$"))
+						set(doc, field.split("\\."), MemoryCollection.copy(value));
+					else if (ops.containsField("$eq"))
+						set(doc, field.split("\\."), MemoryCollection.copy(ops.get("$eq")));
+				} else if (!(value instanceof Pattern))
+					set(doc, field.split("\\."), MemoryCollection.copy(value));
+			}
+		}
+	}
+
+	private static void apply(MObject doc, String op, String[] path, Object value, boolean insert) throws MException {
+		Object cur = get(doc, path);
+		boolean exists = has(doc, path);
+		if (op.equals("$set"))
+			set(doc, path, MemoryCollection.copy(value));
+		else if (op.equals("$setOnInsert")) {
+			if (insert)
+				set(doc, path, MemoryCollection.copy(value));
+		} else if (op.equals("$unset"))
+			unset(doc, path);
+		else if (op.equals("$inc") || op.equals("$mul")) {
+			if (!(value instanceof Number))
+				throw new MException("Cannot " + op + " with a non-numeric argument: " + value);
+			if (exists && !(cur instanceof Number))
+				throw new MException("Cannot apply " + op + " to a value of non-numeric type: " + join(path));
+			if (op.equals("$inc"))
+				set(doc, path, exists ? Update.add((Number)cur, (Number)value) : value);
+			else
+				set(doc, path, multiply(exists ? (Number)cur : zero((Number)value), (Number)value));
+		} else if (op.equals("$min") || op.equals("$max")) {
+			int c = exists ? BsonOrder.compareValues(value, cur) : 0;
+			if (!exists || (op.equals("$min") ? c < 0 : c > 0))
+				set(doc, path, MemoryCollection.copy(value));
+		} else if (op.equals("$currentDate")) {
+			boolean timestamp = value instanceof BSONObject && "timestamp".equals(((BSONObject)value).get("$type"));
+			long now = System.currentTimeMillis();
+			set(doc, path, timestamp ? new BSONTimestamp((int)(now / 1000), (int)(now % 1000)) : new Date(now));
+		} else if (op.equals("$rename")) {
+			if (!(value instanceof String))
+				throw new MException("$rename needs a field name: " + value);
+			if (exists) {
+				unset(doc, path);
+				set(doc, ((String)value).split("\\."), cur);
+			}
+		} else {
+			// array operators
+			if (exists && !(cur instanceof List))
+				throw new MException("Cannot apply " + op + " to a non-array field: " + join(path));
+			MList list = new MList();
+			if (exists)
+				list.addAll((List<?>)cur);
+			if (op.equals("$push"))
+				push(list, value);
+			else if (op.equals("$addToSet")) {
+				for (Object item: each(value))
+					if (indexOf(list, item) < 0)
+						list.add(MemoryCollection.copy(item));
+			} else if (op.equals("$pull")) {
+				for (Object cond: each(value))
+					pull(list, cond);
+			} else if (op.equals("$pullAll")) {
+				if (!(value instanceof List))
+					throw new MException("$pullAll needs an array");
+				for (Object item: (List<?>)value)
+					while (indexOf(list, item) >= 0)
+						list.remove(indexOf(list, item));
+			} else if (op.equals("$pop")) {
+				if (!list.isEmpty())
+					list.remove(value instanceof Number && ((Number)value).intValue() < 0 ? 0 : list.size() - 1);
+			} else
+				throw new MException("Unknown modifier: " + op);
+			if (exists || op.equals("$push") || op.equals("$addToSet"))
+				set(doc, path, list);
+		}
+	}
+
+	private static List<?> each(Object value) {
+		if (value instanceof BSONObject && !(value instanceof List) && ((BSONObject)value).get("$each") instanceof List)
+			return (List<?>)((BSONObject)value).get("$each");
+		return Collections.singletonList(value);
+	}
+
+	private static void push(MList list, Object value) throws MException {
+		if (!(value instanceof BSONObject) || value instanceof List || !((BSONObject)value).containsField("$each")) {
+			list.add(MemoryCollection.copy(value));
+			return;
+		}
+		BSONObject mods = (BSONObject)value;
+		List<?> items = each(value);
+		int position = mods.get("$position") instanceof Number ? ((Number)mods.get("$position")).intValue() : list.size();
+		if (position < 0)
+			position = Math.max(0, list.size() + position);
+		position = Math.min(position, list.size());
+		for (Object item: items)
+			list.add(position++, MemoryCollection.copy(item));
+		Object sort = mods.get("$sort");
+		if (sort instanceof Number) {
+			final int dir = ((Number)sort).intValue() < 0 ? -1 : 1;
+			List<Object> sorted = new ArrayList<Object>(list);
+			Collections.sort(sorted, new Comparator<Object>() {
+
+				@Override
+				public int compare(Object a, Object b) {
+					return BsonOrder.compareValues(a, b) * dir;
+				}
+			});
+			list.clear();
+			list.addAll(sorted);
+		} else if (sort instanceof BSONObject) {
+			final Comparator<BSONObject> order = MemoryCollection.order(new MObject((BSONObject)sort));
+			List<Object> sorted = new ArrayList<Object>(list);
+			Collections.sort(sorted, new Comparator<Object>() {
+
+				@Override
+				public int compare(Object a, Object b) {
+					return order.compare(a instanceof BSONObject ? (BSONObject)a : new MObject(), b instanceof BSONObject ? (BSONObject)b : new MObject());
+				}
+			});
+			list.clear();
+			list.addAll(sorted);
+		}
+		if (mods.get("$slice") instanceof Number) {
+			int slice = ((Number)mods.get("$slice")).intValue();
+			if (slice >= 0)
+				while (list.size() > slice)
+					list.remove(list.size() - 1);
+			else
+				while (list.size() > -slice)
+					list.remove(0);
+		}
+	}
+
+	private static void pull(MList list, Object cond) {
+		QueryMatcher matcher = null;
+		boolean wrap = false;
+		if (cond instanceof BSONObject && !(cond instanceof List)) {
+			BSONObject obj = (BSONObject)cond;
+			wrap = !obj.keySet().isEmpty() && obj.keySet().iterator().next().startsWith("$");
+			matcher = QueryMatcher.compile(wrap ? new MObject("v", obj) : new MObject(obj));
+		}
+		for (int i = list.size() - 1; i >= 0; i--) {
+			Object item = list.get(i);
+			boolean pulled;
+			if (matcher == null)
+				pulled = QueryMatcher.valueEquals(item, cond);
+			else if (wrap)
+				pulled = matcher.matches(new MObject("v", item));
+			else
+				pulled = item instanceof BSONObject && !(item instanceof List) && matcher.matches((MObject)item);
+			if (pulled)
+				list.remove(i);
+		}
+	}
+
+	private static int indexOf(List<?> list, Object value) {
+		for (int i = 0; i < list.size(); i++)
+			if (QueryMatcher.valueEquals(list.get(i), value))
+				return i;
+		return -1;
+	}
+
+	private static Number zero(Number n) {
+		if (n instanceof Double || n instanceof Float)
+			return 0.0;
+		if (n instanceof Long)
+			return 0L;
+		return 0;
+	}
+
+	private static Number multiply(Number a, Number b) {
+		if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+			return a.doubleValue() * b.doubleValue();
+		long product = a.longValue() * b.longValue();
+		if (!(a instanceof Long) && !(b instanceof Long) && product == (int)product)
+			return (int)product;
+		return product;
+	}
+
+	private static String join(String[] path) {
+		StringBuilder buf = new StringBuilder();
+		for (String part: path)
+			buf.append(buf.length() == 0 ? "" : ".").append(part);
+		return buf.toString();
+	}
+
+	//=======
+	// Paths
+	//=======
+
+	private static boolean has(Object cur, String[] path) {
+		for (String part: path) {
+			if (cur instanceof List) {
+				int i = index(part);
+				if (i < 0 || i >= ((List<?>)cur).size())
+					return false;
+				cur = ((List<?>)cur).get(i);
+			} else if (cur instanceof BSONObject && ((BSONObject)cur).containsField(part))
+				cur = ((BSONObject)cur).get(part);
+			else
+				return false;
+		}
+		return true;
+	}
+
+	private static Object get(Object cur, String[] path) {
+		for (String part: path) {
+			if (cur instanceof List) {
+				int i = index(part);
+				cur = i >= 0 && i < ((List<?>)cur).size() ? ((List<?>)cur).get(i) : null;
+			} else if (cur instanceof BSONObject)
+				cur = ((BSONObject)cur).get(part);
+			else
+				return null;
+		}
+		return cur;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void set(MObject doc, String[] path, Object value) throws MException {
+		Object cur = doc;
+		for (int i = 0; i < path.length; i++) {
+			boolean last = i == path.length - 1;
+			if (cur instanceof List) {
+				List<Object> list = (List<Object>)cur;
+				int index = index(path[i]);
+				if (index < 0)
+					throw new MException("Cannot create field '" + path[i] + "' in an array: " + join(path));
+				while (list.size() <= index)
+					list.add(null);
+				if (last)
+					list.set(index, value);
+				else if (!(list.get(index) instanceof BSONObject))
+					list.set(index, new MObject());
+				cur = list.get(index);
+			} else if (cur instanceof BSONObject) {
+				BSONObject obj = (BSONObject)cur;
+				if (last)
+					obj.put(path[i], value);
+				else if (!(obj.get(path[i]) instanceof BSONObject)) {
+					if (obj.get(path[i]) != null)
+						throw new MException("Cannot create field '" + path[i + 1] + "' in " + obj.get(path[i]) + ": " + join(path));
+					obj.put(path[i], new MObject());
+				}
+				cur = obj.get(path[i]);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void unset(MObject doc, String[] path) {
+		Object parent = get(doc, Arrays.copyOf(path, path.length - 1));
+		String last = path[path.length - 1];
+		if (parent instanceof List) {
+			int i = index(last);
+			if (i >= 0 && i < ((List<?>)parent).size())
+				((List<Object>)parent).set(i, null);
+		} else if (parent instanceof BSONObject)
+			((BSONObject)parent).removeField(last);
+	}
+
+	private static int index(String part) {
+		if (part.isEmpty() || part.length() > 9)
+			return -1;
+		for (int i = 0; i < part.length(); i++)
+			if (part.charAt(i) < '0' || part.charAt(i) > '9')
+				return -1;
+		return Integer.parseInt(part);
+	}
+
+}
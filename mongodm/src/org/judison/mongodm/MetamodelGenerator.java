@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Generates the metamodel class of an entity, <code>User_</code> for <code>User</code>, with an {@link Attribute}
+ * constant per property, and nested ones for @Embedded properties (<code>User_.address.city</code>).<br>
+ * It's run on the compiled classes, usually by the build, before compiling the code that uses them:
+ * <pre>
+ * java -cp ... org.judison.mongodm.MetamodelGenerator &lt;output dir&gt; com.acme.User com.acme.Order ...
+ * </pre>
+ *
+ * @author judison
+ */
+public final class MetamodelGenerator {
+
+	private MetamodelGenerator() {}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: MetamodelGenerator <output dir> <entity class>...");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			File file = write(dir, Class.forName(args[i]));
+			System.out.println(file);
+		}
+	}
+
+	/**
+	 * Writes the metamodel of <b>entity</b> under <b>dir</b>, in the entity's package
+	 *
+	 * @return the generated file
+	 */
+	public static File write(File dir, Class<?> entity) throws IOException {
+		String pkg = entity.getPackage() == null ? "" : entity.getPackage().getName();
+		File pkgDir = pkg.isEmpty() ? dir : new File(dir, pkg.replace('.', File.separatorChar));
+		if (!pkgDir.isDirectory() && !pkgDir.mkdirs())
+			throw new IOException("Can't create " + pkgDir);
+		File file = new File(pkgDir, metamodelName(entity) + ".java");
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(generate(entity));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static String metamodelName(Class<?> entity) {
+		return entity.getSimpleName() + "_";
+	}
+
+	/**
+	 * @return the source code of the metamodel of <b>entity</b>
+	 */
+	public static String generate(Class<?> entity) {
+		TypeInfo typeInfo = Mapper.getTypeInfo(entity);
+		String pkg = entity.getPackage() == null ? "" : entity.getPackage().getName();
+		String name = metamodelName(entity);
+		String entityName = entity.getCanonicalName();
+
+		StringBuilder src = new StringBuilder();
+		src.append("// Generated by ").append(MetamodelGenerator.class.getName()).append(" from ").append(entityName).append(", don't edit\n");
+		if (!pkg.isEmpty())
+			src.append("package ").append(pkg).append(";\n\n");
+		src.append("import org.judison.mongodm.Attribute;\n\n");
+		src.append("public final class ").append(name).append(" {\n\n");
+		src.append("\tprivate ").append(name).append("() {}\n");
+		Set<Class<?>> visiting = new HashSet<Class<?>>();
+		visiting.add(entity);
+		members(src, typeInfo, entityName, "", "static ", "\t", visiting);
+		src.append("\n}\n");
+		return src.toString();
+	}
+
+	private static void members(StringBuilder src, TypeInfo typeInfo, String entityName, String prefix, String modifier, String indent, Set<Class<?>> visiting) {
+		for (PropertyInfo pi: typeInfo.properties.values()) {
+			String field = pi.field.getName();
+			String path = prefix + field;
+			String type = typeName(pi.field.getGenericType());
+			src.append('\n');
+			if (pi.type == PropertyInfo.Type.SUB && !visiting.contains(pi.cls)) {
+				String nested = field + "_";
+				src.append(indent).append("public ").append(modifier).append("final ").append(nested).append(' ').append(field).append(" = new ").append(nested).append("();\n\n");
+				src.append(indent).append("public static final class ").append(nested).append(" extends Attribute<").append(type).append("> {\n\n");
+				src.append(indent).append("\tprivate ").append(nested).append("() {\n");
+				src.append(indent).append("\t\tsuper(Attribute.<").append(type).append(">of(").append(entityName).append(".class, \"").append(path).append("\"));\n");
+				src.append(indent).append("\t}\n");
+				visiting.add(pi.cls);
+				members(src, pi.subType, entityName, path + ".", "", indent + "\t", visiting);
+				visiting.remove(pi.cls);
+				src.append(indent).append("}\n");
+			} else
+				src.append(indent).append("public ").append(modifier).append("final Attribute<").append(type).append("> ").append(field)
+					.append(" = Attribute.of(").append(entityName).append(".class, \"").append(path).append("\");\n");
+		}
+	}
+
+	private static String typeName(Type type) {
+		if (type instanceof Class) {
+			Class<?> cls = (Class<?>)type;
+			if (cls.isPrimitive())
+				return boxed(cls).getSimpleName();
+			if (cls.isArray())
+				return (cls.getComponentType().isPrimitive() ? cls.getComponentType().getName() : typeName(cls.getComponentType())) + "[]";
+			if (cls.getPackage() != null && cls.getPackage().getName().equals("java.lang") && cls.getEnclosingClass() == null)
+				return cls.getSimpleName();
+			return cls.getCanonicalName();
+		}
+		if (type instanceof ParameterizedType) {
+			ParameterizedType pt = (ParameterizedType)type;
+			StringBuilder name = new StringBuilder(typeName(pt.getRawType())).append('<');
+			Type[] args = pt.getActualTypeArguments();
+			for (int i = 0; i < args.length; i++) {
+				if (i > 0)
+					name.append(", ");
+				name.append(args[i] instanceof Class || args[i] instanceof ParameterizedType ? typeName(args[i]) : "?");
+			}
+			return name.append('>').toString();
+		}
+		if (type instanceof GenericArrayType)
+			return typeName(((GenericArrayType)type).getGenericComponentType()) + "[]";
+		return "Object";
+	}
+
+	private static Class<?> boxed(Class<?> cls) {
+		if (cls == Integer.TYPE)
+			return Integer.class;
+		if (cls == Long.TYPE)
+			return Long.class;
+		if (cls == Double.TYPE)
+			return Double.class;
+		if (cls == Float.TYPE)
+			return Float.class;
+		if (cls == Boolean.TYPE)
+			return Boolean.class;
+		if (cls == Short.TYPE)
+			return Short.class;
+		if (cls == Byte.TYPE)
+			return Byte.class;
+		return Character.class;
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+/**
+ * An operation given to {@link OperationListener}s.<br>
+ * The counts and timings are only set when it's finished.
+ *
+ * @author judison
+ */
+public class OperationEvent {
+
+	/**
+	 * Replaces the values in query shapes
+	 */
+	public static final String REDACTED = "?";
+
+	private final String collection;
+	private final Class<?> entityClass;
+	private final OperationType type;
+	private final MObject query;
+	private final long startTime;
+	private MObject shape;
+
+	boolean finished;
+	boolean ok;
+	long nanos;
+	long decodeNanos;
+	long mappingNanos;
+	long docs;
+	long bytes;
+
+	OperationEvent(String collection, Class<?> entityClass, OperationType type, MObject query) {
+		this.collection = collection;
+		this.entityClass = entityClass;
+		this.type = type;
+		this.query = query;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the collection name, null for a {@link OperationType#COMMAND}
+	 */
+	public String getCollection() {
+		return collection;
+	}
+
+	/**
+	 * @return the class mapped by the collection, MObject for an untyped collection, null for a {@link OperationType#COMMAND}
+	 */
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	public OperationType getType() {
+		return type;
+	}
+
+	/**
+	 * @return the query with every value replaced by {@link #REDACTED}, keeping the fields and operators,
+	 * or null if the operation has no query. For a {@link OperationType#ENSURE_INDEX} it's the index keys.
+	 */
+	public MObject getQueryShape() {
+		if (shape == null) {
+			if (type == OperationType.ENSURE_INDEX)
+				shape = query;
+			else if (type == OperationType.LOAD)
+				shape = new MObject("_id", REDACTED);
+			else if (query != null)
+				shape = shape(query);
+		}
+		return shape;
+	}
+
+	private static MObject shape(MObject query) {
+		MObject shape = new MObject();
+		for (String key: query.keySet()) {
+			Object value = query.get(key);
+			if (key.equals("$elemMatch") && value instanceof MObject && !(value instanceof MList))
+				shape.put(key, shape((MObject)value));
+			else
+				shape.put(key, shapeValue(value));
+		}
+		return shape;
+	}
+
+	private static Object shapeValue(Object value) {
+		if (value instanceof MList) {
+			// $and/$or/$nor hold queries, other arrays are just values
+			MList list = (MList)value;
+			MList shape = new MList();
+			for (Object item: list)
+				if (item instanceof MObject && !(item instanceof MList))
+					shape.add(shape((MObject)item));
+			return shape.isEmpty() ? REDACTED : shape;
+		}
+		if (value instanceof MObject) {
+			MObject obj = (MObject)value;
+			for (String key: obj.keySet())
+				if (key.startsWith("$"))
+					return shape(obj);
+			// an embedded document value
+			return REDACTED;
+		}
+		return REDACTED;
+	}
+
+	/**
+	 * @return when it started, in milliseconds since the epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return false if it threw an exception
+	 */
+	public boolean isOk() {
+		return ok;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * @return the time decoding BSON replies
+	 */
+	public long getDecodeNanos() {
+		return decodeNanos;
+	}
+
+	/**
+	 * @return the time mapping between entities and documents
+	 */
+	public long getMappingNanos() {
+		return mappingNanos;
+	}
+
+	/**
+	 * @return the time not spent decoding nor mapping, mostly waiting for the server
+	 */
+	public long getNetworkNanos() {
+		return Math.max(0, nanos - decodeNanos - mappingNanos);
+	}
+
+	/**
+	 * @return the documents read or written
+	 */
+	public long getDocCount() {
+		return docs;
+	}
+
+	/**
+	 * @return the BSON bytes decoded
+	 */
+	public long getByteCount() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(type);
+		if (collection != null)
+			buf.append(' ').append(collection);
+		if (getQueryShape() != null)
+			buf.append(' ').append(getQueryShape());
+		if (finished)
+			buf.append(ok ? "" : " failed").append(" in ").append(nanos / 1000).append("us, ").append(docs).append(" docs, ").append(bytes).append(" bytes");
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+/**
+ * Receives every database operation of a {@link MDB}, see {@link MDB#addListener(OperationListener)}.<br>
+ * Both methods are called in the thread running the operation, so they must be fast, and they
+ * can keep per thread context (like a tracing span) from {@link #operationStarted(OperationEvent)}
+ * to {@link #operationFinished(OperationEvent)}.<br>
+ * A {@link OperationType#NEXT_BATCH} is only known after the fact, so both are called when it
+ * finishes, {@link OperationEvent#getStartTime()} still tells when it started.<br>
+ * Exceptions thrown by listeners are ignored, so they can't break the operations.
+ *
+ * @author judison
+ */
+public interface OperationListener {
+
+	void operationStarted(OperationEvent event);
+
+	/**
+	 * @param event the same instance given to {@link #operationStarted(OperationEvent)}, now with counts and timings
+	 */
+	void operationFinished(OperationEvent event);
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+/**
+ * Per {@link OperationType} counts, errors and latency histograms, of a {@link MDB} (all its collections)
+ * or of a single {@link MCollection}, see {@link MDB#getMetrics()} and {@link MCollection#getMetrics()}.<br>
+ * Recording is lock free, so it can be always on.
+ *
+ * @author judison
+ */
+public class OperationMetrics {
+
+	private final OperationStats[] stats;
+
+	OperationMetrics() {
+		OperationType[] types = OperationType.values();
+		stats = new OperationStats[types.length];
+		for (int i = 0; i < types.length; i++)
+			stats[i] = new OperationStats(types[i]);
+	}
+
+	public OperationStats get(OperationType type) {
+		return stats[type.ordinal()];
+	}
+
+	/**
+	 * @return the number of operations of every type
+	 */
+	public long getCount() {
+		long count = 0;
+		for (OperationStats s: stats)
+			count += s.getCount();
+		return count;
+	}
+
+	public long getErrorCount() {
+		long count = 0;
+		for (OperationStats s: stats)
+			count += s.getErrorCount();
+		return count;
+	}
+
+	/**
+	 * @return the time spent in operations of every type
+	 */
+	public long getTotalNanos() {
+		long nanos = 0;
+		for (OperationStats s: stats)
+			nanos += s.getTotalNanos();
+		return nanos;
+	}
+
+	public long getMappingNanos() {
+		long nanos = 0;
+		for (OperationStats s: stats)
+			nanos += s.getMappingNanos();
+		return nanos;
+	}
+
+	public void reset() {
+		for (OperationStats s: stats)
+			s.reset();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for (OperationStats s: stats)
+			if (s.getCount() > 0)
+				buf.append(s).append('\n');
+		return buf.toString();
+	}
+
+}
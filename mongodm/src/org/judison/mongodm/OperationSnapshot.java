@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+/**
+ * A copy of an {@link OperationStats}, with the latencies in microseconds and the times in milliseconds,
+ * as shown by {@link CollectionMXBean#getOperations()}
+ *
+ * @author judison
+ */
+public class OperationSnapshot {
+
+	private final long count;
+	private final long errorCount;
+	private final long docCount;
+	private final long byteCount;
+	private final double meanMicros;
+	private final long p50Micros;
+	private final long p95Micros;
+	private final long p99Micros;
+	private final long maxMicros;
+	private final long totalMillis;
+	private final long networkMillis;
+	private final long decodeMillis;
+	private final long mappingMillis;
+
+	public OperationSnapshot(OperationStats stats) {
+		LatencyHistogram latency = stats.getLatency();
+		this.count = stats.getCount();
+		this.errorCount = stats.getErrorCount();
+		this.docCount = stats.getDocCount();
+		this.byteCount = stats.getByteCount();
+		this.meanMicros = latency.getMean() / 1000;
+		this.p50Micros = latency.getPercentile(50) / 1000;
+		this.p95Micros = latency.getPercentile(95) / 1000;
+		this.p99Micros = latency.getPercentile(99) / 1000;
+		this.maxMicros = latency.getMax() / 1000;
+		this.totalMillis = stats.getTotalNanos() / 1000000;
+		this.networkMillis = stats.getNetworkNanos() / 1000000;
+		this.decodeMillis = stats.getDecodeNanos() / 1000000;
+		this.mappingMillis = stats.getMappingNanos() / 1000000;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getErrorCount() {
+		return errorCount;
+	}
+
+	public long getDocCount() {
+		return docCount;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP95Micros() {
+		return p95Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	public long getNetworkMillis() {
+		return networkMillis;
+	}
+
+	public long getDecodeMillis() {
+		return decodeMillis;
+	}
+
+	public long getMappingMillis() {
+		return mappingMillis;
+	}
+
+}
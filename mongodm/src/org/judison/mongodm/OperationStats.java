@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latencies of one {@link OperationType}, see {@link OperationMetrics}.<br>
+ * The latency of each operation is split in:
+ * <ul>
+ * <li><b>decode</b>: decoding the BSON replies (in {@link MDecoder})</li>
+ * <li><b>mapping</b>: mapping between entities and documents (in {@link Mapper})</li>
+ * <li><b>network</b>: everything else, mostly waiting for the server, and encoding requests</li>
+ * </ul>
+ * The mapping of the documents of a {@link MCursor}, done as it's iterated, is counted in {@link OperationType#FIND}.
+ *
+ * @author judison
+ */
+public class OperationStats {
+
+	private final OperationType type;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder docs = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder network = new LongAdder();
+	private final LongAdder decode = new LongAdder();
+	private final LongAdder mapping = new LongAdder();
+
+	OperationStats(OperationType type) {
+		this.type = type;
+	}
+
+	void record(long nanos, long decodeNanos, long mappingNanos, long docCount, long byteCount, boolean ok) {
+		latency.record(nanos);
+		network.add(Math.max(0, nanos - decodeNanos - mappingNanos));
+		if (decodeNanos != 0)
+			decode.add(decodeNanos);
+		if (mappingNanos != 0)
+			mapping.add(mappingNanos);
+		if (docCount != 0)
+			docs.add(docCount);
+		if (byteCount != 0)
+			bytes.add(byteCount);
+		if (!ok)
+			errors.increment();
+	}
+
+	void addMapping(long nanos) {
+		mapping.add(nanos);
+	}
+
+	void reset() {
+		latency.reset();
+		errors.reset();
+		docs.reset();
+		bytes.reset();
+		network.reset();
+		decode.reset();
+		mapping.reset();
+	}
+
+	public OperationType getType() {
+		return type;
+	}
+
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	/**
+	 * @return the number of operations that threw an exception
+	 */
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/**
+	 * @return the documents read or written
+	 */
+	public long getDocCount() {
+		return docs.sum();
+	}
+
+	/**
+	 * @return the BSON bytes decoded
+	 */
+	public long getByteCount() {
+		return bytes.sum();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getTotalNanos() {
+		return latency.getSum();
+	}
+
+	public long getNetworkNanos() {
+		return network.sum();
+	}
+
+	public long getDecodeNanos() {
+		return decode.sum();
+	}
+
+	public long getMappingNanos() {
+		return mapping.sum();
+	}
+
+	@Override
+	public String toString() {
+		return type + ": " + latency + " errors=" + getErrorCount() + " docs=" + getDocCount() + " bytes=" + getByteCount() +
+			" network=" + getNetworkNanos() / 1000000 + "ms decode=" + getDecodeNanos() / 1000000 + "ms mapping=" + getMappingNanos() / 1000000 + "ms";
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+/**
+ * Measures one operation, and records it in the {@link OperationMetrics} of the MDB and of the collection:
+ * <pre>
+ * OperationTimer timer = new OperationTimer(mdb, coll, OperationType.LOAD);
+ * try {
+ *     ...
+ *     timer.ok();
+ * } finally {
+ *     timer.stop();
+ * }
+ * </pre>
+ * The decoding time and bytes are taken from {@link MDecoder#tally()}, the mapping time must be added to {@link #mapping}.<br>
+ * If the MDB has {@link OperationListener}s, they're called on creation and on {@link #stop()},
+ * except for a {@link OperationType#NEXT_BATCH}, only known to be a batch when it's stopped,
+ * so its event is only created then (a cursor times every read, most of them aren't batches).
+ *
+ * @author judison
+ */
+final class OperationTimer {
+
+	private final MDB mdb;
+	private final MCollection<?> coll;
+	private final OperationType type;
+	private final MDecoder.Tally tally;
+	private final long start;
+	private final long decodeStart;
+	private final long docsStart;
+	private final long bytesStart;
+	private boolean ok;
+	private final OperationListener[] listeners;
+	private final MObject query;
+	private OperationEvent event;
+
+	long mapping;
+	/**
+	 * The documents read or written, if not set the number of documents decoded is used
+	 */
+	long docs = -1;
+
+	OperationTimer(MDB mdb, MCollection<?> coll, OperationType type) {
+		this(mdb, coll, type, null);
+	}
+
+	/**
+	 * @param query the query of the operation, for the listeners
+	 */
+	OperationTimer(MDB mdb, MCollection<?> coll, OperationType type, MObject query) {
+		this.mdb = mdb;
+		this.coll = coll;
+		this.type = type;
+		this.listeners = mdb.listeners;
+		this.query = query;
+		if (listeners.length != 0 && type != OperationType.NEXT_BATCH)
+			fireStarted();
+		this.tally = MDecoder.tally();
+		this.decodeStart = tally.nanos;
+		this.docsStart = tally.docs;
+		this.bytesStart = tally.bytes;
+		this.start = System.nanoTime();
+	}
+
+	private void fireStarted() {
+		event = new OperationEvent(coll == null ? null : coll.getName(), coll == null ? null : coll.cls, type, query);
+		for (OperationListener listener: listeners)
+			try {
+				listener.operationStarted(event);
+			} catch (RuntimeException e) {
+				// a listener must not break the operation
+			}
+	}
+
+	private void fireFinished() {
+		for (OperationListener listener: listeners)
+			try {
+				listener.operationFinished(event);
+			} catch (RuntimeException e) {
+				// a listener must not break the operation
+			}
+	}
+
+	void ok() {
+		ok = true;
+	}
+
+	/**
+	 * @return true if any document was decoded since the start
+	 */
+	boolean hasDecoded() {
+		return tally.docs != docsStart;
+	}
+
+	void stop() {
+		long nanos = System.nanoTime() - start;
+		long decode = tally.nanos - decodeStart;
+		long count = docs >= 0 ? docs : tally.docs - docsStart;
+		long bytes = tally.bytes - bytesStart;
+		mdb.getMetrics().get(type).record(nanos, decode, mapping, count, bytes, ok);
+		if (coll != null)
+			coll.getMetrics().get(type).record(nanos, decode, mapping, count, bytes, ok);
+
+		if (listeners.length != 0) {
+			if (event == null)
+				fireStarted();
+			event.nanos = nanos;
+			event.decodeNanos = decode;
+			event.mappingNanos = mapping;
+			event.docs = count;
+			event.bytes = bytes;
+			event.ok = ok;
+			event.finished = true;
+			fireFinished();
+		}
+	}
+
+}
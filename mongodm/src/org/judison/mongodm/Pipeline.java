@@ -27,12 +27,36 @@
  */
 package org.judison.mongodm;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.DBObject;
+
 public class Pipeline {
 
 	MList operators = new MList();
+	private boolean optimize = false;
 
 	public Pipeline() {}
 
+	/**
+	 * Rewrites the stages with {@link #optimized()} when the pipeline is sent
+	 */
+	public Pipeline optimize() {
+		optimize = true;
+		return this;
+	}
+
+	/**
+	 * @return a copy of this pipeline, with cheaper but equivalent stages, see {@link PipelineOptimizer}
+	 */
+	public Pipeline optimized() {
+		Pipeline optimized = new Pipeline();
+		for (MObject stage: new PipelineOptimizer(this).optimize())
+			optimized.operators.add(stage);
+		return optimized;
+	}
+
 	public Pipeline project(String... fields) {
 		operators.add(new MObject("$project", IndexInfo.parseFields(fields)));
 		return this;
@@ -83,6 +107,10 @@ public class Pipeline {
 		return this;
 	}
 
+	public Pipeline unwind(Attribute<?> array) {
+		return unwind(array.ref());
+	}
+
 	public Pipeline group(Group group) {
 		operators.add(new MObject("$group", group.toMObject()));
 		return this;
@@ -105,9 +133,85 @@ public class Pipeline {
 		return this;
 	}
 
+	/**
+	 * Adds a $geoNear stage: documents sorted by distance to <b>near</b>, up to <b>maxMeters</b>,
+	 * with the distance in meters in <b>distanceField</b>.<br>
+	 * It must be the first stage, and the collection must have a single 2dsphere index (see {@link org.judison.mongodm.annotations.GeoIndexed}).
+	 */
+	public Pipeline geoNear(LatLng near, String distanceField, double maxMeters) {
+		return geoNear(near, distanceField, maxMeters, null);
+	}
+
+	/**
+	 * @param query filters the documents before the distance is computed, may be null
+	 */
+	public Pipeline geoNear(LatLng near, String distanceField, double maxMeters, Query query) {
+		if (near == null || distanceField == null || distanceField.isEmpty() || maxMeters < 0)
+			throw new IllegalArgumentException();
+		if (!operators.isEmpty())
+			throw new IllegalStateException("$geoNear must be the first stage");
+		MObject geoNear = new MObject("near", near.toGeoJSON());
+		geoNear.put("distanceField", distanceField);
+		geoNear.put("maxDistance", maxMeters);
+		geoNear.put("spherical", true);
+		if (query != null)
+			geoNear.put("query", query.toMObject());
+		operators.add(new MObject("$geoNear", geoNear));
+		return this;
+	}
+
+	/**
+	 * Adds a { $count: <b>field</b> } stage, a single document with the number of documents in the stream
+	 */
+	public Pipeline count(String field) {
+		if (field == null || field.isEmpty() || field.startsWith("$") || field.indexOf('.') >= 0)
+			throw new IllegalArgumentException();
+		operators.add(new MObject("$count", field));
+		return this;
+	}
+
+	/**
+	 * Runs the <b>sub</b> pipeline over the same input documents, as the <b>name</b> field of a $facet stage.<br>
+	 * Successive calls add to the same $facet stage, so many aggregations can run in a single round trip,
+	 * see {@link MCollection#facets(Pipeline)}.
+	 */
+	public Pipeline facet(String name, Pipeline sub) {
+		if (name == null || name.isEmpty() || sub == null)
+			throw new IllegalArgumentException();
+		MList stages = new MList();
+		for (DBObject stage: sub.getStages()) {
+			if (stage.containsField("$facet") || stage.containsField("$out"))
+				throw new IllegalArgumentException("A $facet can't have a " + stage.keySet().iterator().next() + " stage");
+			stages.add(stage);
+		}
+
+		MObject facet = null;
+		if (!operators.isEmpty()) {
+			MObject last = (MObject)operators.get(operators.size() - 1);
+			if (last.containsField("$facet"))
+				facet = (MObject)last.get("$facet");
+		}
+		if (facet == null) {
+			facet = new MObject();
+			operators.add(new MObject("$facet", facet));
+		}
+		if (facet.containsField(name))
+			throw new IllegalArgumentException("Duplicated facet '" + name + "'");
+		facet.put(name, stages);
+		return this;
+	}
+
 	public MList getOperators() {
 		return operators;
 	}
+
+	List<DBObject> getStages() {
+		MList operators = optimize ? optimized().operators : this.operators;
+		List<DBObject> stages = new ArrayList<DBObject>(operators.size());
+		for (Object stage: operators)
+			stages.add((DBObject)stage);
+		return stages;
+	}
 	
 	@Override
 	public String toString() {
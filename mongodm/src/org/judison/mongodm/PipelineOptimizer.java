@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Client side rewrites of an aggregation {@link Pipeline}, see {@link Pipeline#optimized()}.<br>
+ * The rules are applied until nothing changes:
+ * <ul>
+ * <li>empty <code>$match</code>/<code>$project</code> and <code>$skip: 0</code> are dropped</li>
+ * <li>adjacent <code>$match</code>es are merged</li>
+ * <li><code>$match</code> is moved ahead of <code>$sort</code>, and ahead of <code>$project</code>/<code>$unwind</code>
+ * when its fields pass through them unchanged</li>
+ * <li><code>$skip: n, $limit: m</code> becomes <code>$limit: n+m, $skip: n</code>, so a previous <code>$sort</code> can be a top-k sort</li>
+ * <li>adjacent <code>$skip</code>s are summed, adjacent <code>$limit</code>s keep the smallest</li>
+ * </ul>
+ *
+ * @author judison
+ */
+final class PipelineOptimizer {
+
+	private final List<MObject> stages = new ArrayList<MObject>();
+	private final List<String> rewrites = new ArrayList<String>();
+
+	PipelineOptimizer(Pipeline pipeline) {
+		for (Object stage: pipeline.getOperators())
+			stages.add((MObject)stage);
+	}
+
+	List<String> getRewrites() {
+		return rewrites;
+	}
+
+	List<MObject> optimize() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < stages.size() && !changed; i++)
+				changed = rewrite(i);
+		}
+		return stages;
+	}
+
+	private boolean rewrite(int i) {
+		MObject stage = stages.get(i);
+		String op = name(stage);
+		Object value = stage.get(op);
+		MObject next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+		String nextOp = next == null ? null : name(next);
+
+		// no-ops
+		if ((op.equals("$match") || op.equals("$project")) && value instanceof MObject && ((MObject)value).keySet().isEmpty()) {
+			stages.remove(i);
+			rewrites.add("removed empty " + op + " at " + i);
+			return true;
+		}
+		if (op.equals("$skip") && ((Number)value).longValue() == 0) {
+			stages.remove(i);
+			rewrites.add("removed $skip: 0 at " + i);
+			return true;
+		}
+
+		if (next == null)
+			return false;
+
+		if (op.equals("$match") && nextOp.equals("$match")) {
+			stages.set(i, new MObject("$match", and((MObject)value, (MObject)next.get("$match"))));
+			stages.remove(i + 1);
+			rewrites.add("merged $match at " + (i + 1) + " into " + i);
+			return true;
+		}
+
+		if (nextOp.equals("$match") && canMoveMatchBefore(stage, (MObject)next.get("$match"))) {
+			stages.set(i, next);
+			stages.set(i + 1, stage);
+			rewrites.add("moved $match at " + (i + 1) + " ahead of " + op);
+			return true;
+		}
+
+		if (op.equals("$skip") && nextOp.equals("$limit")) {
+			long skip = ((Number)value).longValue();
+			long limit = ((Number)next.get("$limit")).longValue();
+			stages.set(i, new MObject("$limit", number(skip + limit)));
+			stages.set(i + 1, stage);
+			rewrites.add("moved $limit at " + (i + 1) + " ahead of $skip");
+			return true;
+		}
+
+		if (op.equals("$skip") && nextOp.equals("$skip")) {
+			stages.set(i, new MObject("$skip", number(((Number)value).longValue() + ((Number)next.get("$skip")).longValue())));
+			stages.remove(i + 1);
+			rewrites.add("merged $skip at " + (i + 1) + " into " + i);
+			return true;
+		}
+
+		if (op.equals("$limit") && nextOp.equals("$limit")) {
+			stages.set(i, new MObject("$limit", number(Math.min(((Number)value).longValue(), ((Number)next.get("$limit")).longValue()))));
+			stages.remove(i + 1);
+			rewrites.add("merged $limit at " + (i + 1) + " into " + i);
+			return true;
+		}
+
+		return false;
+	}
+
+	private static boolean canMoveMatchBefore(MObject stage, MObject match) {
+		String op = name(stage);
+		if (!op.equals("$sort") && !op.equals("$project") && !op.equals("$unwind"))
+			return false;
+		Set<String> fields = new LinkedHashSet<String>();
+		if (!collectFields(match, fields))
+			return false;
+		if (op.equals("$sort"))
+			return true;
+		for (String field: fields)
+			if (op.equals("$project") ? !passesProject(field, (MObject)stage.get(op)) : !passesUnwind(field, stage.get(op)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Collects the fields used by a query
+	 *
+	 * @return false if it uses something that can't be tracked, like $where or $text
+	 */
+	static boolean collectFields(MObject query, Set<String> fields) {
+		for (String key: query.keySet())
+			if (key.equals("$and") || key.equals("$or") || key.equals("$nor")) {
+				Object subs = query.get(key);
+				if (!(subs instanceof MList))
+					return false;
+				for (Object sub: (MList)subs)
+					if (!(sub instanceof MObject) || !collectFields((MObject)sub, fields))
+						return false;
+			} else if (key.startsWith("$"))
+				return false;
+			else
+				fields.add(key);
+		return true;
+	}
+
+	private static boolean passesProject(String field, MObject project) {
+		boolean exclusion = false;
+		for (String key: project.keySet())
+			if (!key.equals("_id") && isFalse(project.get(key)))
+				exclusion = true;
+
+		if (field.equals("_id") || field.startsWith("_id."))
+			return !isFalse(project.get("_id")) && (!project.containsField("_id") || isTrue(project.get("_id")) || "$_id".equals(project.get("_id")));
+
+		for (String key: project.keySet()) {
+			Object value = project.get(key);
+			boolean related = key.equals(field) || field.startsWith(key + '.') || key.startsWith(field + '.');
+			if (exclusion) {
+				if (related)
+					return false;
+			} else if (related) {
+				boolean passThru = isTrue(value) || ("$" + key).equals(value);
+				return passThru && !key.startsWith(field + '.');
+			}
+		}
+		return exclusion;
+	}
+
+	private static boolean passesUnwind(String field, Object unwind) {
+		String path;
+		String indexField = null;
+		if (unwind instanceof String)
+			path = (String)unwind;
+		else if (unwind instanceof MObject) {
+			path = (String)((MObject)unwind).get("path");
+			indexField = (String)((MObject)unwind).get("includeArrayIndex");
+		} else
+			return false;
+		if (path == null)
+			return false;
+		if (path.startsWith("$"))
+			path = path.substring(1);
+		for (String used: indexField == null ? new String[] { path } : new String[] { path, indexField })
+			if (used.equals(field) || field.startsWith(used + '.') || used.startsWith(field + '.'))
+				return false;
+		return true;
+	}
+
+	private static boolean isTrue(Object value) {
+		return Boolean.TRUE.equals(value) || (value instanceof Number && ((Number)value).doubleValue() != 0);
+	}
+
+	private static boolean isFalse(Object value) {
+		return Boolean.FALSE.equals(value) || (value instanceof Number && ((Number)value).doubleValue() == 0);
+	}
+
+	private static MObject and(MObject a, MObject b) {
+		boolean disjoint = true;
+		for (String key: b.keySet())
+			if (a.containsField(key))
+				disjoint = false;
+		if (disjoint) {
+			MObject merged = new MObject(a);
+			merged.putAll(b);
+			return merged;
+		}
+		MList and = new MList();
+		and.add(a);
+		and.add(b);
+		return new MObject("$and", and);
+	}
+
+	private static Object number(long value) {
+		if (value == (int)value)
+			return (int)value;
+		return value;
+	}
+
+	static String name(MObject stage) {
+		return stage.keySet().iterator().next();
+	}
+
+	//=========
+	// Indexes
+	//=========
+
+	/**
+	 * Only the leading $match and a $sort right after it (or leading) can use an index,
+	 * everything after works on the stream of documents.
+	 *
+	 * @return a description of each of those stages, and which index (if any) it can use
+	 */
+	static List<String> indexUsage(List<MObject> stages, IndexInfo[] indexes) {
+		List<String> usage = new ArrayList<String>();
+		int i = 0;
+		if (i < stages.size() && name(stages.get(i)).equals("$geoNear")) {
+			String index = null;
+			for (IndexInfo idx: indexes)
+				if (idx.keys.toMap().containsValue("2dsphere")) {
+					index = (String)idx.options.get("name");
+					break;
+				}
+			usage.add("$geoNear at " + i + (index != null ? " uses index " + index : " has no 2dsphere index"));
+			return usage;
+		}
+		if (i < stages.size() && name(stages.get(i)).equals("$match")) {
+			MObject match = (MObject)stages.get(i).get("$match");
+			Set<String> fields = new LinkedHashSet<String>();
+			String index = null;
+			if (collectFields(match, fields))
+				for (IndexInfo idx: indexes) {
+					String first = idx.keys.keySet().isEmpty() ? null : idx.keys.keySet().iterator().next();
+					if (first != null && fields.contains(first) && !(idx.keys.get(first) instanceof String)) {
+						index = (String)idx.options.get("name");
+						break;
+					}
+				}
+			usage.add("$match at " + i + " on " + fields + (index != null ? " can use index " + index : " has no index"));
+			i++;
+		}
+		if (i < stages.size() && name(stages.get(i)).equals("$sort")) {
+			MObject sort = (MObject)stages.get(i).get("$sort");
+			String index = null;
+			for (IndexInfo idx: indexes)
+				if (idx.supportsSort(sort)) {
+					index = (String)idx.options.get("name");
+					break;
+				}
+			usage.add("$sort at " + i + " on " + sort.keySet() + (index != null ? " can use index " + index : " has no index"));
+		}
+		return usage;
+	}
+
+}
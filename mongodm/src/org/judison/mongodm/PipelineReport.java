@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of {@link MCollection#analyze(Pipeline)}: the optimized pipeline,
+ * what was rewritten, and which stages can use an index of the entity.
+ *
+ * @author judison
+ */
+public class PipelineReport {
+
+	private final Pipeline pipeline;
+	private final List<String> rewrites;
+	private final List<String> indexUsage;
+
+	PipelineReport(Pipeline pipeline, List<String> rewrites, List<String> indexUsage) {
+		this.pipeline = pipeline;
+		this.rewrites = Collections.unmodifiableList(rewrites);
+		this.indexUsage = Collections.unmodifiableList(indexUsage);
+	}
+
+	public Pipeline getPipeline() {
+		return pipeline;
+	}
+
+	public List<String> getRewrites() {
+		return rewrites;
+	}
+
+	public List<String> getIndexUsage() {
+		return indexUsage;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(pipeline);
+		for (String rewrite: rewrites)
+			buf.append("\n  rewrite: ").append(rewrite);
+		for (String usage: indexUsage)
+			buf.append("\n  index: ").append(usage);
+		return buf.toString();
+	}
+
+}
@@ -57,6 +57,26 @@ public class Projection {
 		return this;
 	}
 
+	public Projection include(Attribute<?>... attrs) {
+		for (Attribute<?> attr: attrs)
+			proj.put(attr.getName(), +1);
+		return this;
+	}
+
+	public Projection exclude(Attribute<?>... attrs) {
+		for (Attribute<?> attr: attrs)
+			proj.put(attr.getName(), 0);
+		return this;
+	}
+
+	/**
+	 * Adds the relevance score of a $text query as <b>field</b>, see {@link MCursor#sortByTextScore(String, String...)}
+	 */
+	public Projection textScore(String field) {
+		proj.put(field, new MObject("$meta", "textScore"));
+		return this;
+	}
+
 	public MObject toMObject() {
 		return proj;
 	}
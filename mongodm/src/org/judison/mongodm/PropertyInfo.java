@@ -29,6 +29,7 @@ package org.judison.mongodm;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -36,7 +37,9 @@ import java.util.Vector;
 
 import org.judison.mongodm.annotations.Embedded;
 import org.judison.mongodm.annotations.Entity;
+import org.judison.mongodm.annotations.GeoIndexed;
 import org.judison.mongodm.annotations.Property;
+import org.judison.mongodm.annotations.Reference;
 
 final class PropertyInfo {
 
@@ -44,6 +47,7 @@ final class PropertyInfo {
 		ARRAY,
 		ENUM,
 		SUB,
+		REFERENCE,
 		SIMPLE
 	}
 
@@ -53,6 +57,7 @@ final class PropertyInfo {
 	public final Field field;
 	public final String name;
 	final TypeInfo subType;
+	final boolean geoJson;
 
 	PropertyInfo(Field field, String name, Property prop) {
 		this.field = field;
@@ -66,7 +71,20 @@ final class PropertyInfo {
 			cls = field.getType();
 
 		Class<?> itemCls = null;
-		if (isListOrArrayClass(field.getType())) {
+		if (field.isAnnotationPresent(Reference.class)) {
+			type = Type.REFERENCE;
+			if (field.getType() != Ref.class)
+				throw new RuntimeException("@Reference field '" + name + "' at " + field.getDeclaringClass().getName() + "." + field.getName() + " must be a Ref");
+			if (prop != null && prop.itemClass() != void.class)
+				itemCls = prop.itemClass();
+			else if (field.getGenericType() instanceof ParameterizedType && ((ParameterizedType)field.getGenericType()).getActualTypeArguments()[0] instanceof Class)
+				itemCls = (Class<?>)((ParameterizedType)field.getGenericType()).getActualTypeArguments()[0];
+			else
+				throw new RuntimeException("You must specify the referenced class for '" + name + "' at " + field.getDeclaringClass().getName() + "." + field.getName());
+			if (itemCls.getAnnotation(Entity.class) == null)
+				throw new RuntimeException("You can only reference an @Entity class for '" + name + "' at " + field.getDeclaringClass().getName() + "." + field.getName());
+
+		} else if (isListOrArrayClass(field.getType())) {
 			type = Type.ARRAY;
 			if (cls.isArray())
 				itemCls = cls.getComponentType();
@@ -108,6 +126,9 @@ final class PropertyInfo {
 		else
 			subType = null;
 
+		// 2dsphere indexed LatLngs are stored as GeoJSON Points
+		geoJson = cls == LatLng.class && field.isAnnotationPresent(GeoIndexed.class);
+
 		field.setAccessible(true);
 
 		this.type = type;
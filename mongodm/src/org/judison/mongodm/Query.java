@@ -27,6 +27,8 @@
  */
 package org.judison.mongodm;
 
+import java.util.Collection;
+
 public class Query {
 
 	public enum Operator {
@@ -51,7 +53,9 @@ public class Query {
 		WITHIN("$within"),
 		WITHIN_CIRCLE("$center"),
 		WITHIN_CIRCLE_SPHERE("$centerSphere"),
-		WITHIN_BOX("$box");
+		WITHIN_BOX("$box"),
+		GEO_WITHIN("$geoWithin"),
+		GEO_INTERSECTS("$geoIntersects");
 
 		private String value;
 
@@ -59,6 +63,10 @@ public class Query {
 			value = val;
 		}
 
+		public String getValue() {
+			return value;
+		}
+
 		private boolean equals(String val) {
 			return value.equals(val);
 		}
@@ -85,7 +93,19 @@ public class Query {
 		filter(prop, oper, value);
 	}
 
+	/**
+	 * Parses the <b>conditions</b> (like in {@link #filter(String, Object)}) only once, into a template
+	 * whose values are given later by position, see {@link QueryTemplate#bind(Object...)}
+	 */
+	public static QueryTemplate compile(String... conditions) {
+		return new QueryTemplate(conditions);
+	}
+
 	protected Operator fop(String operator) {
+		return parseOperator(operator);
+	}
+
+	static Operator parseOperator(String operator) {
 		operator = operator.trim();
 
 		if (operator.equals("=") || operator.equals("=="))
@@ -100,21 +120,21 @@ public class Query {
 			return Operator.LESS_THAN_OR_EQUAL;
 		else if (operator.equals("!=") || operator.equals("<>"))
 			return Operator.NOT_EQUAL;
-		else if (operator.toLowerCase().equals("in"))
+		else if (operator.equalsIgnoreCase("in"))
 			return Operator.IN;
-		else if (operator.toLowerCase().equals("nin"))
+		else if (operator.equalsIgnoreCase("nin"))
 			return Operator.NOT_IN;
-		else if (operator.toLowerCase().equals("all"))
+		else if (operator.equalsIgnoreCase("all"))
 			return Operator.ALL;
-		else if (operator.toLowerCase().equals("exists"))
+		else if (operator.equalsIgnoreCase("exists"))
 			return Operator.EXISTS;
-		else if (operator.toLowerCase().equals("elem"))
+		else if (operator.equalsIgnoreCase("elem"))
 			return Operator.ELEMENT_MATCH;
-		else if (operator.toLowerCase().equals("size"))
+		else if (operator.equalsIgnoreCase("size"))
 			return Operator.SIZE;
-		else if (operator.toLowerCase().equals("within"))
+		else if (operator.equalsIgnoreCase("within"))
 			return Operator.WITHIN;
-		else if (operator.toLowerCase().equals("near"))
+		else if (operator.equalsIgnoreCase("near"))
 			return Operator.NEAR;
 		else
 			throw new IllegalArgumentException("Unknown operator '" + operator + "'");
@@ -191,6 +211,61 @@ public class Query {
 		return filter(prop, Operator.NOT_IN, list);
 	}
 	
+	//============
+	// Attributes
+	//============
+
+	public Query filter(Attribute<?> attr, Operator oper, Object value) {
+		return filter(attr.getName(), oper, attr.toBson(value));
+	}
+
+	public <V> Query equal(Attribute<V> attr, V value) {
+		return filter(attr, Operator.EQUAL, value);
+	}
+
+	public <V> Query notEqual(Attribute<V> attr, V value) {
+		return filter(attr, Operator.NOT_EQUAL, value);
+	}
+
+	public <V> Query greater(Attribute<V> attr, V value) {
+		return filter(attr, Operator.GREATER_THAN, value);
+	}
+
+	public <V> Query greaterOrEqual(Attribute<V> attr, V value) {
+		return filter(attr, Operator.GREATER_THAN_OR_EQUAL, value);
+	}
+
+	public <V> Query less(Attribute<V> attr, V value) {
+		return filter(attr, Operator.LESS_THAN, value);
+	}
+
+	public <V> Query lessOrEqual(Attribute<V> attr, V value) {
+		return filter(attr, Operator.LESS_THAN_OR_EQUAL, value);
+	}
+
+	public Query exists(Attribute<?> attr) {
+		return filter(attr.getName(), Operator.EXISTS, Boolean.TRUE);
+	}
+
+	public Query notExists(Attribute<?> attr) {
+		return filter(attr.getName(), Operator.EXISTS, Boolean.FALSE);
+	}
+
+	public <V> Query in(Attribute<V> attr, Collection<? extends V> values) {
+		return filter(attr.getName(), Operator.IN, toBson(attr, values));
+	}
+
+	public <V> Query notIn(Attribute<V> attr, Collection<? extends V> values) {
+		return filter(attr.getName(), Operator.NOT_IN, toBson(attr, values));
+	}
+
+	private static MList toBson(Attribute<?> attr, Collection<?> values) {
+		MList list = new MList();
+		for (Object value: values)
+			list.add(attr.toBson(value));
+		return list;
+	}
+
 	public Query or(Query... queries) {
 		if (queries == null || queries.length < 2)
 			throw new IllegalArgumentException("Must have at least 2 sub queries");
@@ -226,6 +301,53 @@ public class Query {
 		return this;
 	}
 	
+	/**
+	 * Documents with <b>prop</b> (a 2dsphere indexed field) up to <b>maxMeters</b> from <b>point</b>, sorted by distance
+	 */
+	public Query near(String prop, LatLng point, double maxMeters) {
+		return near(prop, point, 0, maxMeters);
+	}
+
+	public Query near(String prop, LatLng point, double minMeters, double maxMeters) {
+		if (point == null || minMeters < 0 || maxMeters < minMeters)
+			throw new IllegalArgumentException();
+		MObject near = new MObject("$geometry", point.toGeoJSON());
+		if (minMeters > 0)
+			near.put("$minDistance", minMeters);
+		near.put("$maxDistance", maxMeters);
+		return filter(prop, Operator.NEAR, near);
+	}
+
+	/**
+	 * Documents with <b>prop</b> inside the polygon with the given <b>vertices</b> (closed automatically)
+	 */
+	public Query withinPolygon(String prop, LatLng... vertices) {
+		if (vertices == null || vertices.length < 3)
+			throw new IllegalArgumentException("A polygon must have at least 3 vertices");
+		MList ring = new MList();
+		for (LatLng vertex: vertices)
+			ring.add(vertex.toGeoJSON().get("coordinates"));
+		if (!vertices[0].equals(vertices[vertices.length - 1]))
+			ring.add(vertices[0].toGeoJSON().get("coordinates"));
+		MList coords = new MList();
+		coords.add(ring);
+		MObject polygon = new MObject("type", "Polygon");
+		polygon.put("coordinates", coords);
+		return filter(prop, Operator.GEO_WITHIN, new MObject("$geometry", polygon));
+	}
+
+	/**
+	 * Documents with <b>prop</b> up to <b>meters</b> from <b>center</b>, not sorted (unlike {@link #near(String, LatLng, double)})
+	 */
+	public Query withinRadius(String prop, LatLng center, double meters) {
+		if (center == null || meters < 0)
+			throw new IllegalArgumentException();
+		MList centerSphere = new MList();
+		centerSphere.add(center.toGeoJSON().get("coordinates"));
+		centerSphere.add(meters / LatLng.EARTH_MEAN_RADIUS);
+		return filter(prop, Operator.GEO_WITHIN, new MObject("$centerSphere", centerSphere));
+	}
+
 	public MObject toMObject() {
 		return conds;
 	}
@@ -0,0 +1,948 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.CodeWScope;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+/**
+ * Evaluates a query in memory, against {@link MObject}s or mapped entities, with the same semantics of the server:
+ * dot paths go through arrays, a condition on an array field matches if any item matches, <code>null</code>
+ * matches a missing field, and <code>$gt</code>/<code>$lt</code> only compare values of the same type.<br>
+ * The query is compiled once to a tree of predicates, so a single QueryMatcher can be shared between threads.<br>
+ * Supports every {@link Query.Operator} but <code>$where</code>, plus <code>$regex</code>, <code>$and</code>,
+ * <code>$or</code> and <code>$nor</code>. <code>$near</code> only filters by distance, it doesn't sort, and
+ * polygon edges are straight lines in longitude/latitude.
+ *
+ * @author judison
+ */
+public final class QueryMatcher {
+
+	private static final Mapper MAPPER = new Mapper(null);
+
+	private final MObject query;
+	private final Node root;
+
+	private QueryMatcher(MObject query) {
+		this.query = query;
+		this.root = compileQuery(query);
+	}
+
+	public static QueryMatcher compile(Query query) {
+		return new QueryMatcher(query.toMObject());
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the query has <code>$where</code>, <code>$text</code> or an unknown operator
+	 */
+	public static QueryMatcher compile(MObject query) {
+		return new QueryMatcher(query);
+	}
+
+	public boolean matches(MObject doc) {
+		return doc != null && root.matches(doc);
+	}
+
+	/**
+	 * @param obj a MObject, or an entity, which is matched by its stored properties
+	 */
+	public boolean matches(Object obj) {
+		if (obj == null)
+			return false;
+		if (obj instanceof BSONObject)
+			return root.matches((BSONObject)obj);
+		return root.matches((BSONObject)MAPPER.javaToBson(obj));
+	}
+
+	/**
+	 * @return the items of <b>items</b> that match
+	 */
+	public <T> List<T> filter(Iterable<T> items) {
+		List<T> result = new ArrayList<T>();
+		for (T item: items)
+			if (matches(item))
+				result.add(item);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return query.toString();
+	}
+
+	//=========
+	// Compile
+	//=========
+
+	private static Node compileQuery(BSONObject query) {
+		List<Node> nodes = new ArrayList<Node>();
+		for (String key: query.keySet()) {
+			Object value = query.get(key);
+			if (key.equals("$and") || key.equals("$or") || key.equals("$nor")) {
+				if (!(value instanceof List) || ((List<?>)value).isEmpty())
+					throw new IllegalArgumentException(key + " must be a non empty array");
+				List<Node> subs = new ArrayList<Node>();
+				for (Object sub: (List<?>)value) {
+					if (!isDoc(sub))
+						throw new IllegalArgumentException(key + " items must be queries");
+					subs.add(compileQuery((BSONObject)sub));
+				}
+				Node[] array = subs.toArray(new Node[subs.size()]);
+				if (key.equals("$and"))
+					nodes.add(new And(array));
+				else if (key.equals("$or"))
+					nodes.add(new Or(array));
+				else
+					nodes.add(new Not(new Or(array)));
+			} else if (key.equals("$comment"))
+				continue;
+			else if (key.startsWith("$"))
+				throw new IllegalArgumentException(key + " can't be evaluated in memory");
+			else
+				nodes.add(new Field(key, compileValue(value)));
+		}
+		return nodes.size() == 1 ? nodes.get(0) : new And(nodes.toArray(new Node[nodes.size()]));
+	}
+
+	private static Cond compileValue(Object value) {
+		if (isDoc(value) && isOperatorDoc((BSONObject)value))
+			return compileOperators((BSONObject)value);
+		return new Eq(value);
+	}
+
+	private static boolean isOperatorDoc(BSONObject doc) {
+		Set<String> keys = doc.keySet();
+		return !keys.isEmpty() && keys.iterator().next().startsWith("$");
+	}
+
+	private static Cond compileOperators(BSONObject ops) {
+		List<Cond> conds = new ArrayList<Cond>();
+		for (String op: ops.keySet()) {
+			Object value = ops.get(op);
+			if (op.equals("$eq"))
+				conds.add(new Eq(value));
+			else if (op.equals("$ne"))
+				conds.add(new NotCond(new Eq(value)));
+			else if (op.equals("$gt"))
+				conds.add(new Cmp(value, 1, false));
+			else if (op.equals("$gte"))
+				conds.add(new Cmp(value, 1, true));
+			else if (op.equals("$lt"))
+				conds.add(new Cmp(value, -1, false));
+			else if (op.equals("$lte"))
+				conds.add(new Cmp(value, -1, true));
+			else if (op.equals("$in"))
+				conds.add(new In(list(op, value)));
+			else if (op.equals("$nin"))
+				conds.add(new NotCond(new In(list(op, value))));
+			else if (op.equals("$all"))
+				conds.add(new All(list(op, value)));
+			else if (op.equals("$exists"))
+				conds.add(new Exists(truthy(value)));
+			else if (op.equals("$type"))
+				conds.add(new Type(value));
+			else if (op.equals("$mod")) {
+				List<?> mod = list(op, value);
+				if (mod.size() != 2 || !(mod.get(0) instanceof Number) || !(mod.get(1) instanceof Number) || ((Number)mod.get(0)).longValue() == 0)
+					throw new IllegalArgumentException("$mod must be [ divisor, remainder ]");
+				conds.add(new Mod(((Number)mod.get(0)).longValue(), ((Number)mod.get(1)).longValue()));
+			} else if (op.equals("$size")) {
+				if (!(value instanceof Number))
+					throw new IllegalArgumentException("$size must be a number");
+				conds.add(new Size(((Number)value).intValue()));
+			} else if (op.equals("$elemMatch")) {
+				if (!isDoc(value))
+					throw new IllegalArgumentException("$elemMatch must be an object");
+				BSONObject sub = (BSONObject)value;
+				if (isOperatorDoc(sub))
+					conds.add(new ElemMatch(compileOperators(sub), null));
+				else
+					conds.add(new ElemMatch(null, compileQuery(sub)));
+			} else if (op.equals("$not")) {
+				if (value instanceof Pattern)
+					conds.add(new NotCond(new Regex((Pattern)value)));
+				else if (isDoc(value) && isOperatorDoc((BSONObject)value))
+					conds.add(new NotCond(compileOperators((BSONObject)value)));
+				else
+					throw new IllegalArgumentException("$not must be a regex or an operator object");
+			} else if (op.equals("$regex"))
+				conds.add(new Regex(regex(value, ops.get("$options"))));
+			else if (op.equals("$near") || op.equals("$nearSphere"))
+				conds.add(near(op.equals("$nearSphere"), value, ops.get("$minDistance"), ops.get("$maxDistance")));
+			else if (op.equals("$within") || op.equals("$geoWithin")) {
+				if (!isDoc(value))
+					throw new IllegalArgumentException(op + " must be an object");
+				conds.add(new Within(shape((BSONObject)value)));
+			} else if (op.equals("$center") || op.equals("$centerSphere") || op.equals("$box") || op.equals("$polygon"))
+				conds.add(new Within(shape(new MObject(op, value))));
+			else if (op.equals("$geoIntersects")) {
+				if (!isDoc(value) || !isDoc(((BSONObject)value).get("$geometry")))
+					throw new IllegalArgumentException("$geoIntersects must have a $geometry");
+				conds.add(new Within(geometry((BSONObject)((BSONObject)value).get("$geometry"))));
+			} else if (op.equals("$options") || op.equals("$maxDistance") || op.equals("$minDistance"))
+				continue; // used by $regex and $near
+			else if (op.equals("$where"))
+				throw new IllegalArgumentException("$where can't be evaluated in memory");
+			else
+				throw new IllegalArgumentException("Unknown operator " + op);
+		}
+		return conds.size() == 1 ? conds.get(0) : new AndCond(conds.toArray(new Cond[conds.size()]));
+	}
+
+	private static List<?> list(String op, Object value) {
+		if (!(value instanceof List))
+			throw new IllegalArgumentException(op + " must be an array");
+		return (List<?>)value;
+	}
+
+	private static boolean truthy(Object value) {
+		if (value instanceof Boolean)
+			return (Boolean)value;
+		if (value instanceof Number)
+			return ((Number)value).doubleValue() != 0;
+		return value != null;
+	}
+
+	private static Pattern regex(Object regex, Object options) {
+		if (regex instanceof Pattern && options == null)
+			return (Pattern)regex;
+		String source = regex instanceof Pattern ? ((Pattern)regex).pattern() : String.valueOf(regex);
+		int flags = regex instanceof Pattern ? ((Pattern)regex).flags() : 0;
+		if (options != null)
+			for (char c: options.toString().toCharArray())
+				if (c == 'i')
+					flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+				else if (c == 'm')
+					flags |= Pattern.MULTILINE;
+				else if (c == 's')
+					flags |= Pattern.DOTALL;
+				else if (c == 'x')
+					flags |= Pattern.COMMENTS;
+		return Pattern.compile(source, flags);
+	}
+
+	//======
+	// Tree
+	//======
+
+	private static abstract class Node {
+		abstract boolean matches(BSONObject doc);
+	}
+
+	private static final class And extends Node {
+		final Node[] nodes;
+
+		And(Node[] nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		boolean matches(BSONObject doc) {
+			for (Node node: nodes)
+				if (!node.matches(doc))
+					return false;
+			return true;
+		}
+	}
+
+	private static final class Or extends Node {
+		final Node[] nodes;
+
+		Or(Node[] nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		boolean matches(BSONObject doc) {
+			for (Node node: nodes)
+				if (node.matches(doc))
+					return true;
+			return false;
+		}
+	}
+
+	private static final class Not extends Node {
+		final Node node;
+
+		Not(Node node) {
+			this.node = node;
+		}
+
+		@Override
+		boolean matches(BSONObject doc) {
+			return !node.matches(doc);
+		}
+	}
+
+	private static final class Field extends Node {
+		final String[] path;
+		final Cond cond;
+
+		Field(String path, Cond cond) {
+			this.path = path.split("\\.");
+			this.cond = cond;
+		}
+
+		@Override
+		boolean matches(BSONObject doc) {
+			List<Object> values = new ArrayList<Object>(2);
+			resolve(doc, path, 0, values);
+			return cond.test(values);
+		}
+	}
+
+	/**
+	 * Like {@link MObject#deepGet(String)}, but going through arrays: every value reached by the path is added to <b>out</b>,
+	 * nothing is added if the field is missing
+	 */
+	static void resolve(Object cur, String[] path, int i, List<Object> out) {
+		if (i == path.length) {
+			out.add(cur);
+			return;
+		}
+		if (cur instanceof List) {
+			List<?> list = (List<?>)cur;
+			int index = index(path[i]);
+			if (index >= 0 && index < list.size())
+				resolve(list.get(index), path, i + 1, out);
+			for (Object item: list)
+				if (isDoc(item))
+					resolve(item, path, i, out);
+		} else if (cur instanceof BSONObject) {
+			BSONObject obj = (BSONObject)cur;
+			if (obj.containsField(path[i]))
+				resolve(obj.get(path[i]), path, i + 1, out);
+		}
+	}
+
+	private static int index(String part) {
+		if (part.isEmpty() || part.length() > 9)
+			return -1;
+		for (int i = 0; i < part.length(); i++)
+			if (part.charAt(i) < '0' || part.charAt(i) > '9')
+				return -1;
+		return Integer.parseInt(part);
+	}
+
+	//============
+	// Conditions
+	//============
+
+	/**
+	 * A condition over the values of a field, empty if it's missing
+	 */
+	private static abstract class Cond {
+		abstract boolean test(List<Object> values);
+	}
+
+	/**
+	 * A condition that matches if any value, or any item of an array value, matches
+	 */
+	private static abstract class ItemCond extends Cond {
+		abstract boolean testItem(Object value);
+
+		@Override
+		boolean test(List<Object> values) {
+			for (Object value: values) {
+				if (testItem(value))
+					return true;
+				if (value instanceof List)
+					for (Object item: (List<?>)value)
+						if (testItem(item))
+							return true;
+			}
+			return false;
+		}
+	}
+
+	private static final class AndCond extends Cond {
+		final Cond[] conds;
+
+		AndCond(Cond[] conds) {
+			this.conds = conds;
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			for (Cond cond: conds)
+				if (!cond.test(values))
+					return false;
+			return true;
+		}
+	}
+
+	private static final class NotCond extends Cond {
+		final Cond cond;
+
+		NotCond(Cond cond) {
+			this.cond = cond;
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			return !cond.test(values);
+		}
+	}
+
+	private static final class Eq extends ItemCond {
+		final Object target;
+
+		Eq(Object target) {
+			this.target = target;
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			if (target == null && values.isEmpty())
+				return true;
+			return super.test(values);
+		}
+
+		@Override
+		boolean testItem(Object value) {
+			if (target instanceof Pattern)
+				return value instanceof String ? ((Pattern)target).matcher((String)value).find() : valueEquals(value, target);
+			return valueEquals(value, target);
+		}
+	}
+
+	private static final class In extends Cond {
+		final Eq[] targets;
+
+		In(List<?> targets) {
+			this.targets = new Eq[targets.size()];
+			for (int i = 0; i < this.targets.length; i++)
+				this.targets[i] = new Eq(targets.get(i));
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			for (Eq eq: targets)
+				if (eq.test(values))
+					return true;
+			return false;
+		}
+	}
+
+	private static final class All extends Cond {
+		final Eq[] targets;
+
+		All(List<?> targets) {
+			this.targets = new Eq[targets.size()];
+			for (int i = 0; i < this.targets.length; i++)
+				this.targets[i] = new Eq(targets.get(i));
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			if (targets.length == 0)
+				return false;
+			for (Eq eq: targets)
+				if (!eq.test(values))
+					return false;
+			return true;
+		}
+	}
+
+	private static final class Cmp extends ItemCond {
+		final Object target;
+		final int sign;
+		final boolean orEqual;
+
+		Cmp(Object target, int sign, boolean orEqual) {
+			this.target = target;
+			this.sign = sign;
+			this.orEqual = orEqual;
+		}
+
+		@Override
+		boolean testItem(Object value) {
+			Integer c = compare(value, target);
+			if (c == null)
+				return false;
+			return c == 0 ? orEqual : Integer.signum(c) == sign;
+		}
+	}
+
+	private static final class Exists extends Cond {
+		final boolean exists;
+
+		Exists(boolean exists) {
+			this.exists = exists;
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			return values.isEmpty() != exists;
+		}
+	}
+
+	private static final class Type extends ItemCond {
+		final Set<Integer> types = new HashSet<Integer>();
+
+		Type(Object type) {
+			for (Object t: type instanceof List ? (List<?>)type : Collections.singletonList(type))
+				if (t instanceof Number)
+					types.add(((Number)t).intValue());
+				else if ("number".equals(t))
+					types.addAll(Arrays.asList(1, 16, 18, 19));
+				else {
+					int code = Arrays.asList(TYPE_ALIASES).indexOf(t);
+					if (code <= 0)
+						throw new IllegalArgumentException("Unknown $type " + t);
+					types.add(code);
+				}
+		}
+
+		@Override
+		boolean testItem(Object value) {
+			return types.contains(typeOf(value));
+		}
+	}
+
+	private static final class Mod extends ItemCond {
+		final long divisor;
+		final long remainder;
+
+		Mod(long divisor, long remainder) {
+			this.divisor = divisor;
+			this.remainder = remainder;
+		}
+
+		@Override
+		boolean testItem(Object value) {
+			return value instanceof Number && ((Number)value).longValue() % divisor == remainder;
+		}
+	}
+
+	private static final class Size extends Cond {
+		final int size;
+
+		Size(int size) {
+			this.size = size;
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			for (Object value: values)
+				if (value instanceof List && ((List<?>)value).size() == size)
+					return true;
+			return false;
+		}
+	}
+
+	private static final class ElemMatch extends Cond {
+		final Cond cond;
+		final Node node;
+
+		ElemMatch(Cond cond, Node node) {
+			this.cond = cond;
+			this.node = node;
+		}
+
+		@Override
+		boolean test(List<Object> values) {
+			for (Object value: values)
+				if (value instanceof List)
+					for (Object item: (List<?>)value)
+						if (node != null ? isDoc(item) && node.matches((BSONObject)item) : cond.test(Collections.singletonList(item)))
+							return true;
+			return false;
+		}
+	}
+
+	private static final class Regex extends ItemCond {
+		final Pattern pattern;
+
+		Regex(Pattern pattern) {
+			this.pattern = pattern;
+		}
+
+		@Override
+		boolean testItem(Object value) {
+			if (value instanceof Pattern)
+				return ((Pattern)value).pattern().equals(pattern.pattern());
+			return value instanceof String && pattern.matcher((String)value).find();
+		}
+	}
+
+	//=====
+	// Geo
+	//=====
+
+	private static abstract class Shape {
+		abstract boolean contains(double lng, double lat);
+	}
+
+	/**
+	 * A condition over the points of a field: a point, or an array of points
+	 */
+	private static abstract class GeoCond extends Cond {
+		abstract boolean testPoint(double lng, double lat);
+
+		@Override
+		boolean test(List<Object> values) {
+			for (Object value: values) {
+				double[] p = point(value);
+				if (p != null) {
+					if (testPoint(p[0], p[1]))
+						return true;
+				} else if (value instanceof List)
+					for (Object item: (List<?>)value) {
+						p = point(item);
+						if (p != null && testPoint(p[0], p[1]))
+							return true;
+					}
+			}
+			return false;
+		}
+	}
+
+	private static final class Within extends GeoCond {
+		final Shape shape;
+
+		Within(Shape shape) {
+			this.shape = shape;
+		}
+
+		@Override
+		boolean testPoint(double lng, double lat) {
+			return shape.contains(lng, lat);
+		}
+	}
+
+	private static final class Near extends GeoCond {
+		final double lng;
+		final double lat;
+		final double min;
+		final double max;
+		// 0: meters, 1: planar (legacy $near), 2: radians (legacy $nearSphere)
+		final int mode;
+
+		Near(double lng, double lat, double min, double max, int mode) {
+			this.lng = lng;
+			this.lat = lat;
+			this.min = min;
+			this.max = max;
+			this.mode = mode;
+		}
+
+		@Override
+		boolean testPoint(double lng, double lat) {
+			double d;
+			if (mode == 1)
+				d = Math.hypot(lng - this.lng, lat - this.lat);
+			else {
+				d = new LatLng(this.lat, this.lng).getDistanceTo(lat, lng);
+				if (mode == 2)
+					d /= LatLng.EARTH_MEAN_RADIUS;
+			}
+			return d >= min && d <= max;
+		}
+	}
+
+	private static Cond near(boolean sphere, Object value, Object min, Object max) {
+		double[] center;
+		int mode;
+		if (isDoc(value) && ((BSONObject)value).containsField("$geometry")) {
+			BSONObject near = (BSONObject)value;
+			center = point(near.get("$geometry"));
+			min = near.containsField("$minDistance") ? near.get("$minDistance") : min;
+			max = near.containsField("$maxDistance") ? near.get("$maxDistance") : max;
+			mode = 0;
+		} else {
+			center = point(value);
+			mode = sphere ? 2 : 1;
+		}
+		if (center == null)
+			throw new IllegalArgumentException("Invalid $near point " + value);
+		return new Near(center[0], center[1],
+			min instanceof Number ? ((Number)min).doubleValue() : 0,
+			max instanceof Number ? ((Number)max).doubleValue() : Double.POSITIVE_INFINITY, mode);
+	}
+
+	private static Shape shape(BSONObject within) {
+		if (within.containsField("$geometry") && isDoc(within.get("$geometry")))
+			return geometry((BSONObject)within.get("$geometry"));
+		if (within.containsField("$box")) {
+			List<?> box = list("$box", within.get("$box"));
+			final double[] a = point(box.get(0));
+			final double[] b = point(box.get(1));
+			return new Shape() {
+
+				@Override
+				boolean contains(double lng, double lat) {
+					return lng >= Math.min(a[0], b[0]) && lng <= Math.max(a[0], b[0]) && lat >= Math.min(a[1], b[1]) && lat <= Math.max(a[1], b[1]);
+				}
+			};
+		}
+		if (within.containsField("$center") || within.containsField("$centerSphere")) {
+			final boolean sphere = within.containsField("$centerSphere");
+			List<?> circle = list("$center", within.get(sphere ? "$centerSphere" : "$center"));
+			final double[] c = point(circle.get(0));
+			final double r = ((Number)circle.get(1)).doubleValue();
+			return new Shape() {
+
+				@Override
+				boolean contains(double lng, double lat) {
+					if (sphere)
+						return new LatLng(c[1], c[0]).getDistanceTo(lat, lng) / LatLng.EARTH_MEAN_RADIUS <= r;
+					return Math.hypot(lng - c[0], lat - c[1]) <= r;
+				}
+			};
+		}
+		if (within.containsField("$polygon"))
+			return polygon(Collections.singletonList(list("$polygon", within.get("$polygon"))));
+		throw new IllegalArgumentException("Unknown shape " + within);
+	}
+
+	private static Shape geometry(BSONObject geometry) {
+		Object type = geometry.get("type");
+		final List<?> coords = list("coordinates", geometry.get("coordinates"));
+		if ("Point".equals(type)) {
+			final double[] p = point(coords);
+			return new Shape() {
+
+				@Override
+				boolean contains(double lng, double lat) {
+					return lng == p[0] && lat == p[1];
+				}
+			};
+		}
+		if ("Polygon".equals(type))
+			return polygon(coords);
+		if ("MultiPolygon".equals(type)) {
+			final List<Shape> polygons = new ArrayList<Shape>();
+			for (Object polygon: coords)
+				polygons.add(polygon(list("coordinates", polygon)));
+			return new Shape() {
+
+				@Override
+				boolean contains(double lng, double lat) {
+					for (Shape polygon: polygons)
+						if (polygon.contains(lng, lat))
+							return true;
+					return false;
+				}
+			};
+		}
+		throw new IllegalArgumentException("Unsupported geometry " + type);
+	}
+
+	/**
+	 * @param rings the outer ring, then the holes
+	 */
+	private static Shape polygon(List<?> rings) {
+		final double[][][] polygon = new double[rings.size()][][];
+		for (int r = 0; r < polygon.length; r++) {
+			List<?> ring = list("coordinates", rings.get(r));
+			polygon[r] = new double[ring.size()][];
+			for (int i = 0; i < ring.size(); i++)
+				if ((polygon[r][i] = point(ring.get(i))) == null)
+					throw new IllegalArgumentException("Invalid polygon point " + ring.get(i));
+		}
+		return new Shape() {
+
+			@Override
+			boolean contains(double lng, double lat) {
+				if (polygon.length == 0 || !inRing(polygon[0], lng, lat))
+					return false;
+				for (int r = 1; r < polygon.length; r++)
+					if (inRing(polygon[r], lng, lat))
+						return false;
+				return true;
+			}
+		};
+	}
+
+	private static boolean inRing(double[][] ring, double x, double y) {
+		boolean inside = false;
+		for (int i = 0, j = ring.length - 1; i < ring.length; j = i++) {
+			double xi = ring[i][0], yi = ring[i][1], xj = ring[j][0], yj = ring[j][1];
+			if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+				inside = !inside;
+		}
+		return inside;
+	}
+
+	/**
+	 * @return [ lng, lat ] of a GeoJSON Point, a [ x, y ] pair, a { lng, lat } object or a LatLng, or null
+	 */
+	private static double[] point(Object value) {
+		if (value instanceof LatLng)
+			return new double[] { ((LatLng)value).getLongitude(), ((LatLng)value).getLatitude() };
+		if (value instanceof List) {
+			List<?> list = (List<?>)value;
+			if (list.size() == 2 && list.get(0) instanceof Number && list.get(1) instanceof Number)
+				return new double[] { ((Number)list.get(0)).doubleValue(), ((Number)list.get(1)).doubleValue() };
+			return null;
+		}
+		if (isDoc(value)) {
+			BSONObject obj = (BSONObject)value;
+			if ("Point".equals(obj.get("type")))
+				return point(obj.get("coordinates"));
+			for (String[] names: new String[][] { { "lng", "lat" }, { "lon", "lat" }, { "longitude", "latitude" } })
+				if (obj.get(names[0]) instanceof Number && obj.get(names[1]) instanceof Number)
+					return new double[] { ((Number)obj.get(names[0])).doubleValue(), ((Number)obj.get(names[1])).doubleValue() };
+		}
+		return null;
+	}
+
+	//========
+	// Values
+	//========
+
+	private static boolean isDoc(Object value) {
+		return value instanceof BSONObject && !(value instanceof List);
+	}
+
+	private static final String[] TYPE_ALIASES = { "", "double", "string", "object", "array", "binData", "undefined", "objectId",
+		"bool", "date", "null", "regex", "dbPointer", "javascript", "symbol", "javascriptWithScope", "int", "timestamp", "long", "decimal" };
+
+	static int typeOf(Object value) {
+		if (value == null)
+			return 10;
+		if (value instanceof Double || value instanceof Float)
+			return 1;
+		if (value instanceof String)
+			return 2;
+		if (value instanceof List)
+			return 4;
+		if (value instanceof BSONObject)
+			return 3;
+		if (value instanceof byte[] || value instanceof Binary || value instanceof java.util.UUID)
+			return 5;
+		if (value instanceof ObjectId)
+			return 7;
+		if (value instanceof Boolean)
+			return 8;
+		if (value instanceof Date)
+			return 9;
+		if (value instanceof Pattern)
+			return 11;
+		if (value instanceof CodeWScope)
+			return 15;
+		if (value instanceof Code)
+			return 13;
+		if (value instanceof Symbol)
+			return 14;
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return 16;
+		if (value instanceof BSONTimestamp)
+			return 17;
+		if (value instanceof Long)
+			return 18;
+		if (value instanceof Number)
+			return 19;
+		if (value instanceof MinKey)
+			return -1;
+		if (value instanceof MaxKey)
+			return 127;
+		return 3;
+	}
+
+	static boolean valueEquals(Object a, Object b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null)
+			return false;
+		if (a instanceof Number && b instanceof Number)
+			return compareNumbers((Number)a, (Number)b) == 0;
+		if (a instanceof List && b instanceof List) {
+			List<?> la = (List<?>)a;
+			List<?> lb = (List<?>)b;
+			if (la.size() != lb.size())
+				return false;
+			for (int i = 0; i < la.size(); i++)
+				if (!valueEquals(la.get(i), lb.get(i)))
+					return false;
+			return true;
+		}
+		if (isDoc(a) && isDoc(b)) {
+			// field order matters, like in the server
+			List<String> ka = new ArrayList<String>(((BSONObject)a).keySet());
+			List<String> kb = new ArrayList<String>(((BSONObject)b).keySet());
+			if (!ka.equals(kb))
+				return false;
+			for (String key: ka)
+				if (!valueEquals(((BSONObject)a).get(key), ((BSONObject)b).get(key)))
+					return false;
+			return true;
+		}
+		if (a instanceof byte[] && b instanceof byte[])
+			return Arrays.equals((byte[])a, (byte[])b);
+		if (a instanceof Pattern && b instanceof Pattern)
+			return ((Pattern)a).pattern().equals(((Pattern)b).pattern()) && ((Pattern)a).flags() == ((Pattern)b).flags();
+		return a.equals(b);
+	}
+
+	/**
+	 * @return null if they aren't comparable, values of different types never are
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Integer compare(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number)
+			return compareNumbers((Number)a, (Number)b);
+		if (a == null || b == null || a instanceof List || b instanceof List || a instanceof BSONObject || b instanceof BSONObject)
+			return null;
+		if (a instanceof String && b instanceof String)
+			return ((String)a).compareTo((String)b);
+		if (a.getClass() == b.getClass() && a instanceof Comparable)
+			return ((Comparable)a).compareTo(b);
+		if (a instanceof Date && b instanceof Date)
+			return ((Date)a).compareTo((Date)b);
+		return null;
+	}
+
+	static int compareNumbers(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b))
+			return a.longValue() < b.longValue() ? -1 : (a.longValue() == b.longValue() ? 0 : 1);
+		return Double.compare(a.doubleValue(), b.doubleValue());
+	}
+
+	private static boolean isIntegral(Number n) {
+		return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+	}
+
+}
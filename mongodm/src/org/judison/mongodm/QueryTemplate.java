@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.judison.mongodm.Query.Operator;
+
+/**
+ * A query with its conditions parsed only once, see {@link Query#compile(String...)}.<br>
+ * <pre>
+ * QueryTemplate byAge = Query.compile("age &gt;=", "age &lt;", "status in");
+ * coll.find(byAge.bind(18, 65, Arrays.asList("active", "new")));
+ * </pre>
+ * Immutable, so a single instance can be shared between threads.
+ *
+ * @author judison
+ */
+public final class QueryTemplate {
+
+	private final String[] conditions;
+	// for each property, in order: its operators (null for equal) and the position of their values
+	private final String[] props;
+	private final String[][] ops;
+	private final int[][] params;
+	private final boolean[] lists;
+
+	QueryTemplate(String... conditions) {
+		if (conditions == null || conditions.length == 0)
+			throw new IllegalArgumentException("No conditions");
+		this.conditions = conditions.clone();
+		this.lists = new boolean[conditions.length];
+
+		LinkedHashMap<String, List<Object[]>> byProp = new LinkedHashMap<String, List<Object[]>>();
+		for (int i = 0; i < conditions.length; i++) {
+			String[] parts = conditions[i].trim().split(" ");
+			if (parts.length < 1 || parts.length > 2)
+				throw new IllegalArgumentException("'" + conditions[i] + "' is not a legal filter condition");
+			String prop = parts[0].trim();
+			Operator oper = parts.length == 2 ? Query.parseOperator(parts[1]) : Operator.EQUAL;
+			lists[i] = oper == Operator.IN || oper == Operator.NOT_IN || oper == Operator.ALL;
+
+			List<Object[]> list = byProp.get(prop);
+			if (list == null) {
+				list = new ArrayList<Object[]>();
+				byProp.put(prop, list);
+			}
+			for (Object[] other: list)
+				if (other[0] == oper)
+					throw new IllegalArgumentException("Duplicated condition '" + conditions[i] + "'");
+				else if (other[0] == Operator.EQUAL || oper == Operator.EQUAL)
+					throw new IllegalArgumentException("'" + prop + "' can't have both equal and other conditions");
+			list.add(new Object[] { oper, i });
+		}
+
+		int n = byProp.size();
+		props = new String[n];
+		ops = new String[n][];
+		params = new int[n][];
+		int p = 0;
+		for (Entry<String, List<Object[]>> e: byProp.entrySet()) {
+			List<Object[]> list = e.getValue();
+			props[p] = e.getKey();
+			params[p] = new int[list.size()];
+			if (list.get(0)[0] != Operator.EQUAL)
+				ops[p] = new String[list.size()];
+			for (int j = 0; j < list.size(); j++) {
+				params[p][j] = (Integer)list.get(j)[1];
+				if (ops[p] != null)
+					ops[p][j] = ((Operator)list.get(j)[0]).getValue();
+			}
+			p++;
+		}
+	}
+
+	/**
+	 * @param values one value per condition, in the same order
+	 * @return a new query document
+	 */
+	public MObject bind(Object... values) {
+		if (values == null || values.length != conditions.length)
+			throw new IllegalArgumentException("Expected " + conditions.length + " values");
+		MObject query = new MObject();
+		for (int p = 0; p < props.length; p++) {
+			int[] ps = params[p];
+			String[] os = ops[p];
+			if (os == null)
+				query.put(props[p], value(ps[0], values[ps[0]]));
+			else {
+				MObject inner = new MObject();
+				for (int j = 0; j < ps.length; j++)
+					inner.put(os[j], value(ps[j], values[ps[j]]));
+				query.put(props[p], inner);
+			}
+		}
+		return query;
+	}
+
+	private Object value(int param, Object value) {
+		if (!lists[param] || value instanceof MList)
+			return value;
+		if (value instanceof Collection) {
+			MList list = new MList();
+			list.addAll((Collection<?>)value);
+			return list;
+		}
+		if (value instanceof Object[]) {
+			MList list = new MList();
+			list.addAll(Arrays.asList((Object[])value));
+			return list;
+		}
+		return value;
+	}
+
+	public int getParameterCount() {
+		return conditions.length;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(conditions);
+	}
+
+}
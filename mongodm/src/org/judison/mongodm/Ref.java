@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.judison.mongodm.annotations.Reference;
+
+/**
+ * A lazy reference to another @Entity, used in {@link Reference} fields.<br>
+ * Only the <code>_id</code> is stored, the referenced entity is loaded on the first {@link #get()}.<br>
+ * When iterating a {@link MCursor}, all the references of the current batch are resolved together,
+ * with one <code>$in</code> query per referenced collection.
+ *
+ * @author judison
+ */
+public final class Ref<T> {
+
+	private final Class<T> cls;
+	private final Object id;
+	private final MDB mdb;
+	private T value;
+	private boolean loaded;
+
+	/**
+	 * Constructs an already loaded reference to <b>entity</b>
+	 */
+	@SuppressWarnings("unchecked")
+	public Ref(T entity) {
+		if (entity == null)
+			throw new IllegalArgumentException();
+		this.cls = (Class<T>)entity.getClass();
+		this.id = Mapper.getTypeInfo(cls).getId(entity);
+		this.mdb = null;
+		this.value = entity;
+		this.loaded = true;
+	}
+
+	/**
+	 * Constructs a not yet loaded reference to the <b>cls</b> entity with the given <b>id</b>
+	 */
+	public Ref(MDB mdb, Class<T> cls, Object id) {
+		if (mdb == null || cls == null)
+			throw new IllegalArgumentException();
+		this.cls = cls;
+		this.id = id;
+		this.mdb = mdb;
+		this.value = null;
+		this.loaded = id == null;
+	}
+
+	public Class<T> getEntityClass() {
+		return cls;
+	}
+
+	public Object getId() {
+		return id;
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @return the referenced entity, loading it if needed, or <code>null</code> if it doesn't exist
+	 */
+	public T get() {
+		if (!loaded)
+			try {
+				set(mdb.getCollection(cls).load(id));
+			} catch (MException e) {
+				throw new MRuntimeException(e);
+			}
+		return value;
+	}
+
+	private void set(T value) {
+		this.value = value;
+		this.loaded = true;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof Ref))
+			return false;
+		Ref<?> other = (Ref<?>)obj;
+		return cls.equals(other.cls) && (id == null ? other.id == null : id.equals(other.id));
+	}
+
+	@Override
+	public int hashCode() {
+		return cls.hashCode() * 31 + (id == null ? 0 : id.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "Ref<" + cls.getSimpleName() + ">(" + id + ")";
+	}
+
+	/**
+	 * Loads all the not yet loaded <b>refs</b>, with one <code>$in</code> query per referenced class.<br>
+	 * The ids of the refs (as stored, or as given) and of the loaded entities (as mapped) are matched by their
+	 * BSON value, compared like by the server ({@link MemoryCollection#idKey(Object)}).
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static void resolveAll(MDB mdb, List<Ref<?>> refs) throws MException {
+		Map<Class<?>, Map<Object, List<Ref<?>>>> pending = new LinkedHashMap<Class<?>, Map<Object, List<Ref<?>>>>();
+		for (Ref<?> ref: refs) {
+			if (ref.loaded)
+				continue;
+			Map<Object, List<Ref<?>>> byId = pending.get(ref.cls);
+			if (byId == null) {
+				byId = new HashMap<Object, List<Ref<?>>>();
+				pending.put(ref.cls, byId);
+			}
+			Object key = idKey(mdb, ref.id);
+			List<Ref<?>> same = byId.get(key);
+			if (same == null) {
+				same = new ArrayList<Ref<?>>(1);
+				byId.put(key, same);
+			}
+			same.add(ref);
+		}
+
+		for (Entry<Class<?>, Map<Object, List<Ref<?>>>> e: pending.entrySet()) {
+			Map<Object, List<Ref<?>>> byId = e.getValue();
+			TypeInfo typeInfo = Mapper.getTypeInfo(e.getKey());
+
+			MList ids = new MList();
+			for (List<Ref<?>> same: byId.values())
+				ids.add(mdb.mapper.javaToBson(same.get(0).id));
+
+			MCursor<?> cursor = mdb.getCollection(e.getKey()).find(new MObject("_id", new MObject("$in", ids)));
+			try {
+				while (cursor.hasNext()) {
+					Object entity = cursor.next();
+					List<Ref<?>> same = byId.remove(idKey(mdb, typeInfo.getId(entity)));
+					if (same != null)
+						for (Ref ref: same)
+							ref.set(entity);
+				}
+			} finally {
+				cursor.close();
+			}
+
+			// Not found, they are dangling references
+			for (List<Ref<?>> same: byId.values())
+				for (Ref<?> ref: same)
+					ref.set(null);
+		}
+	}
+
+	private static Object idKey(MDB mdb, Object id) {
+		return MemoryCollection.idKey(mdb.mapper.javaToBson(id));
+	}
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory spatial index of entities by a {@link LatLng} property, for radius and k-nearest queries
+ * without scanning every entity.<br>
+ * Entities are kept in geohash cells (<b>bits</b> bits of latitude and of longitude),
+ * a query only looks at the cells around the point, and the candidates are refined with {@link LatLng#getDistanceTo(LatLng)}.<br>
+ * Use {@link MCollection#createSpatialIndex(String)} to keep it updated on every save and remove,
+ * or {@link #put(Object)}/{@link #remove(Object)} to keep it by hand. Thread safe.
+ *
+ * @author judison
+ */
+public class SpatialIndex<T> {
+
+	public static final int DEFAULT_BITS = 16;
+
+	private static final class Entry<T> {
+		final Object id;
+		T entity;
+		LatLng pos;
+		long cell;
+
+		Entry(Object id) {
+			this.id = id;
+		}
+	}
+
+	private static final class Hit<T> {
+		final T entity;
+		final double distance;
+
+		Hit(T entity, double distance) {
+			this.entity = entity;
+			this.distance = distance;
+		}
+	}
+
+	private static final Comparator<Hit<?>> BY_DISTANCE = new Comparator<Hit<?>>() {
+
+		@Override
+		public int compare(Hit<?> a, Hit<?> b) {
+			return Double.compare(a.distance, b.distance);
+		}
+	};
+
+	private final TypeInfo typeInfo;
+	private final PropertyInfo property;
+	private final int bits;
+	private final int cellsPerAxis;
+
+	private final HashMap<Object, Entry<T>> byId = new HashMap<Object, Entry<T>>();
+	private final HashMap<Long, List<Entry<T>>> cells = new HashMap<Long, List<Entry<T>>>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public SpatialIndex(Class<T> cls, String property) {
+		this(cls, property, DEFAULT_BITS);
+	}
+
+	/**
+	 * @param property the (stored) name of a {@link LatLng} property
+	 * @param bits cell precision, 16 bits are cells of about 300x600m at the equator
+	 */
+	public SpatialIndex(Class<T> cls, String property, int bits) {
+		if (bits < 1 || bits > 30)
+			throw new IllegalArgumentException("bits must be between 1 and 30");
+		this.typeInfo = Mapper.getTypeInfo(cls);
+		if (typeInfo.idField == null)
+			throw new IllegalArgumentException(cls.getName() + " has no @Id field");
+		this.property = typeInfo.properties.get(property);
+		if (this.property == null || this.property.cls != LatLng.class)
+			throw new IllegalArgumentException(cls.getName() + " has no LatLng property '" + property + "'");
+		this.bits = bits;
+		this.cellsPerAxis = 1 << bits;
+	}
+
+	//========
+	// Update
+	//========
+
+	/**
+	 * Adds or moves <b>entity</b>, an entity without position is removed
+	 */
+	public void put(T entity) {
+		Object id = typeInfo.getId(entity);
+		if (id == null)
+			throw new IllegalArgumentException("Entity without id");
+		LatLng pos;
+		try {
+			pos = (LatLng)property.field.get(entity);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+
+		lock.writeLock().lock();
+		try {
+			Entry<T> entry = byId.get(id);
+			if (pos == null) {
+				if (entry != null)
+					remove(entry);
+				return;
+			}
+			long cell = cell(latIndex(pos.getLatitude()), lngIndex(pos.getLongitude()));
+			if (entry == null) {
+				entry = new Entry<T>(id);
+				byId.put(id, entry);
+			} else if (entry.cell != cell)
+				removeFromCell(entry);
+			else
+				cell = -1; // same cell, nothing to move
+			entry.entity = entity;
+			entry.pos = pos;
+			if (cell != -1) {
+				entry.cell = cell;
+				List<Entry<T>> list = cells.get(cell);
+				if (list == null) {
+					list = new ArrayList<Entry<T>>(4);
+					cells.put(cell, list);
+				}
+				list.add(entry);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void addAll(Iterable<? extends T> entities) {
+		for (T entity: entities)
+			put(entity);
+	}
+
+	public void remove(T entity) {
+		removeById(typeInfo.getId(entity));
+	}
+
+	public void removeById(Object id) {
+		lock.writeLock().lock();
+		try {
+			Entry<T> entry = byId.get(id);
+			if (entry != null)
+				remove(entry);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			byId.clear();
+			cells.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void remove(Entry<T> entry) {
+		byId.remove(entry.id);
+		removeFromCell(entry);
+	}
+
+	private void removeFromCell(Entry<T> entry) {
+		List<Entry<T>> list = cells.get(entry.cell);
+		int last = list.size() - 1;
+		for (int i = 0; i <= last; i++)
+			if (list.get(i) == entry) {
+				list.set(i, list.get(last));
+				list.remove(last);
+				break;
+			}
+		if (list.isEmpty())
+			cells.remove(entry.cell);
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return byId.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	//=========
+	// Queries
+	//=========
+
+	/**
+	 * @return the entities up to <b>meters</b> from <b>center</b>, nearest first
+	 */
+	public List<T> withinRadius(LatLng center, double meters) {
+		if (center == null || meters < 0)
+			throw new IllegalArgumentException();
+		List<Hit<T>> hits;
+		lock.readLock().lock();
+		try {
+			hits = collect(center, meters);
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(hits, BY_DISTANCE);
+		return entities(hits, hits.size());
+	}
+
+	/**
+	 * @return the <b>k</b> entities nearest to <b>center</b>, nearest first
+	 */
+	public List<T> nearest(LatLng center, int k) {
+		return nearest(center, k, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @return the <b>k</b> entities nearest to <b>center</b>, up to <b>maxMeters</b>, nearest first
+	 */
+	public List<T> nearest(LatLng center, int k, double maxMeters) {
+		if (center == null || k < 0 || maxMeters < 0)
+			throw new IllegalArgumentException();
+		if (k == 0)
+			return new ArrayList<T>();
+		double halfEarth = Math.PI * LatLng.EARTH_MEAN_RADIUS;
+		// starts with about one cell, and doubles until k are found:
+		// everything inside the radius is found, so the k nearest are among them
+		double radius = Math.min(maxMeters, Math.PI * LatLng.EARTH_MEAN_RADIUS / cellsPerAxis);
+		List<Hit<T>> hits;
+		lock.readLock().lock();
+		try {
+			while (true) {
+				hits = collect(center, radius);
+				if (hits.size() >= k || radius >= maxMeters || radius >= halfEarth)
+					break;
+				radius = Math.min(maxMeters, radius * 2);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(hits, BY_DISTANCE);
+		return entities(hits, Math.min(k, hits.size()));
+	}
+
+	private static <T> List<T> entities(List<Hit<T>> hits, int count) {
+		List<T> result = new ArrayList<T>(count);
+		for (int i = 0; i < count; i++)
+			result.add(hits.get(i).entity);
+		return result;
+	}
+
+	/**
+	 * Must be called with the read lock
+	 */
+	private List<Hit<T>> collect(LatLng center, double meters) {
+		List<Hit<T>> hits = new ArrayList<Hit<T>>();
+		double angle = meters / LatLng.EARTH_MEAN_RADIUS;
+		double lat = center.getLatitude();
+		double minLat = lat - Math.toDegrees(angle);
+		double maxLat = lat + Math.toDegrees(angle);
+
+		int lat0 = latIndex(Math.max(minLat, -90));
+		int lat1 = latIndex(Math.min(maxLat, 90));
+		double ratio = Math.sin(angle) / Math.cos(Math.toRadians(lat));
+		int lng0, lngCount;
+		if (minLat <= -90 || maxLat >= 90 || angle >= Math.PI / 2 || ratio >= 1) {
+			// reaches a pole, any longitude
+			lng0 = 0;
+			lngCount = cellsPerAxis;
+		} else {
+			double dLng = Math.toDegrees(Math.asin(ratio));
+			lng0 = lngIndex(center.getLongitude() - dLng);
+			int lng1 = lngIndex(center.getLongitude() + dLng);
+			lngCount = lng1 >= lng0 ? lng1 - lng0 + 1 : cellsPerAxis - lng0 + lng1 + 1;
+			if (2 * dLng >= 360)
+				lngCount = cellsPerAxis;
+		}
+
+		if ((long)(lat1 - lat0 + 1) * lngCount > cells.size()) {
+			// less cells in use than around the point
+			for (List<Entry<T>> list: cells.values())
+				refine(list, center, meters, hits);
+		} else
+			for (int la = lat0; la <= lat1; la++)
+				for (int n = 0; n < lngCount; n++) {
+					List<Entry<T>> list = cells.get(cell(la, (lng0 + n) % cellsPerAxis));
+					if (list != null)
+						refine(list, center, meters, hits);
+				}
+		return hits;
+	}
+
+	private static <T> void refine(List<Entry<T>> list, LatLng center, double meters, List<Hit<T>> hits) {
+		for (int i = 0, size = list.size(); i < size; i++) {
+			Entry<T> entry = list.get(i);
+			double distance = center.getDistanceTo(entry.pos);
+			if (distance <= meters)
+				hits.add(new Hit<T>(entry.entity, distance));
+		}
+	}
+
+	//=========
+	// Geohash
+	//=========
+
+	private int latIndex(double lat) {
+		int i = (int)((lat + 90) / 180 * cellsPerAxis);
+		return i >= cellsPerAxis ? cellsPerAxis - 1 : i;
+	}
+
+	private int lngIndex(double lng) {
+		lng = ((lng + 180) % 360 + 360) % 360;
+		int i = (int)(lng / 360 * cellsPerAxis);
+		return i >= cellsPerAxis ? cellsPerAxis - 1 : i;
+	}
+
+	/**
+	 * Interleaves the bits of the longitude and latitude indexes (longitude first), like a geohash
+	 */
+	private long cell(int latIndex, int lngIndex) {
+		return (spread(lngIndex) << 1) | spread(latIndex);
+	}
+
+	private static long spread(int v) {
+		long x = v & 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2)) & 0x3333333333333333L;
+		x = (x | (x << 1)) & 0x5555555555555555L;
+		return x;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+}
@@ -36,6 +36,7 @@ import java.util.List;
 
 import org.judison.mongodm.annotations.Embedded;
 import org.judison.mongodm.annotations.Entity;
+import org.judison.mongodm.annotations.GeoIndexed;
 import org.judison.mongodm.annotations.Id;
 import org.judison.mongodm.annotations.Index;
 import org.judison.mongodm.annotations.Indexed;
@@ -44,6 +45,7 @@ import org.judison.mongodm.annotations.Indexes;
 import org.judison.mongodm.annotations.Overflow;
 import org.judison.mongodm.annotations.Property;
 import org.judison.mongodm.annotations.TextIndex;
+import org.judison.mongodm.annotations.TextScore;
 import org.judison.mongodm.annotations.Transient;
 
 final class TypeInfo {
@@ -53,9 +55,11 @@ final class TypeInfo {
 	final LinkedHashMap<String, PropertyInfo> properties;
 	final PropertyInfo idField;
 	final PropertyInfo overflowField;
+	final PropertyInfo textScoreField;
 	final boolean isEntity;
 	final boolean isEmbedded;
 	final IndexInfo[] indexes;
+	final boolean hasReferences;
 
 	public TypeInfo(Class<?> cls) {
 		try {
@@ -82,6 +86,7 @@ final class TypeInfo {
 
 			PropertyInfo idField = null;
 			PropertyInfo overflowField = null;
+			PropertyInfo textScoreField = null;
 
 			properties = new LinkedHashMap<String, PropertyInfo>();
 
@@ -148,6 +153,17 @@ final class TypeInfo {
 					if (properties.containsKey(name))
 						throw new IllegalStateException("Duplicated field '" + name + "' at " + f.getDeclaringClass().getName() + "." + f.getName());
 
+					if (f.isAnnotationPresent(TextScore.class)) {
+						if (textScoreField != null)
+							throw new IllegalStateException("Duplicated @TextScore field at " + f.getDeclaringClass().getName() + "." + f.getName());
+						Class<?> type = f.getType();
+						if (type != Double.TYPE && type != Double.class && type != Float.TYPE && type != Float.class)
+							throw new IllegalStateException("@TextScore field " + f.getDeclaringClass().getName() + "." + f.getName() + " must be a double or float");
+						// not a property, so it's loaded but never saved
+						textScoreField = new PropertyInfo(f, name, prop);
+						continue;
+					}
+
 					PropertyInfo info = new PropertyInfo(f, name, prop);
 					properties.put(name, info);
 
@@ -164,17 +180,61 @@ final class TypeInfo {
 						indexes.add(idx);
 					}
 
+					GeoIndexed geoIndexed = f.getAnnotation(GeoIndexed.class);
+					if (geoIndexed != null) {
+						if (info.cls != LatLng.class)
+							throw new IllegalStateException("@GeoIndexed field " + f.getDeclaringClass().getName() + "." + f.getName() + " must be a LatLng");
+						indexes.add(new IndexInfo(geoIndexed.name(), name, "2dsphere", geoIndexed.sparse()));
+					}
+
 				}
 				cls = cls.getSuperclass();
 			}
 
 			this.idField = idField;
 			this.overflowField = overflowField;
+			this.textScoreField = textScoreField;
 			this.indexes = indexes.toArray(new IndexInfo[indexes.size()]);
+
+			boolean hasReferences = false;
+			for (PropertyInfo pi: properties.values())
+				if (pi.type == PropertyInfo.Type.REFERENCE || (pi.type == PropertyInfo.Type.SUB && pi.subType.hasReferences))
+					hasReferences = true;
+			this.hasReferences = hasReferences;
 		} catch (SecurityException e) {
 			throw new RuntimeException(e);
 		} catch (NoSuchMethodException e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	Object getId(Object obj) {
+		if (idField == null)
+			throw new IllegalArgumentException(constructor.getDeclaringClass().getName() + " has no @Id field");
+		try {
+			return idField.field.get(obj);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Adds all the not yet loaded {@link Ref}s of <b>obj</b> (and of its @Embedded properties) to <b>refs</b>
+	 */
+	void collectReferences(Object obj, List<Ref<?>> refs) {
+		if (obj == null || !hasReferences)
+			return;
+		try {
+			for (PropertyInfo pi: properties.values())
+				if (pi.type == PropertyInfo.Type.REFERENCE) {
+					Ref<?> ref = (Ref<?>)pi.field.get(obj);
+					if (ref != null && !ref.isLoaded())
+						refs.add(ref);
+				} else if (pi.type == PropertyInfo.Type.SUB)
+					pi.subType.collectReferences(pi.field.get(obj), refs);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 }
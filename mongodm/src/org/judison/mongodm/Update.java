@@ -67,6 +67,64 @@ public class Update {
 		return this;
 	}
 
+	/**
+	 * Increments <b>field</b> by <b>amount</b>, successive calls for the same field are summed
+	 */
+	public Update inc(String field, Number amount) {
+		Object old = getIn("$inc", field);
+		if (old instanceof Number)
+			amount = add((Number)old, amount);
+		putIn("$inc", field, amount);
+		return this;
+	}
+
+	public Update inc(String field) {
+		return inc(field, 1);
+	}
+
+	public Update dec(String field) {
+		return inc(field, -1);
+	}
+
+	public Update mul(String field, Number factor) {
+		putIn("$mul", field, factor);
+		return this;
+	}
+
+	/**
+	 * Updates <b>field</b> only if <b>value</b> is less than the current value
+	 */
+	public Update min(String field, Object value) {
+		putIn("$min", field, value);
+		return this;
+	}
+
+	/**
+	 * Updates <b>field</b> only if <b>value</b> is greater than the current value
+	 */
+	public Update max(String field, Object value) {
+		putIn("$max", field, value);
+		return this;
+	}
+
+	/**
+	 * Sets the <b>fields</b> to the current date, as seen by the server
+	 */
+	public Update currentDate(String... fields) {
+		for (String field: fields)
+			putIn("$currentDate", field, true);
+		return this;
+	}
+
+	/**
+	 * Sets the <b>fields</b> to the current timestamp, as seen by the server
+	 */
+	public Update currentTimestamp(String... fields) {
+		for (String field: fields)
+			putIn("$currentDate", field, new MObject("$type", "timestamp"));
+		return this;
+	}
+
 	public Update unset(String... fields) {
 		for (String field: fields)
 			putIn("$unset", field, 1);
@@ -124,6 +182,66 @@ public class Update {
 		return this;
 	}
 
+	//============
+	// Attributes
+	//============
+
+	public <V> Update set(Attribute<V> attr, V value) {
+		return set(attr.getName(), attr.toBson(value));
+	}
+
+	public <V> Update setOnInsert(Attribute<V> attr, V value) {
+		return setOnInsert(attr.getName(), attr.toBson(value));
+	}
+
+	public Update unset(Attribute<?>... attrs) {
+		for (Attribute<?> attr: attrs)
+			unset(attr.getName());
+		return this;
+	}
+
+	public Update inc(Attribute<? extends Number> attr, Number amount) {
+		return inc(attr.getName(), amount);
+	}
+
+	public <V> Update min(Attribute<V> attr, V value) {
+		return min(attr.getName(), attr.toBson(value));
+	}
+
+	public <V> Update max(Attribute<V> attr, V value) {
+		return max(attr.getName(), attr.toBson(value));
+	}
+
+	/**
+	 * @param values items of the array property
+	 */
+	public Update push(Attribute<?> array, Object... values) {
+		for (Object value: values)
+			push(array.getName(), array.toBson(value));
+		return this;
+	}
+
+	public Update pull(Attribute<?> array, Object... values) {
+		for (Object value: values)
+			pull(array.getName(), array.toBson(value));
+		return this;
+	}
+
+	public Update addToSet(Attribute<?> array, Object... values) {
+		for (Object value: values)
+			addToSet(array.getName(), array.toBson(value));
+		return this;
+	}
+
+	static Number add(Number a, Number b) {
+		if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+			return a.doubleValue() + b.doubleValue();
+		long sum = a.longValue() + b.longValue();
+		if (!(a instanceof Long) && !(b instanceof Long) && sum == (int)sum)
+			return (int)sum;
+		return sum;
+	}
+
 	public MObject toMObject() {
 		return update;
 	}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2012-2015, Judison Oliveira Gil Filho <judison@gmail.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.judison.mongodm;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BSONObject;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+
+/**
+ * Write-behind buffer of a {@link MCollection}, see {@link MCollection#enableWriteBehind(long, int)}.<br>
+ * Saves and updates by <code>_id</code> are kept in memory and coalesced per <code>_id</code>:
+ * a save replaces everything pending for the same document, and successive updates are merged
+ * into a single update (<code>$set</code>, <code>$unset</code> and <code>$inc</code>).
+ * Everything is flushed as one ordered bulk write every <b>window</b> milliseconds,
+ * when <b>maxPending</b> documents are buffered, and on {@link MDB#close()}.<br>
+ * Writes that don't go through the buffer (by query, replacements, findAndModify) flush it first,
+ * and removes by <code>_id</code> drop what is pending for it.<br>
+ * Documents are copied when buffered, so later changes to the entity aren't written by the flush.<br>
+ * Reads don't see buffered writes until they are flushed.
+ *
+ * @author judison
+ */
+public class WriteBehind<T> {
+
+	private static final class Pending {
+		MObject save;
+		MObject update;
+	}
+
+	private final MCollection<T> coll;
+	private final long window;
+	private final int maxPending;
+	private final ScheduledExecutorService scheduler;
+	private final Object flushLock = new Object();
+
+	private LinkedHashMap<Object, Pending> pending = new LinkedHashMap<Object, Pending>();
+	// a batch rejected by the driver, retried before the pending writes, guarded by flushLock
+	private volatile LinkedHashMap<Object, Pending> failed;
+
+	private final AtomicLong buffered = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile MException lastError;
+
+	WriteBehind(MCollection<T> coll, long window, int maxPending) {
+		if (window <= 0 || maxPending <= 0)
+			throw new IllegalArgumentException();
+		this.coll = coll;
+		this.window = window;
+		this.maxPending = maxPending;
+
+		final String name = "mongodm-write-behind-" + coll.getDBCollection().getName();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (MException e) {
+					// already counted in errors/lastError
+				} catch (RuntimeException e) {
+					// never let it escape, it would cancel the periodic flush
+				}
+			}
+		}, window, window, TimeUnit.MILLISECONDS);
+	}
+
+	void save(Object id, MObject data) throws MException {
+		// read the entity now, in the caller's thread, mapping errors are thrown to the caller
+		data = (MObject)snapshot(data);
+		boolean full;
+		synchronized (this) {
+			Pending p = pending.get(id);
+			if (p == null) {
+				p = new Pending();
+				pending.put(id, p);
+			} else
+				coalesced.incrementAndGet();
+			// a save replaces the whole document, so anything pending before it is useless
+			p.save = data;
+			p.update = null;
+			buffered.incrementAndGet();
+			full = pending.size() >= maxPending;
+		}
+		if (full)
+			flush();
+	}
+
+	void update(Object id, MObject update) throws MException {
+		update = (MObject)snapshot(update);
+		boolean full;
+		boolean merged = false;
+		synchronized (this) {
+			Pending p = pending.get(id);
+			if (p == null) {
+				p = new Pending();
+				p.update = update;
+				pending.put(id, p);
+				merged = true;
+			} else if (p.update == null) {
+				p.update = update;
+				merged = true;
+			} else if (merge(p.update, update)) {
+				coalesced.incrementAndGet();
+				merged = true;
+			}
+			if (merged)
+				buffered.incrementAndGet();
+			full = pending.size() >= maxPending;
+		}
+		if (!merged) {
+			// can't be merged, keep the order by flushing what's pending before
+			flush();
+			update(id, update);
+		} else if (full)
+			flush();
+	}
+
+	/**
+	 * Drops anything pending for <b>id</b>, used when the document is removed.<br>
+	 * It waits for a flush in progress, so the removal can't be overwritten by a batch already taken.
+	 */
+	void discard(Object id) {
+		synchronized (flushLock) {
+			synchronized (this) {
+				pending.remove(id);
+			}
+			if (failed != null)
+				failed.remove(id);
+		}
+	}
+
+	/**
+	 * @return true if <b>update</b> only has <code>$</code> operators, the only updates that can be buffered
+	 */
+	static boolean isOperatorUpdate(MObject update) {
+		if (update.keySet().isEmpty())
+			return false;
+		for (String key: update.keySet())
+			if (!key.startsWith("$"))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Writes everything pending now, in the caller's thread.<br>
+	 * A batch rejected by the driver before being sent is kept, and written first on the next flush.
+	 */
+	public void flush() throws MException {
+		synchronized (flushLock) {
+			LinkedHashMap<Object, Pending> retry = failed;
+			if (retry != null) {
+				failed = null;
+				write(retry);
+			}
+			LinkedHashMap<Object, Pending> batch;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				batch = pending;
+				pending = new LinkedHashMap<Object, Pending>();
+			}
+			write(batch);
+		}
+	}
+
+	private void write(LinkedHashMap<Object, Pending> batch) throws MException {
+		DBCollection dbColl = coll.getDBCollection();
+		int count = 0;
+		try {
+			BulkWriteOperation bulk = dbColl.initializeOrderedBulkOperation();
+			for (Entry<Object, Pending> e: batch.entrySet()) {
+				Pending p = e.getValue();
+				if (p.save != null)
+					bulk.find(new MObject("_id", e.getKey())).upsert().replaceOne(p.save);
+				if (p.update != null)
+					bulk.find(new MObject("_id", e.getKey())).updateOne(p.update);
+				count++;
+			}
+			bulk.execute();
+			flushed.addAndGet(count);
+			flushes.incrementAndGet();
+		} catch (MongoException e) {
+			errors.incrementAndGet();
+			MException error = new MException(e);
+			lastError = error;
+			throw error;
+		} catch (RuntimeException e) {
+			// rejected by the driver, nothing was sent, the batch is kept (ahead of newer writes)
+			failed = batch;
+			errors.incrementAndGet();
+			MException error = new MException("Write-behind flush failed", e);
+			lastError = error;
+			throw error;
+		}
+	}
+
+	/**
+	 * Flushes everything and stops the background flushing
+	 */
+	void close() throws MException {
+		scheduler.shutdown();
+		flush();
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+	public synchronized int getPendingCount() {
+		LinkedHashMap<Object, Pending> retry = failed;
+		return pending.size() + (retry == null ? 0 : retry.size());
+	}
+
+	/**
+	 * @return the number of saves/updates accepted into the buffer
+	 */
+	public long getBufferedCount() {
+		return buffered.get();
+	}
+
+	/**
+	 * @return the number of saves/updates merged into an already pending document, i.e. writes saved
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of documents written by flushes
+	 */
+	public long getFlushedCount() {
+		return flushed.get();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * @return the error of the last failed flush, those buffered writes are lost,
+	 * unless the driver rejected them before sending (then they're retried by the next flush)
+	 */
+	public MException getLastError() {
+		return lastError;
+	}
+
+	//==============
+	// Update merge
+	//==============
+
+	/**
+	 * A deep copy of <b>value</b>, detached from the entities behind mapped MObjects and MLists,
+	 * so what is flushed is what was saved, whatever happens to the entity meanwhile
+	 */
+	static Object snapshot(Object value) {
+		if (value instanceof List) {
+			MList copy = new MList();
+			for (Object item: (List<?>)value)
+				copy.add(snapshot(item));
+			return copy;
+		}
+		if (value instanceof BSONObject) {
+			BSONObject obj = (BSONObject)value;
+			MObject copy = new MObject();
+			for (String key: obj.keySet())
+				copy.put(key, snapshot(obj.get(key)));
+			return copy;
+		}
+		if (value instanceof Date)
+			return new Date(((Date)value).getTime());
+		if (value instanceof byte[])
+			return ((byte[])value).clone();
+		return value;
+	}
+
+	/**
+	 * Merges <b>update</b> into <b>into</b>, so applying <b>into</b> has the same effect as applying both in order.
+	 *
+	 * @return false (and nothing is changed) if they can't be merged
+	 */
+	static boolean merge(MObject into, MObject update) {
+		// First check, so nothing is changed if it can't be merged
+		for (String op: update.keySet()) {
+			if (!op.equals("$set") && !op.equals("$unset") && !op.equals("$inc"))
+				return false;
+			if (!(update.get(op) instanceof MObject))
+				return false;
+			for (String field: ((MObject)update.get(op)).keySet())
+				for (String other: into.keySet()) {
+					if (!other.equals("$set") && !other.equals("$unset") && !other.equals("$inc"))
+						return false;
+					for (String f: ((MObject)into.get(other)).keySet())
+						if (f.equals(field)) {
+							if (op.equals("$inc") && other.equals("$set") && !(((MObject)into.get(other)).get(f) instanceof Number))
+								return false;
+						} else if (f.startsWith(field + '.') || field.startsWith(f + '.'))
+							return false;
+				}
+		}
+
+		for (String op: update.keySet()) {
+			MObject values = (MObject)update.get(op);
+			for (String field: values.keySet()) {
+				Object value = values.get(field);
+				if (op.equals("$inc")) {
+					if (hasIn(into, "$set", field))
+						putIn(into, "$set", field, Update.add((Number)getIn(into, "$set", field), (Number)value));
+					else if (hasIn(into, "$unset", field)) {
+						removeIn(into, "$unset", field);
+						putIn(into, "$set", field, value);
+					} else if (hasIn(into, "$inc", field))
+						putIn(into, "$inc", field, Update.add((Number)getIn(into, "$inc", field), (Number)value));
+					else
+						putIn(into, "$inc", field, value);
+				} else {
+					// $set or $unset, the last one wins
+					removeIn(into, "$set", field);
+					removeIn(into, "$unset", field);
+					removeIn(into, "$inc", field);
+					putIn(into, op, field, value);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean hasIn(MObject update, String op, String field) {
+		MObject values = (MObject)update.get(op);
+		return values != null && values.containsField(field);
+	}
+
+	private static Object getIn(MObject update, String op, String field) {
+		MObject values = (MObject)update.get(op);
+		return values == null ? null : values.get(field);
+	}
+
+	private static void putIn(MObject update, String op, String field, Object value) {
+		MObject values = (MObject)update.get(op);
+		if (values == null) {
+			values = new MObject();
+			update.put(op, values);
+		}
+		values.put(field, value);
+	}
+
+	private static void removeIn(MObject update, String op, String field) {
+		MObject values = (MObject)update.get(op);
+		if (values != null) {
+			values.removeField(field);
+			if (values.keySet().isEmpty())
+				update.removeField(op);
+		}
+	}
+
+}
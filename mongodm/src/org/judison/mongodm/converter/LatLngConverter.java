@@ -32,9 +32,21 @@ import org.judison.mongodm.MObject;
 
 public final class LatLngConverter extends TypeConverter<LatLng> {
 
-	public static final LatLngConverter INSTANCE = new LatLngConverter();
+	/**
+	 * Stores as { lng: ..., lat: ... }
+	 */
+	public static final LatLngConverter INSTANCE = new LatLngConverter(false);
 
-	private LatLngConverter() {}
+	/**
+	 * Stores as a GeoJSON Point { type: "Point", coordinates: [ lng, lat ] }
+	 */
+	public static final LatLngConverter GEOJSON = new LatLngConverter(true);
+
+	private final boolean geoJson;
+
+	private LatLngConverter(boolean geoJson) {
+		this.geoJson = geoJson;
+	}
 
 	@Override
 	public LatLng bsonToJava(Object bsonValue) {
@@ -45,7 +57,7 @@ public final class LatLngConverter extends TypeConverter<LatLng> {
 
 	@Override
 	public Object javaToBson(LatLng javaValue) {
-		return javaValue.toMObject();
+		return geoJson ? javaValue.toGeoJSON() : javaValue.toMObject();
 	}
 	
 }
@@ -30,10 +30,17 @@ package org.judison.mongodm;
 import static org.junit.Assert.*;
 
 import org.bson.types.ObjectId;
+import org.judison.mongodm.annotations.Embedded;
 import org.judison.mongodm.annotations.Entity;
+import org.judison.mongodm.annotations.GeoIndexed;
 import org.judison.mongodm.annotations.Id;
+import org.judison.mongodm.annotations.Reference;
+import org.judison.mongodm.annotations.TextScore;
 import org.junit.Test;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
 
 
 public class BasicTests {
@@ -47,10 +54,1034 @@ public class BasicTests {
 		
 		public Pessoa() {}
 	}
+
+	@Embedded
+	public static class Total {
+		private String _id;
+		private int n;
+		private MObject extra;
+
+		public Total() {}
+	}
+
+	@Entity("pedidos")
+	public static class Pedido {
+		@Id
+		private ObjectId id = new ObjectId();
+		@Reference
+		private Ref<Pessoa> cliente;
+
+		public Pedido() {}
+	}
+
+	@Entity("produtos")
+	public static class Produto {
+		@Id
+		private short codigo;
+		private String nome;
+
+		public Produto() {}
+
+		Produto(int codigo, String nome) {
+			this.codigo = (short)codigo;
+			this.nome = nome;
+		}
+	}
+
+	@Entity("itens")
+	public static class Item {
+		@Id
+		private ObjectId id = new ObjectId();
+		@Reference
+		private Ref<Produto> produto;
+
+		public Item() {}
+	}
+
+	@Entity("artigos")
+	public static class Artigo {
+		@Id
+		private ObjectId id = new ObjectId();
+		private String titulo;
+		@TextScore
+		private double score;
+
+		public Artigo() {}
+	}
+
+	@Embedded
+	public static class Endereco {
+		private String cidade;
+		@org.judison.mongodm.annotations.Property("cep")
+		private String codigoPostal;
+
+		public Endereco() {}
+	}
+
+	@Entity("clientes")
+	public static class Cliente {
+		@Id
+		private ObjectId id = new ObjectId();
+		@org.judison.mongodm.annotations.Property("mail")
+		private String email;
+		private int[] notas;
+		private Endereco endereco;
+
+		public Cliente() {}
+	}
+
+	@Entity("lojas")
+	public static class Loja {
+		@Id
+		private ObjectId id = new ObjectId();
+		@GeoIndexed
+		private LatLng local;
+		private LatLng entrega;
+
+		public Loja() {}
+	}
+
+	@Entity("eventos")
+	@org.judison.mongodm.annotations.Index(fields = { "-data", "-_id" })
+	public static class Evento {
+		@Id
+		private ObjectId id = new ObjectId();
+		private int data;
+
+		public Evento() {}
+	}
+
+	@Entity("usuarios")
+	public static class Usuario {
+		@Id
+		private ObjectId id = new ObjectId();
+		@org.judison.mongodm.annotations.Indexed(unique = true)
+		private String login;
+		@org.judison.mongodm.annotations.Indexed
+		private int idade;
+		private String[] tags;
+
+		public Usuario() {}
+
+		Usuario(String login, int idade, String... tags) {
+			this.login = login;
+			this.idade = idade;
+			this.tags = tags;
+		}
+	}
 		
 	@Test
 	public void test() {
 		//TODO
 	}
 
+	@Test
+	public void referenceStoresOnlyTheId() {
+		Pessoa pessoa = new Pessoa();
+		Pedido pedido = new Pedido();
+		pedido.cliente = new Ref<Pessoa>(pessoa);
+
+		MObject data = (MObject)new Mapper(null).javaToBson(pedido);
+		assertEquals(pessoa.id, data.get("cliente"));
+		assertTrue(Mapper.getTypeInfo(Pedido.class).hasReferences);
+		assertFalse(Mapper.getTypeInfo(Pessoa.class).hasReferences);
+	}
+
+	@Test
+	public void indexSupportsKeysetSort() {
+		IndexInfo idx = new IndexInfo("", new String[] { "-date", "name" }, false, false);
+		assertTrue(idx.supportsSort(IndexInfo.parseFields(new String[] { "-date" })));
+		assertTrue(idx.supportsSort(IndexInfo.parseFields(new String[] { "date", "-name" })));
+		assertFalse(idx.supportsSort(IndexInfo.parseFields(new String[] { "-date", "-name" })));
+		assertFalse(idx.supportsSort(IndexInfo.parseFields(new String[] { "name" })));
+	}
+
+	@Test
+	public void convertDriverObjects() {
+		BasicDBObject dbo = new BasicDBObject("nome", "x").append("sub", new BasicDBObject("a", 1));
+		BasicDBList list = new BasicDBList();
+		list.add(new BasicDBObject("b", 2));
+		dbo.append("list", list);
+
+		MObject obj = (MObject)MDecoder.convert(dbo);
+		assertEquals("x", obj.get("nome"));
+		assertEquals(1, obj.deepGet("sub.a"));
+		assertTrue(obj.get("list") instanceof MList);
+		assertTrue(((MList)obj.get("list")).get(0) instanceof MObject);
+		assertNull(MDecoder.convert(null));
+	}
+
+	@Test
+	public void writeBehindMergesUpdates() throws MException {
+		MObject into = MObject.parseJSON("{ $set: { a: 1, b: 'x' }, $inc: { n: 2 } }");
+		assertTrue(WriteBehind.merge(into, MObject.parseJSON("{ $inc: { a: 2, n: 3, m: 1 }, $unset: { b: 1 } }")));
+		assertEquals(3, into.deepGet("$set.a"));
+		assertEquals(5, into.deepGet("$inc.n"));
+		assertEquals(1, into.deepGet("$inc.m"));
+		assertEquals(1, into.deepGet("$unset.b"));
+		assertFalse(((MObject)into.get("$set")).containsField("b"));
+
+		// conflicting paths and other operators can't be merged
+		assertFalse(WriteBehind.merge(into, MObject.parseJSON("{ $set: { 'a.c': 1 } }")));
+		assertFalse(WriteBehind.merge(into, MObject.parseJSON("{ $push: { list: 1 } }")));
+		assertEquals(3, into.deepGet("$set.a"));
+
+		// replacements aren't buffered
+		assertTrue(WriteBehind.isOperatorUpdate(into));
+		assertFalse(WriteBehind.isOperatorUpdate(MObject.parseJSON("{ name: 'x' }")));
+		assertFalse(WriteBehind.isOperatorUpdate(MObject.parseJSON("{ $set: { a: 1 }, name: 'x' }")));
+		assertFalse(WriteBehind.isOperatorUpdate(new MObject()));
+
+		// what is buffered is detached from the entity
+		Usuario ana = new Usuario("ana", 30, "a");
+		MObject data = (MObject)WriteBehind.snapshot(new MDB(new MemoryEngine()).mapper.javaToBson(ana));
+		ana.idade = 31;
+		ana.tags[0] = "b";
+		assertFalse(data.isBacked());
+		assertEquals(30, data.get("idade"));
+		assertEquals("a", ((MList)data.get("tags")).get(0));
+	}
+
+	@Test
+	public void updateNumericOperators() {
+		Update update = new Update().inc("a").inc("a", 2).inc("b", 1.5).mul("c", 2).max("d", 10).currentDate("e");
+		MObject obj = update.toMObject();
+		assertEquals(3, obj.deepGet("$inc.a"));
+		assertEquals(1.5, obj.deepGet("$inc.b"));
+		assertEquals(2, obj.deepGet("$mul.c"));
+		assertEquals(10, obj.deepGet("$max.d"));
+		assertEquals(true, obj.deepGet("$currentDate.e"));
+	}
+
+	@Test
+	public void pipelineOptimizer() {
+		Pipeline pipeline = new Pipeline()
+			.project("status", "date", "tags")
+			.unwind("tags")
+			.sort("-date")
+			.match(new Query("status", "active"))
+			.match(new Query("date >", 10))
+			.skip(20)
+			.limit(10);
+		MList ops = pipeline.optimized().getOperators();
+		assertEquals(MObject.parseJSON("{ $match: { status: 'active', date: { $gt: 10 } } }").toString(), ops.get(0).toString());
+		assertEquals("$project", PipelineOptimizer.name((MObject)ops.get(1)));
+		assertEquals("$unwind", PipelineOptimizer.name((MObject)ops.get(2)));
+		assertEquals("$sort", PipelineOptimizer.name((MObject)ops.get(3)));
+		assertEquals(30, ((MObject)ops.get(4)).get("$limit"));
+		assertEquals(20, ((MObject)ops.get(5)).get("$skip"));
+
+		// a $match on the unwound field must stay after the $unwind
+		ops = new Pipeline().unwind("tags").match(new Query("tags", "x")).optimized().getOperators();
+		assertEquals("$unwind", PipelineOptimizer.name((MObject)ops.get(0)));
+	}
+
+	@Test
+	public void pipelineFacets() {
+		Pipeline pipeline = new Pipeline()
+			.match(new Query("status", "active"))
+			.facet("results", new Pipeline().sort("-date").limit(20))
+			.facet("total", new Pipeline().count("n"))
+			.facet("byCategory", new Pipeline().group(new Group("$category").count("n")));
+		MList ops = pipeline.getOperators();
+		assertEquals(2, ops.size());
+		MObject facet = (MObject)((MObject)ops.get(1)).get("$facet");
+		assertEquals(3, facet.keySet().size());
+		assertEquals(2, ((MList)facet.get("results")).size());
+
+		Facets facets = new Facets(MObject.parseJSON("{ total: [ { n: 42 } ], results: [] }"), null);
+		assertEquals(42, facets.getCount("total", "n"));
+		assertTrue(facets.get("results").isEmpty());
+		assertTrue(facets.get("byCategory").isEmpty());
+	}
+
+	@Test
+	public void mapDriverObjectToResultClass() {
+		BasicDBObject dbo = new BasicDBObject("_id", "a").append("n", 3).append("extra", new BasicDBObject("x", 1));
+		Total total = new Mapper(null).bsonToJava(Total.class, dbo);
+		assertEquals("a", total._id);
+		assertEquals(3, total.n);
+		assertEquals(1, total.extra.get("x"));
+	}
+
+	@Test
+	public void geoJsonStorage() {
+		Loja loja = new Loja();
+		loja.local = new LatLng(-23.5, -46.6);
+		loja.entrega = new LatLng(-23.6, -46.7);
+		Mapper mapper = new Mapper(null);
+		MObject data = (MObject)mapper.javaToBson(loja);
+		assertEquals("Point", data.deepGet("local.type"));
+		assertEquals(-46.6, ((Number)((MList)data.deepGet("local.coordinates")).get(0)).doubleValue(), 0);
+		assertEquals(-46.7, ((Number)data.deepGet("entrega.lng")).doubleValue(), 0);
+
+		Loja back = mapper.bsonToJava(Loja.class, data);
+		assertEquals(loja.local, back.local);
+		assertEquals(loja.entrega, back.entrega);
+
+		IndexInfo[] indexes = Mapper.getTypeInfo(Loja.class).indexes;
+		assertEquals(1, indexes.length);
+		assertEquals("2dsphere", indexes[0].keys.get("local"));
+
+		MObject near = new Query().near("local", loja.local, 500).toMObject();
+		assertEquals(500.0, ((Number)near.deepGet("local.$near.$maxDistance")).doubleValue(), 0);
+		MObject polygon = new Query().withinPolygon("local", new LatLng(0, 0), new LatLng(0, 1), new LatLng(1, 1)).toMObject();
+		assertEquals(4, ((MList)((MList)polygon.deepGet("local.$geoWithin.$geometry.coordinates")).get(0)).size());
+	}
+
+	@Test
+	public void geoBatchMatchesLatLng() {
+		double[] lat = new double[200];
+		double[] lng = new double[200];
+		for (int i = 0; i < lat.length; i++) {
+			lat[i] = -23.5 + (i % 20) * 0.01;
+			lng[i] = -46.6 + (i / 20) * 0.013;
+		}
+		GeoBatch batch = new GeoBatch(lat, lng);
+		LatLng center = new LatLng(-23.43, -46.55);
+
+		double[] distances = batch.distances(center);
+		double[] bearings = batch.bearings(center);
+		for (int i = 0; i < lat.length; i++) {
+			assertEquals(center.getDistanceTo(lat[i], lng[i]), distances[i], 1e-6);
+			assertEquals(center.bearingTo(lat[i], lng[i]), bearings[i], 1e-9);
+		}
+
+		int[] within = batch.withinRadius(center, 3000);
+		int expected = 0;
+		for (double d: distances)
+			if (d <= 3000)
+				expected++;
+		assertEquals(expected, within.length);
+
+		int[] nearest = batch.nearest(center, 10);
+		assertEquals(10, nearest.length);
+		for (int i = 1; i < nearest.length; i++)
+			assertTrue(distances[nearest[i - 1]] <= distances[nearest[i]]);
+		int closer = 0;
+		for (double d: distances)
+			if (d < distances[nearest[9]])
+				closer++;
+		assertTrue(closer <= 9);
+
+		// the columns were copied
+		lat[0] = 10;
+		assertEquals(-23.5, batch.getLatitude(0), 0);
+	}
+
+	@Test
+	public void spatialIndexQueries() {
+		SpatialIndex<Loja> index = new SpatialIndex<Loja>(Loja.class, "local");
+		java.util.List<Loja> lojas = new java.util.ArrayList<Loja>();
+		for (int i = 0; i < 400; i++) {
+			Loja loja = new Loja();
+			loja.local = new LatLng(-23.6 + (i % 20) * 0.01, -46.7 + (i / 20) * 0.01);
+			lojas.add(loja);
+		}
+		index.addAll(lojas);
+		assertEquals(400, index.size());
+
+		LatLng center = new LatLng(-23.5, -46.6);
+		int expected = 0;
+		for (Loja loja: lojas)
+			if (loja.local.getDistanceTo(center) <= 2500)
+				expected++;
+		java.util.List<Loja> within = index.withinRadius(center, 2500);
+		assertEquals(expected, within.size());
+
+		java.util.List<Loja> nearest = index.nearest(center, 5);
+		assertEquals(5, nearest.size());
+		assertEquals(center, nearest.get(0).local);
+		double fifth = nearest.get(4).local.getDistanceTo(center);
+		int closer = 0;
+		for (Loja loja: lojas)
+			if (loja.local.getDistanceTo(center) < fifth)
+				closer++;
+		assertTrue(closer <= 4);
+
+		// moving and removing
+		Loja first = nearest.get(0);
+		first.local = new LatLng(10, 10);
+		index.put(first);
+		assertFalse(index.nearest(center, 1).get(0) == first);
+		assertEquals(first, index.nearest(new LatLng(10, 10.001), 1).get(0));
+		index.remove(first);
+		assertEquals(399, index.size());
+		assertTrue(index.withinRadius(new LatLng(10, 10), 1000).isEmpty());
+	}
+
+	@Test
+	public void textScoreIsLoadedButNotSaved() {
+		Mapper mapper = new Mapper(null);
+		Artigo artigo = mapper.bsonToJava(Artigo.class, MObject.parseJSON("{ titulo: 'x', score: 1.5 }"));
+		assertEquals("x", artigo.titulo);
+		assertEquals(1.5, artigo.score, 0);
+		MObject data = (MObject)mapper.javaToBson(artigo);
+		assertFalse(data.containsField("score"));
+		assertEquals("textScore", new Projection("titulo").textScore("score").toMObject().deepGet("score.$meta"));
+	}
+
+	@Test
+	public void compiledQueryMatchesFilter() {
+		QueryTemplate template = Query.compile("age >=", "age <", "status in", "name");
+		MObject bound = template.bind(18, 65, new String[] { "a", "b" }, "x");
+		MObject built = new Query().filter("age >=", 18).filter("age <", 65).in("status", "a", "b").filter("name", "x").toMObject();
+		assertEquals(built.toString(), bound.toString());
+		assertEquals(4, template.getParameterCount());
+		assertNotSame(bound, template.bind(18, 65, java.util.Arrays.asList("a"), "y"));
+		try {
+			template.bind(1, 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			Query.compile("age", "age >");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void metamodelAttributes() {
+		Attribute<String> email = Attribute.of(Cliente.class, "email");
+		Attribute<String> cep = Attribute.of(Cliente.class, "endereco.codigoPostal");
+		Attribute<ObjectId> id = Attribute.of(Cliente.class, "id");
+		assertEquals("mail", email.getName());
+		assertEquals("endereco.cep", cep.getName());
+		assertEquals("_id", id.getName());
+		assertEquals("-endereco.cep", cep.desc());
+
+		MObject query = new Query().equal(email, "a@b.c").in(cep, java.util.Arrays.asList("1", "2")).toMObject();
+		assertEquals("a@b.c", query.get("mail"));
+		assertEquals(2, ((MList)((MObject)query.get("endereco.cep")).get("$in")).size());
+
+		Attribute<LatLng> local = Attribute.of(Loja.class, "local");
+		assertEquals("Point", new Update().set(local, new LatLng(1, 2)).toMObject().deepGet("$set.local.type"));
+
+		try {
+			Attribute.of(Cliente.class, "mail");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		String src = MetamodelGenerator.generate(Cliente.class);
+		assertTrue(src.contains("public final class Cliente_"));
+		assertTrue(src.contains("public static final Attribute<String> email = Attribute.of(org.judison.mongodm.BasicTests.Cliente.class, \"email\");"));
+		assertTrue(src.contains("public static final endereco_ endereco = new endereco_();"));
+		assertTrue(src.contains("public final Attribute<String> codigoPostal = Attribute.of(org.judison.mongodm.BasicTests.Cliente.class, \"endereco.codigoPostal\");"));
+		assertTrue(src.contains("Attribute<int[]> notas"));
+	}
+
+	@Test
+	public void queryMatcherOperators() {
+		MObject doc = MObject.parseJSON("{ nome: 'Ana', idade: 30, tags: [ 'a', 'b' ], itens: [ { sku: 'x', qtd: 2 }, { sku: 'y', qtd: 5 } ], "
+			+ "local: { type: 'Point', coordinates: [ -46.6, -23.5 ] }, nada: null }");
+		assertTrue(QueryMatcher.compile(new Query("idade >", 18).filter("idade <=", 30)).matches(doc));
+		assertFalse(QueryMatcher.compile(new Query("idade >", "18")).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("idade", 30.0)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("tags", "b")).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query().in("tags", "z", "a")).matches(doc));
+		assertFalse(QueryMatcher.compile(new Query().notIn("tags", "a")).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("tags all", MObject.parseJSON("[ 'b', 'a' ]"))).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("tags size", 2)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("itens.sku", "y")).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("itens.1.qtd", 5)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("itens elem", MObject.parseJSON("{ sku: 'y', qtd: { $gt: 4 } }"))).matches(doc));
+		assertFalse(QueryMatcher.compile(new Query("itens elem", MObject.parseJSON("{ sku: 'x', qtd: { $gt: 4 } }"))).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("nada", null)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("falta", null)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query().notExists("falta").exists("nada")).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("idade", Query.Operator.MOD, MObject.parseJSON("[ 7, 2 ]"))).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("idade", Query.Operator.TYPE, 16)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("nome", Query.Operator.NOT, MObject.parseJSON("{ $eq: 'Bia' }"))).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("nome", java.util.regex.Pattern.compile("^A"))).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query().or(new Query("nome", "Bia"), new Query("idade", 30))).matches(doc));
+
+		LatLng sp = new LatLng(-23.5, -46.6);
+		assertTrue(QueryMatcher.compile(new Query().near("local", new LatLng(-23.501, -46.6), 200)).matches(doc));
+		assertFalse(QueryMatcher.compile(new Query().near("local", new LatLng(-23.6, -46.6), 200)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query().withinRadius("local", sp, 10)).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query().withinPolygon("local", new LatLng(-24, -47), new LatLng(-23, -47), new LatLng(-23, -46), new LatLng(-24, -46))).matches(doc));
+		assertTrue(QueryMatcher.compile(new Query("local", Query.Operator.WITHIN, MObject.parseJSON("{ $box: [ [ -47, -24 ], [ -46, -23 ] ] }"))).matches(doc));
+
+		Pessoa pessoa = new Pessoa();
+		pessoa.nome = "Ana";
+		pessoa.idade = 30;
+		assertTrue(QueryMatcher.compile(new Query("nome", "Ana").filter("idade >=", 30)).matches(pessoa));
+
+		try {
+			QueryMatcher.compile(new Query("x", Query.Operator.WHERE, "this.x > 1"));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void memoryEngine() throws MException {
+		MDB mdb = new MDB(new MemoryEngine());
+		MCollection<Usuario> usuarios = mdb.getCollection(Usuario.class);
+		usuarios.save(new Usuario("ana", 30, "a", "b"));
+		usuarios.save(new Usuario("bia", 25, "b"));
+		usuarios.save(new Usuario("caio", 40));
+		Usuario dani = new Usuario("dani", 35, "c");
+		usuarios.save(dani);
+
+		assertEquals(4, usuarios.count());
+		assertEquals(2, usuarios.count(new Query("idade >", 30)));
+		assertEquals("bia", usuarios.findOne(new Query("login", "bia")).login);
+		assertEquals("dani", usuarios.load(dani.id).login);
+		assertEquals(2, usuarios.count(new Query("tags", "b")));
+
+		MCursor<Usuario> cursor = usuarios.find(new Query("idade >=", 25)).sort("-idade").skipAndLimit(1, 2);
+		assertEquals("dani", cursor.next().login);
+		assertEquals("ana", cursor.next().login);
+		assertFalse(cursor.hasNext());
+		assertEquals(4, cursor.count());
+		cursor.close();
+
+		assertEquals(1, usuarios.update(new Query("login", "bia"), new Update().inc("idade", 1).push("tags", "x")));
+		Usuario bia = usuarios.findOne(new Query("login", "bia"));
+		assertEquals(26, bia.idade);
+		assertEquals(2, bia.tags.length);
+		assertEquals(3, usuarios.update(new Query("idade <", 40), new Update().set("tags", new MList()), false, true));
+
+		Usuario old = usuarios.findAndModify(new Query("login", "caio"), new Update().set("idade", 41));
+		assertEquals(40, old.idade);
+		assertEquals(41, usuarios.load(old.id).idade);
+
+		try {
+			usuarios.save(new Usuario("ana", 20));
+			fail();
+		} catch (MException e) {
+		}
+		assertEquals(4, usuarios.count());
+
+		MCursor<MObject> groups = usuarios.aggregate(new Pipeline().match(new Query("idade >", 26)).group(new Group(null).count("n").sum("total", "$idade")));
+		MObject total = groups.next();
+		assertEquals(3, ((Number)total.get("n")).intValue());
+		assertEquals(106, ((Number)total.get("total")).intValue());
+
+		// the optimized pipeline is the one that runs
+		MCursor<MObject> sorted = usuarios.aggregate(new Pipeline().sort("idade").match(new Query("idade >", 26)).skip(1).limit(1).optimize());
+		assertEquals(35, ((Number)sorted.next().get("idade")).intValue());
+		assertFalse(sorted.hasNext());
+
+		usuarios.removeById(dani.id);
+		usuarios.remove(new Query("idade >", 40));
+		assertEquals(2, usuarios.count());
+		assertNull(usuarios.load(dani.id));
+	}
+
+	@Test
+	public void memoryEnginePersistence() throws Exception {
+		java.io.File dir = java.nio.file.Files.createTempDirectory("mongodm").toFile();
+		MemoryEngine engine = new MemoryEngine(dir, MemoryEngine.Sync.GROUP, 4096);
+		MCollection<Usuario> usuarios = new MDB(engine).getCollection(Usuario.class);
+		for (int i = 0; i < 100; i++)
+			usuarios.save(new Usuario("u" + i, i));
+		usuarios.update(new Query("idade <", 10), new Update().push("tags", "jovem"), false, true);
+		usuarios.remove(new Query("idade >=", 90));
+		engine.close();
+
+		engine = new MemoryEngine(dir, MemoryEngine.Sync.ALWAYS, 4096);
+		usuarios = new MDB(engine).getCollection(Usuario.class);
+		assertEquals(90, usuarios.count());
+		assertEquals(10, usuarios.count(new Query("tags", "jovem")));
+		assertEquals(50, usuarios.findOne(new Query("login", "u50")).idade);
+		try {
+			usuarios.save(new Usuario("u1", 1));
+			fail();
+		} catch (MException e) {
+		}
+
+		engine.compact();
+		usuarios.removeById(usuarios.findOne(new Query("login", "u0")).id);
+		engine.close();
+
+		engine = new MemoryEngine(dir, MemoryEngine.Sync.OS, 4096);
+		usuarios = new MDB(engine).getCollection(Usuario.class);
+		assertEquals(89, usuarios.count());
+		assertEquals("u1", usuarios.find().sort("idade").next().login);
+		engine.close();
+
+		for (java.io.File sub: dir.listFiles()) {
+			for (java.io.File file: sub.listFiles())
+				file.delete();
+			sub.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void memoryEngineCompactsWhileWriting() throws Exception {
+		java.io.File dir = java.nio.file.Files.createTempDirectory("mongodm").toFile();
+		MemoryEngine engine = new MemoryEngine(dir, MemoryEngine.Sync.OS, 4096);
+		final MCollection<MObject> contas = new MDB(engine).getCollection("contas");
+		final java.util.concurrent.atomic.AtomicReference<Exception> error = new java.util.concurrent.atomic.AtomicReference<Exception>();
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 3000; i++) {
+						MObject conta = new MObject("_id", i % 100);
+						conta.put("saldo", i);
+						contas.save(conta);
+						if (i % 10 == 9)
+							contas.removeById((i - 5) % 100);
+					}
+				} catch (Exception e) {
+					error.set(e);
+				}
+			}
+		};
+		writer.start();
+		// each compaction rolls to a new segment, while the writes go on in it
+		while (writer.isAlive())
+			engine.compact();
+		writer.join();
+		assertNull(error.get());
+		engine.close();
+
+		engine = new MemoryEngine(dir, MemoryEngine.Sync.OS, 4096);
+		MCollection<MObject> reopened = new MDB(engine).getCollection("contas");
+		assertEquals(90, reopened.count());
+		for (int id = 0; id < 100; id++) {
+			MObject conta = reopened.load(id);
+			if (id % 10 == 4)
+				assertNull(conta);
+			else
+				assertEquals(2900 + id, conta.get("saldo"));
+		}
+		engine.close();
+
+		for (java.io.File sub: dir.listFiles()) {
+			for (java.io.File file: sub.listFiles())
+				file.delete();
+			sub.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void operationMetrics() throws MException {
+		MDB mdb = new MDB(new MemoryEngine());
+		MCollection<Usuario> usuarios = mdb.getCollection(Usuario.class);
+		for (int i = 0; i < 10; i++)
+			usuarios.save(new Usuario("m" + i, i));
+		Usuario first = usuarios.findOne(new Query("login", "m0"));
+		usuarios.load(first.id);
+		assertEquals(1, usuarios.update(new Query("login", "m1"), new Update().inc("idade", 1)));
+		MCursor<Usuario> cursor = usuarios.find(new Query("idade >=", 5));
+		int n = 0;
+		while (cursor.hasNext()) {
+			cursor.next();
+			n++;
+		}
+		cursor.close();
+		assertEquals(5, n);
+		assertEquals(10, usuarios.count());
+		try {
+			mdb.command(new MObject("ping", 1));
+			fail();
+		} catch (MException e) {
+		}
+
+		OperationMetrics metrics = usuarios.getMetrics();
+		assertEquals(10, metrics.get(OperationType.SAVE).getCount());
+		assertEquals(10, metrics.get(OperationType.SAVE).getDocCount());
+		assertTrue(metrics.get(OperationType.SAVE).getMappingNanos() > 0);
+		assertEquals(1, metrics.get(OperationType.LOAD).getCount());
+		// findOne, and the cursor's single read
+		assertEquals(2, metrics.get(OperationType.FIND).getCount());
+		assertEquals(0, metrics.get(OperationType.NEXT_BATCH).getCount());
+		assertEquals(1, metrics.get(OperationType.UPDATE).getDocCount());
+		assertEquals(1, metrics.get(OperationType.COUNT).getCount());
+		// the indexes of login and idade
+		assertEquals(2, metrics.get(OperationType.ENSURE_INDEX).getCount());
+		assertEquals(0, metrics.getErrorCount());
+		assertTrue(metrics.get(OperationType.SAVE).getLatency().getPercentile(99) > 0);
+
+		// the MDB also counts the failed command
+		assertEquals(metrics.getCount() + 1, mdb.getMetrics().getCount());
+		assertEquals(1, mdb.getMetrics().get(OperationType.COMMAND).getErrorCount());
+		assertTrue(mdb.getTimeInNanos() >= metrics.getTotalNanos());
+		mdb.clearTimer();
+		assertEquals(0, mdb.getMetrics().getCount());
+		assertEquals(0, mdb.getTimeInNanos());
+	}
+
+	@Test
+	public void latencyHistogram() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++)
+			h.record(i * 1000L);
+		assertEquals(1000, h.getCount());
+		assertEquals(1000, h.getMin());
+		assertEquals(1000000, h.getMax());
+		assertEquals(500500, h.getMean(), 0.1);
+		// within the 1/32 precision of the buckets
+		assertEquals(500000, h.getPercentile(50), 500000 / 32);
+		assertEquals(990000, h.getPercentile(99), 990000 / 32);
+		assertEquals(1000000, h.getPercentile(100));
+		for (int i = 0; i < 4096; i++)
+			assertTrue(LatencyHistogram.highest(LatencyHistogram.index(i)) >= i);
+	}
+
+	@Test
+	public void operationListener() throws MException {
+		MDB mdb = new MDB(new MemoryEngine());
+		MCollection<Usuario> usuarios = mdb.getCollection(Usuario.class);
+		final java.util.List<OperationEvent> started = new java.util.ArrayList<OperationEvent>();
+		final java.util.List<OperationEvent> finished = new java.util.ArrayList<OperationEvent>();
+		OperationListener listener = new OperationListener() {
+
+			@Override
+			public void operationStarted(OperationEvent event) {
+				assertFalse(event.isFinished());
+				started.add(event);
+			}
+
+			@Override
+			public void operationFinished(OperationEvent event) {
+				finished.add(event);
+				throw new RuntimeException("ignored");
+			}
+		};
+		mdb.addListener(listener);
+
+		usuarios.save(new Usuario("ana", 30, "a"));
+		usuarios.save(new Usuario("bia", 20));
+		MCursor<Usuario> cursor = usuarios.find(new Query("idade >", 18).in("tags", "a", "b").or(new Query("login", "ana"), new Query("login", "bia")));
+		assertEquals("ana", cursor.next().login);
+		assertFalse(cursor.hasNext());
+		cursor.close();
+
+		assertEquals(3, finished.size());
+		assertEquals(started, finished);
+		OperationEvent save = finished.get(0);
+		assertEquals(OperationType.SAVE, save.getType());
+		assertEquals("usuarios", save.getCollection());
+		assertEquals(Usuario.class, save.getEntityClass());
+		assertTrue(save.isOk());
+		assertEquals(1, save.getDocCount());
+		assertNull(save.getQueryShape());
+
+		OperationEvent find = finished.get(2);
+		assertEquals(OperationType.FIND, find.getType());
+		assertEquals("{ \"idade\" : { \"$gt\" : \"?\"} , \"tags\" : { \"$in\" : \"?\"} , \"$or\" : { \"0\" : { \"login\" : \"?\"} , \"1\" : { \"login\" : \"?\"}}}",
+			find.getQueryShape().toString());
+		assertTrue(find.getNanos() > 0);
+
+		mdb.removeListener(listener);
+		usuarios.count();
+		assertEquals(3, finished.size());
+	}
+
+	@Test
+	public void mbeans() throws Exception {
+		MDB mdb = new MDB(new MemoryEngine());
+		MCollection<Usuario> usuarios = mdb.getCollection(Usuario.class);
+		mdb.registerMBeans("test");
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		javax.management.ObjectName mdbName = new javax.management.ObjectName("org.judison.mongodm:type=MDB,name=test");
+		javax.management.ObjectName collName = new javax.management.ObjectName("org.judison.mongodm:type=Collection,mdb=test,name=usuarios");
+		assertTrue(server.isRegistered(mdbName));
+		assertTrue(server.isRegistered(collName));
+
+		mdb.setCursorSiteTracking(true);
+		usuarios.save(new Usuario("ana", 30));
+		MCursor<Usuario> cursor = usuarios.find();
+		assertTrue(cursor.hasNext());
+		assertEquals(1, server.getAttribute(mdbName, "OpenCursorCount"));
+		String[] dump = (String[])server.invoke(mdbName, "dumpOpenCursors", null, null);
+		assertEquals(1, dump.length);
+		assertTrue(dump[0], dump[0].startsWith("1 x usuarios at " + BasicTests.class.getName() + ".mbeans("));
+		cursor.close();
+		assertEquals(0, server.getAttribute(mdbName, "OpenCursorCount"));
+
+		assertTrue((Integer)server.getAttribute(mdbName, "TypeInfoCount") > 0);
+		assertTrue((Long)server.getAttribute(collName, "OperationCount") > 0);
+		javax.management.openmbean.TabularData ops = (javax.management.openmbean.TabularData)server.getAttribute(collName, "Operations");
+		javax.management.openmbean.CompositeData save = (javax.management.openmbean.CompositeData)ops.get(new Object[] { "SAVE" }).get("value");
+		assertEquals(1L, save.get("count"));
+
+		server.invoke(mdbName, "clearTimer", null, null);
+		assertEquals(0L, server.getAttribute(collName, "OperationCount"));
+		assertEquals(0L, mdb.getMetrics().getCount());
+
+		mdb.close();
+		assertFalse(server.isRegistered(mdbName));
+		assertFalse(server.isRegistered(collName));
+	}
+
+	@Test
+	public void cursorTracking() throws Exception {
+		MDB mdb = new MDB(new MemoryEngine());
+		MCollection<Usuario> usuarios = mdb.getCollection(Usuario.class);
+		usuarios.save(new Usuario("ana", 30));
+		mdb.setMaxOpenCursors(2);
+		// a find is tracked from its first read
+		MCursor<Usuario> a = usuarios.find();
+		MCursor<Usuario> b = usuarios.find();
+		MCursor<Usuario> c = usuarios.find();
+		assertEquals(0, mdb.getOpenCursorCount());
+		assertTrue(a.hasNext());
+		assertTrue(b.hasNext());
+		try {
+			c.hasNext();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		a.close();
+		a.close();
+		assertEquals(1, mdb.getOpenCursorCount());
+		usuarios.find().close();
+		b.close();
+		assertEquals(0, mdb.getOpenCursorCount());
+
+		// paging and counting don't leave the find open
+		mdb.setMaxOpenCursors(1);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(1, usuarios.find().page(10, null).getItems().size());
+			assertEquals(1, usuarios.find().count());
+			assertEquals(1, usuarios.find().size());
+		}
+		assertEquals(0, mdb.getOpenCursorCount());
+
+		mdb.setMaxOpenCursors(0);
+		mdb.setCursorLeakDetection(true);
+		final java.util.List<java.util.logging.LogRecord> leaks = new java.util.ArrayList<java.util.logging.LogRecord>();
+		java.util.logging.Logger log = java.util.logging.Logger.getLogger(MDB.class.getName());
+		java.util.logging.Handler handler = new java.util.logging.Handler() {
+
+			@Override
+			public void publish(java.util.logging.LogRecord record) {
+				leaks.add(record);
+			}
+
+			@Override
+			public void flush() {}
+
+			@Override
+			public void close() {}
+		};
+		log.setUseParentHandlers(false);
+		log.addHandler(handler);
+		try {
+			// exhausted cursors are released without close(), as in a for-each
+			mdb.setMaxOpenCursors(1);
+			for (int i = 0; i < 5; i++) {
+				int n = 0;
+				for (Usuario u: usuarios.find())
+					if (u != null)
+						n++;
+				assertEquals(1, n);
+			}
+			assertEquals(0, mdb.getOpenCursorCount());
+			mdb.setMaxOpenCursors(0);
+
+			usuarios.find().hasNext();
+			for (int i = 0; i < 50 && mdb.getLeakedCursorCount() == 0; i++) {
+				System.gc();
+				Thread.sleep(10);
+			}
+			assertEquals(1, mdb.getLeakedCursorCount());
+			assertEquals(0, mdb.getOpenCursorCount());
+			assertEquals(1, leaks.size());
+			boolean site = false;
+			for (StackTraceElement frame: leaks.get(0).getThrown().getStackTrace())
+				site |= frame.getClassName().equals(BasicTests.class.getName());
+			assertTrue(site);
+		} finally {
+			log.removeHandler(handler);
+			log.setUseParentHandlers(true);
+		}
+		mdb.close();
+	}
+
+	@Test
+	public void pageOverMissingValues() throws MException {
+		MCollection<MObject> coll = new MDB(new MemoryEngine()).getCollection("pages");
+		for (int i = 0; i < 9; i++) {
+			MObject doc = new MObject("_id", i);
+			// 0..2 without n, 3 with n null, the others with values, 7 and 8 equal
+			if (i == 3)
+				doc.put("n", null);
+			else if (i > 3)
+				doc.put("n", Math.min(i, 7));
+			coll.save(doc);
+		}
+		for (int dir: new int[] { 1, -1 }) {
+			java.util.List<Object> ids = new java.util.ArrayList<Object>();
+			String token = null;
+			do {
+				Page<MObject> page = coll.find().sort(new MObject("n", dir)).page(2, token);
+				for (MObject doc: page.getItems())
+					ids.add(doc.get("_id"));
+				token = page.getNextToken();
+			} while (token != null);
+			if (dir > 0)
+				assertEquals(java.util.Arrays.<Object>asList(0, 1, 2, 3, 4, 5, 6, 7, 8), ids);
+			else
+				assertEquals(java.util.Arrays.<Object>asList(8, 7, 6, 5, 4, 3, 2, 1, 0), ids);
+		}
+	}
+
+	@Test
+	public void counterBatcher() throws MException {
+		MCollection<MObject> stats = new MDB(new MemoryEngine()).getCollection("stats");
+		CounterBatcher batcher = new CounterBatcher(60000, true);
+		for (int i = 0; i < 1000; i++)
+			batcher.inc(stats, "a", "n");
+		batcher.inc(stats, "a", "m", 5);
+		assertEquals(1000, batcher.getPending(stats, "a", "n"));
+		assertEquals(1001, batcher.getIncrementCount());
+		assertNull(stats.load("a"));
+		batcher.flush();
+		assertEquals(1000, ((Number)stats.load("a").get("n")).intValue());
+		assertEquals(5, ((Number)stats.load("a").get("m")).intValue());
+		assertEquals(0, batcher.getPending(stats, "a", "n"));
+		assertEquals(1, batcher.getWriteCount());
+
+		// b can't be incremented, a is written once and only b is retried
+		MObject b = new MObject("_id", "b");
+		b.put("n", "x");
+		stats.save(b);
+		batcher.inc(stats, "a", "n", 2);
+		batcher.inc(stats, "b", "n");
+		try {
+			batcher.flush();
+			fail();
+		} catch (MException e) {
+			assertSame(e, batcher.getLastError());
+		}
+		assertEquals(1002, ((Number)stats.load("a").get("n")).intValue());
+		assertEquals(0, batcher.getPending(stats, "a", "n"));
+		assertEquals(1, batcher.getPending(stats, "b", "n"));
+		assertEquals(1, batcher.getErrorCount());
+		stats.update(new MObject("_id", "b"), new MObject("$set", new MObject("n", 0)));
+		batcher.flush();
+		assertEquals(1002, ((Number)stats.load("a").get("n")).intValue());
+		assertEquals(1, ((Number)stats.load("b").get("n")).intValue());
+		batcher.close();
+
+		// the requests of an unordered bulk with write errors
+		java.util.List<com.mongodb.BulkWriteError> errors = java.util.Arrays.asList(
+			new com.mongodb.BulkWriteError(11000, "dup", new MObject(), 1), new com.mongodb.BulkWriteError(2, "bad", new MObject(), 3));
+		assertEquals(new java.util.HashSet<Integer>(java.util.Arrays.asList(1, 3)), CounterBatcher.failedIndexes(errors));
+	}
+
+	@Test
+	public void keysetIndexCoversId() throws MException {
+		MDB mdb = new MDB(new MemoryEngine());
+		// an index on idade alone can't walk { idade: 1, _id: 1 }
+		try {
+			mdb.getCollection(Usuario.class).find().sort("idade").page(10, null);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertTrue(mdb.getCollection(Usuario.class).find().page(10, null).getItems().isEmpty());
+
+		MCollection<Evento> eventos = mdb.getCollection(Evento.class);
+		for (int i = 0; i < 5; i++) {
+			Evento evento = new Evento();
+			evento.data = i / 2;
+			eventos.save(evento);
+		}
+		Page<Evento> page = eventos.find().sort("-data").page(3, null);
+		assertEquals(2, page.getItems().get(0).data);
+		page = eventos.find().sort("-data").page(3, page.getNextToken());
+		assertEquals(2, page.getItems().size());
+		assertEquals(0, page.getItems().get(1).data);
+		assertNull(page.getNextToken());
+		// the same index, walked backwards
+		assertEquals(0, eventos.find().sort("data").page(3, null).getItems().get(0).data);
+	}
+
+	@Test
+	public void memorySortedScans() throws MException {
+		MemoryCollection coll = new MemoryCollection("scans", null);
+		coll.createIndex(new MObject("n", -1), null);
+		coll.createIndex(new MObject("a.x", 1), null);
+		java.util.List<Integer> ids = new java.util.ArrayList<Integer>();
+		for (int i = 0; i < 200; i++)
+			ids.add(i);
+		java.util.Collections.shuffle(ids, new java.util.Random(42));
+		for (int id: ids) {
+			MObject doc = new MObject("_id", id);
+			doc.put("n", id % 7);
+			MList a = new MList();
+			a.add(new MObject("x", id * 2));
+			a.add(new MObject("x", 1000 - id));
+			doc.put("a", a);
+			coll.save(doc);
+		}
+		// the _id range walks the _id skip list, and matches the full sort
+		MObject query = new MObject("_id", new MObject("$gte", 150));
+		java.util.List<MObject> all = coll.find(query, null, new MObject("_id", 1), 0, 0);
+		assertEquals(50, all.size());
+		assertEquals(all.subList(5, 15).toString(), coll.find(query, null, new MObject("_id", 1), 5, 10).toString());
+		assertEquals(150, coll.find(query, null, new MObject("_id", 1), 0, 1).get(0).get("_id"));
+		assertEquals(199, coll.find(query, null, new MObject("_id", -1), 0, 1).get(0).get("_id"));
+		assertEquals(11, coll.find(new MObject("_id", new MObject("$lt", 11)), null, null, 0, 0).size());
+
+		// a prefix of an index, followed by _id
+		MObject sort = new MObject("n", -1);
+		sort.put("_id", -1);
+		all = coll.find(new MObject(), null, sort, 0, 0);
+		assertEquals(all.subList(20, 45).toString(), coll.find(new MObject(), null, sort, 20, 25).toString());
+		sort = new MObject("n", 1);
+		sort.put("_id", 1);
+		query = new MObject("n", new MObject("$gt", 4));
+		all = coll.find(query, null, sort, 0, 0);
+		assertEquals(all.subList(3, 10).toString(), coll.find(query, null, sort, 3, 7).toString());
+
+		// several values per document, each one sorted by its smallest (or largest) value
+		all = coll.find(new MObject(), null, new MObject("a.x", 1), 0, 0);
+		assertEquals(all.subList(0, 30).toString(), coll.find(new MObject(), null, new MObject("a.x", 1), 0, 30).toString());
+		all = coll.find(new MObject(), null, new MObject("a.x", -1), 0, 0);
+		assertEquals(all.subList(0, 30).toString(), coll.find(new MObject(), null, new MObject("a.x", -1), 0, 30).toString());
+
+		// removed documents leave the _id skip list
+		coll.remove(new MObject("_id", new MObject("$gte", 190)));
+		assertEquals(189, coll.find(new MObject(), null, new MObject("_id", -1), 0, 1).get(0).get("_id"));
+		assertEquals(190, coll.count(new MObject("_id", new MObject("$gte", 0))));
+	}
+
+	@Test
+	public void resolveReferencesOfABatch() throws MException {
+		MDB mdb = new MDB(new MemoryEngine());
+		// a short _id is stored as an int, and mapped back to a short
+		MCollection<Produto> produtos = mdb.getCollection(Produto.class);
+		produtos.save(new Produto(1, "caneta"));
+		produtos.save(new Produto(2, "lapis"));
+		MCollection<Item> itens = mdb.getCollection(Item.class);
+		for (int codigo: new int[] { 1, 2, 1, 3 }) {
+			Item item = new Item();
+			item.produto = new Ref<Produto>(mdb, Produto.class, (short)codigo);
+			itens.save(item);
+		}
+
+		long loads = mdb.getMetrics().get(OperationType.LOAD).getCount();
+		long finds = produtos.getMetrics().get(OperationType.FIND).getCount();
+		java.util.List<String> nomes = new java.util.ArrayList<String>();
+		for (Item item: itens.find().sort("_id")) {
+			assertTrue(item.produto.isLoaded());
+			nomes.add(item.produto.get() == null ? null : item.produto.get().nome);
+		}
+		assertEquals(java.util.Arrays.asList("caneta", "lapis", "caneta", null), nomes);
+		// one $in for the whole batch, no load by id
+		assertEquals(finds + 1, produtos.getMetrics().get(OperationType.FIND).getCount());
+		assertEquals(loads, mdb.getMetrics().get(OperationType.LOAD).getCount());
+
+		// as given, with the Java type
+		java.util.List<Ref<?>> refs = new java.util.ArrayList<Ref<?>>();
+		refs.add(new Ref<Produto>(mdb, Produto.class, (short)2));
+		Ref.resolveAll(mdb, refs);
+		assertEquals("lapis", ((Produto)refs.get(0).get()).nome);
+	}
+
 }